@@ -14,18 +14,26 @@
  */
 package ch.dvbern.lib.doctemplate.common;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -43,15 +51,19 @@ import org.xml.sax.SAXException;
 import ch.dvbern.lib.doctemplate.util.ImageHandler;
 
 /**
+ * Basisklasse der XML-basierten Merge-Engines. Eine Engine enthaelt nur ihre Konfiguration und wird nach der
+ * Initialisierung nicht mehr veraendert; der Zustand eines einzelnen Merge-Vorgangs wird in einer
+ * {@link MergeSession} gehalten. Dadurch kann eine Engine von mehreren Threads gleichzeitig verwendet werden,
+ * sofern die Konfiguration (z.B. {@link #setFieldPrefix(String)}) nicht waehrend laufender Merges geaendert wird.
+ *
  * @author lsimon
  */
 public abstract class AbstractMergeEngine<T extends Image> {
 
 	private static final Log log = LogFactory.getLog(AbstractMergeEngine.class);
 
-	protected Stack<BasicMergeElement> parseStack;
-	protected Map<String, String> keyTranslationTable = null;
-	protected Map<String, T> images = new LinkedHashMap<>();
+	/** Uebersetzung von Keys; darf nur waehrend der Initialisierung der Engine angepasst werden */
+	protected final Map<String, String> keyTranslationTable = new HashMap<>();
 	protected static final String CONDITION = "IF_";
 	protected static final String ITERATION = "WHILE_";
 	protected static final String CONDITION_END = "ENDIF_";
@@ -66,7 +78,16 @@ public abstract class AbstractMergeEngine<T extends Image> {
 
 	protected String name;
 
+	private TemplateCache templateCache;
+	private PreprocessingMode preprocessingMode = PreprocessingMode.DOM;
+	private Locale sortLocale;
+	private int externalSortThreshold;
+	private boolean mergeSourceCaching;
+	private boolean asyncDataResolution;
+	private Executor dataResolutionExecutor;
+
 	private static final Log LOG = LogFactory.getLog(AbstractMergeEngine.class);
+	private static final String REPORT_CDATA_EVENT = "http://java.sun.com/xml/stream/properties/report-cdata-event";
 	/**
 	 * @param name
 	 */
@@ -83,22 +104,379 @@ public abstract class AbstractMergeEngine<T extends Image> {
 		this.fieldPrefix = fieldPrefix;
 	}
 
+	/**
+	 * @return Cache fuer geparste Vorlagen oder <code>null</code>, wenn nicht gecached wird
+	 */
+	public TemplateCache getTemplateCache() {
+
+		return this.templateCache;
+	}
+
+	/**
+	 * Standardmaessig wird nicht gecached. Ein Cache haelt pro Vorlage deren Inhalt und den geparsten Baum im Speicher,
+	 * bis sie verdraengt wird; er kann auch von mehreren Engines gemeinsam verwendet werden.
+	 *
+	 * @param templateCache Cache fuer geparste Vorlagen, <code>null</code> um das Caching auszuschalten
+	 */
+	public void setTemplateCache(TemplateCache templateCache) {
+
+		this.templateCache = templateCache;
+	}
+
+	/**
+	 * @return Art der Aufbereitung der XML-Bestandteile beim Parsen einer Vorlage
+	 */
+	public PreprocessingMode getPreprocessingMode() {
+
+		return this.preprocessingMode;
+	}
+
+	/**
+	 * Standardmaessig wird {@link PreprocessingMode#DOM} verwendet. Fuer grosse Vorlagen kann mit
+	 * {@link PreprocessingMode#STREAMING} der Speicherbedarf beim Parsen stark reduziert werden.
+	 *
+	 * @param preprocessingMode Art der Aufbereitung der XML-Bestandteile
+	 */
+	public void setPreprocessingMode(PreprocessingMode preprocessingMode) {
+
+		this.preprocessingMode = preprocessingMode;
+	}
+
+	/**
+	 * @return Sprache fuer den Vergleich von Texten in sortierten Iterationen oder <code>null</code>
+	 */
+	public Locale getSortLocale() {
+
+		return this.sortLocale;
+	}
+
+	/**
+	 * Standardmaessig werden Texte in sortierten Iterationen zeichenweise verglichen (z.B. "Z" vor "a").
+	 * Mit einer Sprache wird gemaess deren Regeln sortiert.
+	 *
+	 * @param sortLocale Sprache fuer den Vergleich von Texten, <code>null</code> fuer einen zeichenweisen Vergleich
+	 */
+	public void setSortLocale(Locale sortLocale) {
+
+		this.sortLocale = sortLocale;
+	}
+
+	/**
+	 * @return ab dieser Anzahl Elemente werden sortierte Iterationen mit Zwischenablage auf der Festplatte sortiert, 0
+	 *         wenn immer im Speicher sortiert wird
+	 */
+	public int getExternalSortThreshold() {
+
+		return this.externalSortThreshold;
+	}
+
+	/**
+	 * Standardmaessig werden sortierte Iterationen vollstaendig im Speicher sortiert. Fuer sehr grosse Iterationen (z.B.
+	 * Millionen von Datensaetzen) koennen die Sortierwerte in Laeufen von <code>externalSortThreshold</code> Elementen
+	 * in temporaere Dateien ausgelagert werden. Die Sortierwerte muessen dann serialisierbar sein. Die Elemente werden
+	 * nicht gehalten, sondern beim Ausgeben blockweise anhand ihrer Position erneut ueber
+	 * {@link MergeSource#whileIterator(MergeContext, String)} abgefragt; die Iteration muss dabei jedes Mal dieselben
+	 * Elemente in derselben Reihenfolge liefern.
+	 *
+	 * @param externalSortThreshold Anzahl Elemente pro Lauf, 0 um immer im Speicher zu sortieren
+	 */
+	public void setExternalSortThreshold(int externalSortThreshold) {
+
+		if (externalSortThreshold < 0) {
+			throw new IllegalArgumentException("externalSortThreshold must not be negative");
+		}
+		this.externalSortThreshold = externalSortThreshold;
+	}
+
+	/**
+	 * @return <code>true</code> wenn die Resultate der MergeSourcen pro Dokument gemerkt werden
+	 */
+	public boolean isMergeSourceCaching() {
+
+		return this.mergeSourceCaching;
+	}
+
+	/**
+	 * Standardmaessig wird die MergeSource bei jeder Verwendung eines Keys neu gefragt. Eingeschaltet wird sie pro
+	 * Dokument mit einer {@link CachingMergeSource} dekoriert, die sich alle Resultate fuer die Dauer des Merges merkt.
+	 * Die Resultate duerfen sich dann waehrend eines Merges nicht aendern.
+	 *
+	 * @param mergeSourceCaching <code>true</code> um die Resultate der MergeSourcen pro Dokument zu merken
+	 */
+	public void setMergeSourceCaching(boolean mergeSourceCaching) {
+
+		this.mergeSourceCaching = mergeSourceCaching;
+	}
+
+	/**
+	 * @return <code>true</code> wenn die Felder ausserhalb von Iterationen vor dem Merge gleichzeitig abgefragt werden
+	 */
+	public boolean isAsyncDataResolution() {
+
+		return this.asyncDataResolution;
+	}
+
+	/**
+	 * Standardmaessig werden die Felder waehrend der Ausgabe nacheinander abgefragt. Eingeschaltet werden alle Felder
+	 * ausserhalb von Iterationen vor dem Merge eines Dokuments ueber
+	 * {@link MergeSource#getDataAsync(MergeContext, String)} abgefragt und wie bei
+	 * {@link #setMergeSourceCaching(boolean)} gemerkt. Die Ausgabe erfolgt danach in unveraenderter Reihenfolge. Felder
+	 * in nicht erfuellten Bedingungen werden dabei ebenfalls abgefragt.
+	 * <p>
+	 * Gleichzeitig laufen die Abfragen nur, wenn die MergeSource <code>getDataAsync</code> selbst asynchron
+	 * implementiert oder ein {@link #setDataResolutionExecutor(Executor)} gesetzt ist. Sonst werden die Felder
+	 * nacheinander abgefragt.
+	 *
+	 * @param asyncDataResolution <code>true</code> um die Felder vor dem Merge gleichzeitig abzufragen
+	 */
+	public void setAsyncDataResolution(boolean asyncDataResolution) {
+
+		this.asyncDataResolution = asyncDataResolution;
+	}
+
+	/**
+	 * @return Executor fuer die Abfrage der Felder bei {@link #setAsyncDataResolution(boolean)} oder <code>null</code>
+	 */
+	public Executor getDataResolutionExecutor() {
+
+		return this.dataResolutionExecutor;
+	}
+
+	/**
+	 * Mit {@link #setAsyncDataResolution(boolean)} wird jedes Feld auf diesem Executor mit einem eigenen
+	 * {@link MergeContext} ueber {@link MergeSource#getDataAsync(MergeContext, String)} abgefragt, die Abfragen laufen
+	 * damit auch fuer MergeSourcen mit synchronem <code>getData</code> (z.B. {@link BeanMergeSource}) gleichzeitig.
+	 * Die MergeSource muss dann gleichzeitige Aufrufe von <code>getData</code> erlauben und darf die
+	 * {@link MergeSession} des Kontexts nur lesen. Der Executor wird nicht beendet.
+	 *
+	 * @param dataResolutionExecutor Executor fuer die Abfrage der Felder, <code>null</code> um
+	 *            <code>getDataAsync</code> direkt aufzurufen
+	 */
+	public void setDataResolutionExecutor(Executor dataResolutionExecutor) {
+
+		this.dataResolutionExecutor = dataResolutionExecutor;
+	}
+
 	private void initKeyTranslationTable() {
-		this.keyTranslationTable = new HashMap<>();
 		this.keyTranslationTable.put("_FMT0DP", "_FMT#,##0");
 		this.keyTranslationTable.put("_FMT1DP", "_FMT#,##0.0");
 		this.keyTranslationTable.put("_FMT2DP", "_FMT#,##0.00");
 	}
 
 	/**
+	 * Erstellt den Zustand fuer einen einzelnen Merge-Vorgang.
+	 *
+	 * @param additionalKeyTranslations zusaetzliche Uebersetzung von Keys nur fuer diesen Merge, kann
+	 *            <code>null</code> sein
+	 * @return neue Session
+	 */
+	protected MergeSession<T> createSession(Map<String, String> additionalKeyTranslations) {
+
+		MergeSession<T> session = new MergeSession<>(this.keyTranslationTable);
+		session.setSortLocale(this.sortLocale);
+		session.setExternalSortThreshold(this.externalSortThreshold);
+		session.setMergeSourceCaching(this.mergeSourceCaching);
+		session.setAsyncDataResolution(this.asyncDataResolution);
+		session.setDataResolutionExecutor(this.dataResolutionExecutor);
+		if (additionalKeyTranslations != null) {
+			session.getKeyTranslationTable().putAll(additionalKeyTranslations);
+		}
+		return session;
+	}
+
+	/**
+	 * Parst die Vorlage bzw. liefert die bereits geparste Vorlage aus dem {@link TemplateCache}, falls einer gesetzt
+	 * ist. Ohne Cache muss die zurueckgegebene Vorlage vom Aufrufer gehalten werden, um sie wiederzuverwenden.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @return geparste Vorlage, kann fuer beliebig viele Merges wiederverwendet werden
+	 * @throws DocTemplateException Fehler beim Lesen oder Parsen der Vorlage
+	 */
+	public CompiledTemplate compile(InputStream input) throws DocTemplateException {
+
+		return compile(input, null);
+	}
+
+	/**
+	 * Parst die Vorlage bzw. liefert die bereits geparste Vorlage aus dem {@link TemplateCache}, falls einer gesetzt
+	 * ist.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param keyTranslationTable zusaetzliche Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden
+	 *            koennen
+	 * @return geparste Vorlage, kann fuer beliebig viele Merges wiederverwendet werden
+	 * @throws DocTemplateException Fehler beim Lesen oder Parsen der Vorlage
+	 */
+	public CompiledTemplate compile(InputStream input, Map<String, String> keyTranslationTable) throws DocTemplateException {
+
+		return compile(createSession(keyTranslationTable), readTemplate(input));
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param template Inhalt der Vorlage
+	 * @return geparste Vorlage
+	 * @throws DocTemplateException Fehler beim Parsen der Vorlage
+	 */
+	protected CompiledTemplate compile(MergeSession<T> session, byte[] template) throws DocTemplateException {
+
+		TemplateCache cache = this.templateCache;
+		if (cache == null) {
+			return new CompiledTemplate(null, template, compileParts(session, template));
+		}
+		String key = getTemplateKey(session, template);
+		CompiledTemplate result = cache.get(key);
+		if (result == null) {
+			result = new CompiledTemplate(key, template, compileParts(session, template));
+			cache.put(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Parst alle zu mergenden XML-Bestandteile der Vorlage.
+	 *
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param template Inhalt der Vorlage
+	 * @return geparste Bestandteile pro Name des Bestandteils
+	 * @throws DocTemplateException Fehler beim Parsen der Vorlage
+	 */
+	protected abstract Map<String, BasicMergeElement> compileParts(MergeSession<T> session, byte[] template) throws DocTemplateException;
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param template Inhalt der Vorlage
+	 * @return Cache-Key aus Engine-Konfiguration und Inhalts-Hash der Vorlage
+	 * @throws DocTemplateException
+	 */
+	protected String getTemplateKey(MergeSession<T> session, byte[] template) throws DocTemplateException {
+
+		StringBuilder sb = new StringBuilder(getTemplateConfiguration(session));
+		sb.append('|');
+		try {
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(template)) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new DocTemplateException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Alle Einstellungen, welche das Parsen einer Vorlage beeinflussen, muessen hier enthalten sein, damit eine mit
+	 * anderen Einstellungen geparste Vorlage nicht aus dem Cache verwendet wird.
+	 *
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @return Beschreibung der Engine-Konfiguration
+	 */
+	protected String getTemplateConfiguration(MergeSession<T> session) {
+
+		StringBuilder sb = new StringBuilder(getClass().getName());
+		sb.append('|').append(this.fieldPrefix);
+		sb.append('|').append(this.preprocessingMode);
+		for (Map.Entry<String, String> entry : new TreeMap<>(session.getKeyTranslationTable()).entrySet()) {
+			sb.append('|').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @return Inhalt der Vorlage
+	 * @throws DocTemplateException
+	 */
+	protected static byte[] readTemplate(InputStream input) throws DocTemplateException {
+
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			int read = 0;
+			byte[] buf = new byte[8192];
+			while ((read = input.read(buf, 0, buf.length)) != -1) {
+				baos.write(buf, 0, read);
+			}
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
 	 * @param mergeSource
 	 * @param input
 	 * @param output
 	 * @throws DocTemplateException
 	 */
-	protected void mergeContent(MergeSource mergeSource, InputStream input,
+	protected void mergeContent(MergeSession<T> session, MergeSource mergeSource, InputStream input,
 			OutputStream output) throws DocTemplateException {
 
+		mergeContent(session, mergeSource, compileContent(session, input), output);
+	}
+
+	/**
+	 * Uebergibt der <code>mergeSource</code> vor dem Merge eines Dokuments alle Keys der Vorlage. Ist
+	 * {@link #setAsyncDataResolution(boolean)} eingeschaltet, werden zudem die Felder ausserhalb von Iterationen
+	 * gleichzeitig abgefragt.
+	 *
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param template geparste Vorlage
+	 * @throws DocTemplateException
+	 * @see MergeSource#prefetch(java.util.Set)
+	 */
+	protected void prefetch(MergeSession<T> session, MergeSource mergeSource, CompiledTemplate template) throws DocTemplateException {
+
+		KeyManifest manifest = template.getKeyManifest();
+		mergeSource.prefetch(manifest.getKeys());
+		if (session.isAsyncDataResolution()) {
+			MergeSource source = session.getMergeSource(mergeSource);
+			((CachingMergeSource) source).resolve(new MergeContext(source, session), manifest.getFieldKeys(), session.getDataResolutionExecutor());
+		}
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param template geparster Bestandteil der Vorlage
+	 * @param output Ergebnis
+	 * @throws DocTemplateException
+	 */
+	protected void mergeContent(MergeSession<T> session, MergeSource mergeSource, BasicMergeElement template,
+			OutputStream output) throws DocTemplateException {
+
+		MergeSource source = session.getMergeSource(mergeSource);
+		MergeContext ctx = new MergeContext(source, session);
+		template.getContent(ctx, source, output);
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param input XML-Bestandteil der Vorlage
+	 * @return geparster Bestandteil
+	 * @throws DocTemplateException
+	 */
+	protected BasicMergeElement compileContent(MergeSession<T> session, InputStream input) throws DocTemplateException {
+
+		BasicMergeElement bme;
+		if (this.preprocessingMode == PreprocessingMode.STREAMING) {
+			bme = compileContentStreaming(session, input);
+		} else {
+			bme = compileContentDom(session, input);
+		}
+		Stack<BasicMergeElement> parseStack = session.getParseStack();
+		if (parseStack.size() > 1) {
+			// Debug-Info about the failing element
+			BasicMergeElement lastFailing = parseStack.peek();
+			String errorMessage = "last failing tag is " + lastFailing.toString();
+			LOG.error("There is an unmatched tag on the stack. The template has an invalid structure: " + errorMessage);
+			throw new DocTemplateException("error.template.invalid.structure", errorMessage);
+		}
+		return bme;
+	}
+
+	private BasicMergeElement compileContentDom(MergeSession<T> session, InputStream input) throws DocTemplateException {
+
 		try (InputStreamRemainingOpen is = new InputStreamRemainingOpen(input)) {
 			// XML Verarbeitung
 			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -107,26 +485,14 @@ public abstract class AbstractMergeEngine<T extends Image> {
 			Document doc = builder.parse(is);
 			Document result = builder.newDocument();
 			result.setXmlStandalone(true);
-			preProcess(result, doc, result);
+			preProcess(session, result, doc, result);
 			StringWriter writer = new StringWriter();
 			Transformer transformer = TransformerFactory.newInstance().newTransformer();
 			transformer.transform(new DOMSource(result), new StreamResult(writer));
 			// Struktur parsen
-			BasicMergeElement bme = parseInit();
-
-			parseTemplate(new StringBuffer(writer.toString()));
-			if (this.parseStack.size() > 1) {
-				// Debug-Info about the failing element
-				BasicMergeElement lastFailing = this.parseStack.peek();
-				String errorMessage = "last failing tag is " + lastFailing.toString();
-				LOG.error("There is an unmatched tag on the stack. The template has an invalid structure: " + errorMessage);
-				throw new DocTemplateException("error.template.invalid.structure", errorMessage);
-			}
-			// Ergebnis erstellen
-			bme.getContent(new MergeContext(mergeSource), mergeSource, output);
-		}
-		catch (DocTemplateException sfe) {
-			throw sfe;
+			BasicMergeElement bme = parseInit(session);
+			parseTemplate(session, writer.toString());
+			return bme;
 		}
 		catch (IOException | SAXException | ParserConfigurationException
 				| TransformerException | TransformerFactoryConfigurationError e) {
@@ -134,48 +500,88 @@ public abstract class AbstractMergeEngine<T extends Image> {
 		}
 	}
 
+	private BasicMergeElement compileContentStreaming(MergeSession<T> session, InputStream input) throws DocTemplateException {
+
+		XMLStreamReader reader = null;
+		try (InputStreamRemainingOpen is = new InputStreamRemainingOpen(input)) {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			if (factory.isPropertySupported(REPORT_CDATA_EVENT)) {
+				factory.setProperty(REPORT_CDATA_EVENT, Boolean.TRUE);
+			}
+			reader = factory.createXMLStreamReader(is);
+			BasicMergeElement bme = parseInit(session);
+			TemplateWriter<T> writer = new TemplateWriter<>(this, session);
+			preProcess(session, reader, writer);
+			writer.close();
+			return bme;
+		}
+		catch (IOException | XMLStreamException e) {
+			throw new DocTemplateException(e);
+		}
+		finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					LOG.debug("could not close reader", e);
+				}
+			}
+		}
+	}
+
 	/**
-	 * @param sb
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param template vorverarbeitete Vorlage
 	 * @throws DocTemplateException
 	 */
-	protected void parseTemplate(StringBuffer sb) throws DocTemplateException {
+	protected void parseTemplate(MergeSession<T> session, String template) throws DocTemplateException {
 
-		int pos = getInternalBookmarkStart(sb);
-		while (pos >= 0) {
-			this.parseStack.peek().addMergeElement(new StaticMergeElement(
-					getStaticElementContent(sb.substring(0, pos))));
-			sb.delete(0, pos + getInternalBookmarkStartLength());
-			int end = getInternalBookmarkEnd(sb);
-			if (end < 0) {
-				throw new DocTemplateException("error.template.invalid.structure");
-			}
-			String key = sb.substring(0, end);
-			key = StringEscapeUtils.unescapeXml(key);
+		String remainder = parseBookmarks(session, template);
+		StaticMergeElement sme = new StaticMergeElement(remainder);
+		session.getParseStack().peek().addMergeElement(sme);
+	}
+
+	/**
+	 * Erstellt die Merge-Elemente fuer alle vollstaendigen Bookmarks und den statischen Inhalt davor.
+	 *
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param template vorverarbeitete Vorlage bzw. vorverarbeiteter Abschnitt der Vorlage
+	 * @return Rest nach dem letzten Bookmark
+	 * @throws DocTemplateException
+	 */
+	String parseBookmarks(MergeSession<T> session, String template) throws DocTemplateException {
+
+		Stack<BasicMergeElement> parseStack = session.getParseStack();
+		BookmarkScanner scanner = new BookmarkScanner(template, getInternalBookmarkStartMarkers(),
+				getInternalBookmarkEndMarkers());
+		while (scanner.next()) {
+			parseStack.peek().addMergeElement(new StaticMergeElement(
+					getStaticElementContent(scanner.getStaticContent())));
+			String key = StringEscapeUtils.unescapeXml(scanner.getBookmark());
 			if (key.startsWith(fieldPrefix)) {
 				key = key.substring(fieldPrefix.length());
-				XmlBasedFieldMergeElement<?> fme = getFieldMergeElement(translate(key),
-						getImageHandler());
-				this.parseStack.peek().addMergeElement(fme);
+				XmlBasedFieldMergeElement<?> fme = getFieldMergeElement(session, session.translate(key));
+				parseStack.peek().addMergeElement(fme);
 			}
 			else if (key.startsWith(CONDITION)) {
 				key = key.substring(CONDITION.length());
 				ConditionMergeElement cme = new ConditionMergeElement(this.name,
-						translate(key));
-				this.parseStack.peek().addMergeElement(cme);
-				this.parseStack.push(cme);
+						session.translate(key));
+				parseStack.peek().addMergeElement(cme);
+				parseStack.push(cme);
 			}
 			else if (key.startsWith(ITERATION)) {
 				key = key.substring(ITERATION.length());
 				IterationMergeElement ime = new IterationMergeElement(this.name,
-						translate(key));
-				this.parseStack.peek().addMergeElement(ime);
-				this.parseStack.push(ime);
+						session.translate(key));
+				parseStack.peek().addMergeElement(ime);
+				parseStack.push(ime);
 			}
 			else if (key.startsWith(SORTFIELD_PREFIX)) {
 				key = key.substring(SORTFIELD_PREFIX.length());
-				Object ime = this.parseStack.peek();
+				Object ime = parseStack.peek();
 				if (ime instanceof IterationMergeElement) {
-					((IterationMergeElement) ime).addSortFieldKey(translate(key));
+					((IterationMergeElement) ime).addSortFieldKey(session.translate(key));
 				}
 				else {
 					log.warn(
@@ -183,8 +589,8 @@ public abstract class AbstractMergeEngine<T extends Image> {
 				}
 			}
 			else if (key.startsWith(CONDITION_END) || key.startsWith(ITERATION_END)) {
-				if (this.parseStack.size() > 1) {
-					this.parseStack.pop();
+				if (parseStack.size() > 1) {
+					parseStack.pop();
 				}
 				else {
 					LOG.error("Encountered an ending if/whilte tag but there is no such open tag left on the stack " + key );
@@ -194,93 +600,101 @@ public abstract class AbstractMergeEngine<T extends Image> {
 			else {
 				throw new DocTemplateException("invalid merge command key: " + key);
 			}
-			sb.delete(0, end + getInternalBookmarkEndLength());
-			pos = getInternalBookmarkStart(sb);
 		}
-		StaticMergeElement sme = new StaticMergeElement(sb.toString());
-		this.parseStack.peek().addMergeElement(sme);
+		return scanner.getRemainder();
 	}
 
 	/**
-	 * @param sb Dokumentvorlage als String
-	 * @return position des aus dem Preprocessing eingefuegten Start-Tags
+	 * @return aus dem Preprocessing eingefuegte Start-Tags
 	 */
-	protected int getInternalBookmarkStart(final StringBuffer sb) {
-		return sb.indexOf(INTERNAL_BOOKMARK_XML_START);
+	protected String[] getInternalBookmarkStartMarkers() {
+		return new String[] { INTERNAL_BOOKMARK_XML_START };
 	}
 
 	/**
-	 * @return Laenge des aus dem Preprocessing eingefuegten Start-Tags
+	 * @return aus dem Preprocessing eingefuegte End-Tags, in derselben Reihenfolge wie
+	 *         {@link #getInternalBookmarkStartMarkers()}
 	 */
-	protected int getInternalBookmarkStartLength() {
-		return INTERNAL_BOOKMARK_XML_START.length();
+	protected String[] getInternalBookmarkEndMarkers() {
+		return new String[] { INTERNAL_BOOKMARK_XML_END };
 	}
 
 	/**
-	 * @param sb Dokumentvorlage als String
-	 * @return position des aus dem Preprocessing eingefuegten End-Tags
+	 * @return ImageHandler der Engine oder <code>null</code>
+	 * @deprecated Der ImageHandler gehoert zum einzelnen Merge-Vorgang, vgl. {@link MergeSession#getImageHandler()}.
+	 *             Liefert nur noch bei Engines mit einem zustandslosen ImageHandler einen Wert.
 	 */
-	protected int getInternalBookmarkEnd(final StringBuffer sb) {
-		return sb.indexOf(INTERNAL_BOOKMARK_XML_END);
-	}
+	@Deprecated
+	public ImageHandler<T> getImageHandler() {
 
-	/**
-	 * @return Laenge des aus dem Preprocessing eingefuegten End-Tags
-	 */
-	protected int getInternalBookmarkEndLength() {
-		return INTERNAL_BOOKMARK_XML_END.length();
+		return null;
 	}
 
-	/**
-	 * @return
-	 */
-	public abstract ImageHandler<T> getImageHandler();
-
 	protected String getStaticElementContent(String value) {
 		return value;
 	}
 
 	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
 	 * @param key
-	 * @param imageHandler
 	 * @return
 	 */
-	protected XmlBasedFieldMergeElement<T> getFieldMergeElement(String key,
-			ImageHandler<T> imageHandler) {
-		return new XmlBasedFieldMergeElement<>(this.name, key, this.images, imageHandler);
+	protected XmlBasedFieldMergeElement<T> getFieldMergeElement(MergeSession<T> session, String key) {
+		return new XmlBasedFieldMergeElement<>(this.name, key);
 	}
 
 	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
 	 * @param doc
 	 * @param src
 	 * @param dest
 	 * @throws DocTemplateException
 	 */
-	protected abstract void preProcess(Document doc, Node src, Node dest)
+	protected abstract void preProcess(MergeSession<T> session, Document doc, Node src, Node dest)
 			throws DocTemplateException;
 
 	/**
+	 * Aufbereitung beim {@link PreprocessingMode#STREAMING}: liest alle Events und schreibt sie mit eingefuegten
+	 * Bookmarks in den Writer. Muss von Engines, die das Streaming unterstuetzen, ueberschrieben werden.
+	 *
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param reader Reader auf dem XML-Bestandteil der Vorlage, steht auf START_DOCUMENT
+	 * @param writer Ziel der aufbereiteten Vorlage
+	 * @throws XMLStreamException Fehler beim Lesen der Vorlage
+	 * @throws DocTemplateException
+	 */
+	protected void preProcess(MergeSession<T> session, XMLStreamReader reader, TemplateWriter<T> writer)
+			throws XMLStreamException, DocTemplateException {
+
+		throw new DocTemplateException("error.preprocessing.mode.unsupported", getClass().getName(),
+				PreprocessingMode.STREAMING);
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
 	 * @return
 	 */
-	protected BasicMergeElement parseInit() {
+	protected BasicMergeElement parseInit(MergeSession<T> session) {
 
 		BasicMergeElement bme = new BasicMergeElement();
-		this.parseStack = new Stack<>();
-		this.parseStack.push(bme);
+		Stack<BasicMergeElement> parseStack = session.getParseStack();
+		parseStack.clear();
+		parseStack.push(bme);
 		return bme;
 	}
 
 	/**
 	 * @param key
-	 * @return
+	 * @return key mit den Uebersetzungen der Engine
+	 * @deprecated Zusaetzliche Uebersetzungen einzelner Merges werden nicht beruecksichtigt, stattdessen
+	 *             {@link MergeSession#translate(String)} verwenden.
 	 */
+	@Deprecated
 	protected String translate(final String key) {
 
 		String result = key;
-		if (this.keyTranslationTable != null) {
-			for (Map.Entry<String, String> entry : this.keyTranslationTable.entrySet()) {
-				result = result.replace(entry.getKey(), entry.getValue());
-			}
+		for (Map.Entry<String, String> entry : this.keyTranslationTable.entrySet()) {
+			result = result.replace(entry.getKey(), entry.getValue());
 		}
 		return result;
 	}
@@ -38,6 +38,20 @@ public class BasicMergeElement {
 		this.mergeElements.add(mergeElement);
 	}
 
+	/**
+	 * Sammelt die Keys, die dieses Element und seine Unterelemente bei einer {@link MergeSource} abfragen koennen.
+	 *
+	 * @param manifest Keys der aktuellen Stufe
+	 */
+	public void collectKeys(KeyManifest manifest) {
+
+		if (this.mergeElements != null) {
+			for (BasicMergeElement bme : this.mergeElements) {
+				bme.collectKeys(manifest);
+			}
+		}
+	}
+
 	/**
 	 * Liefert das Resultat eines Merge-Vorgangs.
 	 *
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Konfiguration und Ablauf der Massenverarbeitung: aus einer Vorlage wird fuer jede {@link MergeSource} ein Dokument
+ * erzeugt. Die Dokumente werden parallel auf dem konfigurierten {@link Executor} erzeugt, hoechstens
+ * <code>maxInFlight</code> Dokumente sind gleichzeitig in Arbeit oder warten auf die Auslieferung. Der
+ * {@link DocumentSink} wird im aufrufenden Thread bedient, in der Reihenfolge der Eingabe oder in der Reihenfolge der
+ * Fertigstellung.
+ * <p>
+ * Beim ersten Fehler werden keine weiteren Dokumente mehr gestartet, die laufenden werden abgewartet und der Fehler
+ * wird weitergegeben. Instanzen sind unveraenderlich und koennen fuer mehrere Verarbeitungen verwendet werden.
+ */
+public final class BatchMerge {
+
+	private final Executor executor;
+	private final int maxInFlight;
+	private final boolean ordered;
+
+	/**
+	 * Erzeugt die Dokumente auf <code>executor</code>, in der Reihenfolge der Eingabe, mit hoechstens zwei Dokumenten
+	 * pro Prozessor in Arbeit.
+	 *
+	 * @param executor fuehrt die einzelnen Merges aus
+	 */
+	public BatchMerge(Executor executor) {
+
+		this(executor, 2 * Runtime.getRuntime().availableProcessors(), true);
+	}
+
+	/**
+	 * @param executor fuehrt die einzelnen Merges aus
+	 * @param maxInFlight maximale Anzahl Dokumente, die gleichzeitig in Arbeit sind oder auf die Auslieferung warten
+	 * @param ordered <code>true</code> wenn die Dokumente in der Reihenfolge der Eingabe ausgeliefert werden sollen
+	 */
+	public BatchMerge(Executor executor, int maxInFlight, boolean ordered) {
+
+		if (executor == null || maxInFlight < 1) {
+			throw new IllegalArgumentException("executor required and maxInFlight must be positive");
+		}
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Erzeugung eines einzelnen Dokuments.
+	 */
+	@FunctionalInterface
+	public interface Merger {
+
+		/**
+		 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+		 * @return Ergebnisdokument
+		 * @throws DocTemplateException
+		 */
+		byte[] merge(MergeSource mergeSource) throws DocTemplateException;
+	}
+
+	/**
+	 * Erzeugt fuer jede <code>mergeSource</code> ein Dokument und liefert es an <code>sink</code>.
+	 *
+	 * @param mergeSources Quellen der Dokumente, werden nur im aufrufenden Thread gelesen
+	 * @param merger erzeugt ein einzelnes Dokument, wird parallel aufgerufen
+	 * @param sink Empfaenger der Dokumente
+	 * @throws DocTemplateException erster Fehler eines Merges oder des <code>sink</code>
+	 */
+	public void run(Iterator<? extends MergeSource> mergeSources, Merger merger, DocumentSink sink) throws DocTemplateException {
+
+		CompletionService<Result> completionService = new ExecutorCompletionService<>(this.executor);
+		Map<Long, Result> completed = new HashMap<>();
+		long submitted = 0, finished = 0, delivered = 0;
+		try {
+			while (mergeSources.hasNext() || finished < submitted) {
+				if (mergeSources.hasNext() && submitted - delivered < this.maxInFlight) {
+					final long index = submitted;
+					final MergeSource mergeSource = mergeSources.next();
+					completionService.submit(() -> new Result(index, mergeSource, merger.merge(mergeSource)));
+					submitted++;
+					continue;
+				}
+				Future<Result> future = take(completionService);
+				finished++;
+				Result result = getResult(future);
+				if (!this.ordered) {
+					sink.accept(result.index, result.mergeSource, result.document);
+					delivered++;
+					continue;
+				}
+				completed.put(result.index, result);
+				while ((result = completed.remove(delivered)) != null) {
+					sink.accept(result.index, result.mergeSource, result.document);
+					delivered++;
+				}
+			}
+		} catch (DocTemplateException | RuntimeException | Error e) {
+			// laufende Merges abwarten, damit nach der Rueckkehr nichts mehr auf der Vorlage oder den Quellen arbeitet
+			for (; finished < submitted; finished++) {
+				try {
+					completionService.take();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			throw e;
+		}
+	}
+
+	private static Future<Result> take(CompletionService<Result> completionService) throws DocTemplateException {
+
+		try {
+			return completionService.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocTemplateException(e);
+		}
+	}
+
+	private static Result getResult(Future<Result> future) throws DocTemplateException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DocTemplateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DocTemplateException) {
+				throw (DocTemplateException) cause;
+			}
+			throw new DocTemplateException(cause);
+		}
+	}
+
+	private static final class Result {
+
+		private final long index;
+		private final MergeSource mergeSource;
+		private final byte[] document;
+
+		Result(long index, MergeSource mergeSource, byte[] document) {
+
+			this.index = index;
+			this.mergeSource = mergeSource;
+			this.document = document;
+		}
+	}
+}
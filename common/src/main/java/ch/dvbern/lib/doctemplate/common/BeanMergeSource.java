@@ -14,17 +14,11 @@
  */
 package ch.dvbern.lib.doctemplate.common;
 
-import java.beans.BeanInfo;
-import java.beans.IntrospectionException;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,12 +33,24 @@ public class BeanMergeSource implements MergeSource {
 
 	private static final Log log = LogFactory.getLog(BeanMergeSource.class);
 
+	/** <code>true</code> fuer Subklassen, die {@link #whileStatement(MergeContext, String)} ueberschreiben */
+	private static final ClassValue<Boolean> whileStatementOverridden = new ClassValue<Boolean>() {
+
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+
+			try {
+				return type.getMethod("whileStatement", MergeContext.class, String.class).getDeclaringClass() != BeanMergeSource.class;
+			} catch (NoSuchMethodException e) {
+				return Boolean.FALSE;
+			}
+		}
+	};
+
 	protected final Object bean;
 
 	private final String alternativePrefix;
 
-	private static final Map<Class<?>, Map<String, Method>> beanAccessMethodCache = new HashMap<>();
-
 	/**
 	 * Konstruktor.
 	 *
@@ -84,16 +90,12 @@ public class BeanMergeSource implements MergeSource {
 	@Override
 	public Object getData(MergeContext ctx, String key) throws DocTemplateException {
 
-		String fieldName = null;
-		if (this.alternativePrefix != null && key.toUpperCase().startsWith(this.alternativePrefix)) {
-			fieldName = key.substring(this.alternativePrefix.length());
-		} else if (key.toUpperCase().startsWith(BEAN_REFLECTION_PREFIX)) {
-			fieldName = key.substring(BEAN_REFLECTION_PREFIX.length());
-		} else {
+		int prefixLength = getPrefixLength(key);
+		if (prefixLength < 0) {
 			return null;
 		}
 		try {
-			return introspect(this.bean, fieldName);
+			return BeanPath.of(key, prefixLength).get(this.bean);
 		} catch (Exception e) {
 			log.warn("getData", e);
 			return e.getMessage();
@@ -122,7 +124,10 @@ public class BeanMergeSource implements MergeSource {
 		} else if (o instanceof Collection) {
 			@SuppressWarnings("rawtypes")
 			Collection c = (Collection) o;
-			result = c.size() > 0 ? Boolean.TRUE : Boolean.FALSE;
+			result = !c.isEmpty() ? Boolean.TRUE : Boolean.FALSE;
+		} else if (o instanceof Iterable) {
+			// nur das erste Element abholen, nicht alle zaehlen
+			result = ((Iterable<?>) o).iterator().hasNext() ? Boolean.TRUE : Boolean.FALSE;
 		} else if (o instanceof Number) {
 			Number n = (Number) o;
 			result = n.floatValue() != 0. ? Boolean.TRUE : Boolean.FALSE;
@@ -136,49 +141,18 @@ public class BeanMergeSource implements MergeSource {
 		return result;
 	}
 
-	private Object introspect(Object o, String fieldName) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+	/**
+	 * @return Laenge des Praefixes von <code>key</code>, auf den diese MergeSource anspricht, -1 wenn keiner passt
+	 */
+	private int getPrefixLength(String key) {
 
-		if (o == null) {
-			return "";
-		}
-		int pPos = fieldName.indexOf(".");
-		String s = pPos > 0 ? fieldName.substring(0, pPos) : fieldName;
-		Method m = getAccessMethod(o, s);
-		if (m == null) {
-			return null;
-		}
-		Object result = m.invoke(o);
-		if (pPos > 0) {
-			return introspect(result, fieldName.substring(pPos + 1));
-		}
-		if (result == null) {
-			return "";
+		if (this.alternativePrefix != null && key.regionMatches(true, 0, this.alternativePrefix, 0, this.alternativePrefix.length())) {
+			return this.alternativePrefix.length();
 		}
-		return result;
-	}
-
-	private static Method getAccessMethod(Object o, String name) {
-
-		Map<String, Method> methods = beanAccessMethodCache.get(o.getClass());
-		if (methods == null) {
-			methods = new HashMap<>();
-			try {
-				BeanInfo beanInfo = Introspector.getBeanInfo(o.getClass());
-				PropertyDescriptor[] propertyDescriptors = beanInfo.getPropertyDescriptors();
-				for (PropertyDescriptor propertyDescriptor : propertyDescriptors) {
-					Method readMethod = propertyDescriptor.getReadMethod();
-					if (readMethod != null) {
-						methods.put(propertyDescriptor.getName().toLowerCase(), readMethod);
-					}
-				}
-			} catch (IntrospectionException e) {
-				log.warn("Introspection Exception", e);
-			}
-			synchronized (beanAccessMethodCache) {
-				beanAccessMethodCache.put(o.getClass(), methods);
-			}
+		if (key.regionMatches(true, 0, BEAN_REFLECTION_PREFIX, 0, BEAN_REFLECTION_PREFIX.length())) {
+			return BEAN_REFLECTION_PREFIX.length();
 		}
-		return methods.get(name.toLowerCase());
+		return -1;
 	}
 
 	/*
@@ -190,31 +164,69 @@ public class BeanMergeSource implements MergeSource {
 	@Override
 	public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
 
-		String fieldName = null;
-		if (this.alternativePrefix != null && key.toUpperCase().startsWith(this.alternativePrefix)) {
-			fieldName = key.substring(this.alternativePrefix.length());
-		} else if (key.toUpperCase().startsWith(BEAN_REFLECTION_PREFIX)) {
-			fieldName = key.substring(BEAN_REFLECTION_PREFIX.length());
-		} else {
+		Iterator<MergeSource> i = iterate(key);
+		if (i == null) {
+			return null;
+		}
+		List<MergeSource> result = new LinkedList<>();
+		i.forEachRemaining(result::add);
+		return result;
+	}
+
+	/**
+	 * Die Elemente werden erst beim Durchlaufen einzeln in eine {@link BeanMergeSource} verpackt. Ueberschreibt eine
+	 * Subklasse {@link #whileStatement(MergeContext, String)}, wird weiterhin deren Liste verwendet.
+	 *
+	 * @see ch.dvbern.lib.doctemplate.common.MergeSource#whileIterator(ch.dvbern.lib.doctemplate.common.MergeContext,
+	 * java.lang.String)
+	 */
+	@Override
+	public Iterator<MergeSource> whileIterator(MergeContext ctx, String key) throws DocTemplateException {
+
+		if (whileStatementOverridden.get(getClass())) {
+			List<MergeSource> result = whileStatement(ctx, key);
+			return result != null ? result.iterator() : null;
+		}
+		return iterate(key);
+	}
+
+	/**
+	 * @return Elemente der Iteration, <code>null</code> wenn diese MergeSource nicht auf <code>key</code> anspricht
+	 */
+	private Iterator<MergeSource> iterate(String key) {
+
+		int prefixLength = getPrefixLength(key);
+		if (prefixLength < 0) {
 			return null;
 		}
 		try {
-			Object o = introspect(this.bean, fieldName);
+			Object o = BeanPath.of(key, prefixLength).get(this.bean);
 			if (o == null) {
-				return new LinkedList<>();
+				return Collections.emptyIterator();
 			} else if (o instanceof Iterable) {
-				List<MergeSource> result = new LinkedList<>();
-				for (Object entry : (Iterable<?>) o) {
-					result.add(new BeanMergeSource(entry, key + "."));
-				}
-				return result;
+				final Iterator<?> entries = ((Iterable<?>) o).iterator();
+				final String alternativePrefix = key + ".";
+				return new Iterator<MergeSource>() {
+
+					@Override
+					public boolean hasNext() {
+
+						return entries.hasNext();
+					}
+
+					@Override
+					public MergeSource next() {
+
+						return new BeanMergeSource(entries.next(), alternativePrefix);
+					}
+				};
 			} else {
 				log.warn(o + " is not instance of Iterable");
-				return new LinkedList<>();
+				return Collections.emptyIterator();
 			}
 		} catch (Exception e) {
 			log.warn("whileStatement", e);
-			return new LinkedList<>();
+			return Collections.emptyIterator();
 		}
 	}
 }
\ No newline at end of file
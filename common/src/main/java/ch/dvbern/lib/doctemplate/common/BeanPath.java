@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.beans.IntrospectionException;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ch.dvbern.lib.doctemplate.util.PropertyUtils;
+
+/**
+ * Vorkompilierter Property-Pfad einer {@link BeanMergeSource}, z.B. "adresse.ort.plz". Der Pfad wird einmal zerlegt,
+ * pro Segment wird der Getter der zuletzt gesehenen Klasse als {@link MethodHandle} gehalten. Wiederholte Zugriffe
+ * kosten damit etwa einen direkten Getter-Aufruf und erzeugen keine Zwischen-Strings. Instanzen sind threadsafe.
+ * <p>
+ * Die Getter einer Klasse werden in einem {@link ClassValue} gehalten, die Segmente referenzieren sie nur schwach.
+ * Der globale Cache haelt damit keine Anwendungsklassen und deren Classloader fest.
+ */
+final class BeanPath {
+
+	/** maximale Anzahl Pfade im Cache, weitere Pfade werden bei jedem Aufruf neu zerlegt */
+	private static final int CACHE_LIMIT = 10000;
+	private static final ConcurrentMap<String, BeanPath> CACHE = new ConcurrentHashMap<>();
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private static final Log log = LogFactory.getLog(BeanPath.class);
+
+	private static final ClassValue<Map<String, Accessor>> beanAccessorCache = new ClassValue<Map<String, Accessor>>() {
+
+		@Override
+		protected Map<String, Accessor> computeValue(Class<?> clazz) {
+
+			Map<String, Accessor> accessors = new HashMap<>();
+			try {
+				for (PropertyDescriptor propertyDescriptor : PropertyUtils.getPropertyDescriptors(clazz).values()) {
+					Method readMethod = propertyDescriptor.getReadMethod();
+					if (readMethod != null) {
+						accessors.put(propertyDescriptor.getName().toLowerCase(), new Accessor(clazz, readMethod));
+					}
+				}
+			} catch (IntrospectionException e) {
+				log.warn("Introspection Exception", e);
+			}
+			return Collections.unmodifiableMap(accessors);
+		}
+	};
+
+	private final int prefixLength;
+	private final Segment[] segments;
+
+	private BeanPath(String key, int prefixLength) {
+
+		this.prefixLength = prefixLength;
+		// wie bisher: ein Punkt an erster Stelle trennt nicht, der Rest gilt dann als ein Property-Name
+		List<Segment> result = new ArrayList<>();
+		int start = prefixLength;
+		int pPos;
+		while ((pPos = key.indexOf('.', start)) > start) {
+			result.add(new Segment(key.substring(start, pPos)));
+			start = pPos + 1;
+		}
+		result.add(new Segment(key.substring(start)));
+		this.segments = result.toArray(new Segment[result.size()]);
+	}
+
+	/**
+	 * @param key vollstaendiger Key inkl. Praefix, z.B. "BRX_adresse.ort"
+	 * @param prefixLength Laenge des Praefixes, der nicht zum Pfad gehoert
+	 * @return kompilierter Pfad
+	 */
+	static BeanPath of(String key, int prefixLength) {
+
+		BeanPath result = CACHE.get(key);
+		if (result == null || result.prefixLength != prefixLength) {
+			result = new BeanPath(key, prefixLength);
+			if (CACHE.size() < CACHE_LIMIT || CACHE.containsKey(key)) {
+				CACHE.put(key, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param bean Objekt, auf das der Pfad angewendet wird
+	 * @return Wert des Pfades, "" wenn ein Zwischenwert oder der Wert <code>null</code> ist, <code>null</code> wenn
+	 *         ein Property nicht existiert
+	 * @throws IllegalAccessException wenn ein Getter nicht aufgerufen werden darf
+	 * @throws InvocationTargetException wenn ein Getter eine Exception wirft
+	 */
+	Object get(Object bean) throws IllegalAccessException, InvocationTargetException {
+
+		Object o = bean;
+		for (Segment segment : this.segments) {
+			if (o == null) {
+				return "";
+			}
+			Accessor accessor = segment.getAccessor(o.getClass());
+			if (accessor == null) {
+				return null;
+			}
+			o = accessor.get(o);
+		}
+		return o == null ? "" : o;
+	}
+
+	/**
+	 * Ein Segment des Pfades mit dem Getter der zuletzt gesehenen Klasse.
+	 */
+	private static final class Segment {
+
+		private final String name;
+		private volatile WeakReference<Accessor> cached = new WeakReference<>(null);
+
+		Segment(String name) {
+
+			this.name = name.toLowerCase();
+		}
+
+		Accessor getAccessor(Class<?> clazz) {
+
+			Accessor accessor = this.cached.get();
+			if (accessor != null && accessor.clazz == clazz) {
+				return accessor;
+			}
+			accessor = beanAccessorCache.get(clazz).get(this.name);
+			if (accessor != null) {
+				this.cached = new WeakReference<>(accessor);
+			}
+			return accessor;
+		}
+	}
+
+	/**
+	 * Getter eines Properties. Wird, wo moeglich, als {@link MethodHandle} aufgerufen, sonst wie bisher ueber
+	 * {@link Method#invoke(Object, Object...)}.
+	 */
+	private static final class Accessor {
+
+		/** Klasse des Beans, nicht unbedingt die deklarierende Klasse des Getters */
+		private final Class<?> clazz;
+		private final Method method;
+		private final MethodHandle handle;
+
+		Accessor(Class<?> clazz, Method method) {
+
+			this.clazz = clazz;
+			this.method = method;
+			this.handle = unreflect(method);
+		}
+
+		private static MethodHandle unreflect(Method method) {
+
+			try {
+				return MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE);
+			} catch (IllegalAccessException e) {
+				// z.B. oeffentliche Methode einer nicht oeffentlichen Klasse
+				return null;
+			}
+		}
+
+		Object get(Object o) throws IllegalAccessException, InvocationTargetException {
+
+			if (this.handle == null) {
+				return this.method.invoke(o);
+			}
+			try {
+				return (Object) this.handle.invokeExact(o);
+			} catch (Throwable t) {
+				// wie Method.invoke
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+/**
+ * Zerlegt eine vorverarbeitete Vorlage in einem einzigen Durchlauf in statische Abschnitte und die dazwischen liegenden
+ * Bookmarks. Es koennen mehrere Start-Marker angegeben werden; zu jedem Start-Marker gehoert der End-Marker mit
+ * demselben Index. Die Vorlage wird dabei nicht veraendert, es wird nur ein Cursor verschoben.
+ */
+final class BookmarkScanner {
+
+	private final String template;
+	private final String[] startMarkers;
+	private final String[] endMarkers;
+	private final String markerStartChars;
+	private int position = 0;
+	private String staticContent = null;
+	private String bookmark = null;
+
+	/**
+	 * @param template vorverarbeitete Vorlage
+	 * @param startMarkers Start-Marker der Bookmarks
+	 * @param endMarkers End-Marker der Bookmarks, in derselben Reihenfolge wie <code>startMarkers</code>
+	 */
+	BookmarkScanner(String template, String[] startMarkers, String[] endMarkers) {
+
+		if (startMarkers.length == 0 || startMarkers.length != endMarkers.length) {
+			throw new IllegalArgumentException("each start marker needs exactly one end marker");
+		}
+		this.template = template;
+		this.startMarkers = startMarkers;
+		this.endMarkers = endMarkers;
+		StringBuilder sb = new StringBuilder(startMarkers.length);
+		for (String marker : startMarkers) {
+			if (sb.indexOf(marker.substring(0, 1)) < 0) {
+				sb.append(marker.charAt(0));
+			}
+		}
+		this.markerStartChars = sb.toString();
+	}
+
+	/**
+	 * Sucht ab der aktuellen Position das naechste Bookmark.
+	 *
+	 * @return <code>true</code>, wenn ein weiteres Bookmark gefunden wurde
+	 * @throws DocTemplateException wenn zu einem Start-Marker der End-Marker fehlt
+	 */
+	boolean next() throws DocTemplateException {
+
+		int length = this.template.length();
+		for (int i = this.position; i < length; i++) {
+			if (this.markerStartChars.indexOf(this.template.charAt(i)) < 0) {
+				continue;
+			}
+			for (int m = 0; m < this.startMarkers.length; m++) {
+				if (this.template.startsWith(this.startMarkers[m], i)) {
+					int keyStart = i + this.startMarkers[m].length();
+					int end = this.template.indexOf(this.endMarkers[m], keyStart);
+					if (end < 0) {
+						throw new DocTemplateException("error.template.invalid.structure");
+					}
+					this.staticContent = this.template.substring(this.position, i);
+					this.bookmark = this.template.substring(keyStart, end);
+					this.position = end + this.endMarkers[m].length();
+					return true;
+				}
+			}
+		}
+		this.staticContent = null;
+		this.bookmark = null;
+		return false;
+	}
+
+	/**
+	 * @return statischer Inhalt vor dem zuletzt gefundenen Bookmark
+	 */
+	String getStaticContent() {
+
+		return this.staticContent;
+	}
+
+	/**
+	 * @return Inhalt des zuletzt gefundenen Bookmarks (noch XML-escaped)
+	 */
+	String getBookmark() {
+
+		return this.bookmark;
+	}
+
+	/**
+	 * @return Rest der Vorlage nach dem zuletzt gefundenen Bookmark
+	 */
+	String getRemainder() {
+
+		return this.template.substring(this.position);
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Merkt sich die Resultate einer {@link MergeSource} pro Key, auch <code>null</code>. Wird ein Key in einem Dokument
+ * mehrfach verwendet (z.B. im Inhalt und in der Kopfzeile), wird die zugrunde liegende MergeSource nur einmal gefragt.
+ * Die Elemente einer Iteration werden ebenfalls dekoriert und haben je einen eigenen Cache.
+ * <p>
+ * Innerhalb einer Iteration kann das Resultat vom aktuellen Element abhaengen (z.B. bei
+ * {@link ExtendedBeanMergeSource#ifStatement(MergeContext, String)}). Aufrufe waehrend einer Iteration werden daher nur
+ * fuer das aktuelle Element gemerkt und beim Wechsel des Elements verworfen.
+ * <p>
+ * Eine Instanz ist fuer einen einzelnen Merge-Vorgang gedacht, z.B. ueber
+ * {@link AbstractMergeEngine#setMergeSourceCaching(boolean)}, und nicht threadsafe. Exceptions werden nicht gemerkt.
+ */
+public class CachingMergeSource implements MergeSource {
+
+	/** laengere Iterationen aus {@link #whileIterator(MergeContext, String)} werden nicht gemerkt */
+	public static final int MAX_CACHED_ELEMENTS = 10000;
+
+	private static final Object NULL = new Object();
+
+	private static final Log log = LogFactory.getLog(CachingMergeSource.class);
+
+	private final MergeSource delegate;
+	private final Map<String, Object> data = new HashMap<>();
+	private final Map<String, Object> conditions = new HashMap<>();
+	private final Map<String, Object> lists = new HashMap<>();
+	/** Resultate fuer das aktuelle Element der Iteration {@link #scope} */
+	private final Map<String, Object> scopeData = new HashMap<>();
+	private final Map<String, Object> scopeConditions = new HashMap<>();
+	private final Map<String, Object> scopeLists = new HashMap<>();
+	private Object scope;
+
+	/**
+	 * @param delegate MergeSource, deren Resultate gemerkt werden
+	 */
+	public CachingMergeSource(MergeSource delegate) {
+
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @return MergeSource, deren Resultate gemerkt werden
+	 */
+	public MergeSource getDelegate() {
+
+		return this.delegate;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ch.dvbern.lib.doctemplate.common.MergeSource#getData(ch.dvbern.lib.doctemplate.common.MergeContext,
+	 * java.lang.String)
+	 */
+	@Override
+	public Object getData(MergeContext ctx, String key) throws DocTemplateException {
+
+		Map<String, Object> cache = getCache(ctx, this.data, this.scopeData);
+		Object result = cache.get(key);
+		if (result == null) {
+			result = this.delegate.getData(ctx, key);
+			cache.put(key, result != null ? result : NULL);
+			return result;
+		}
+		return result != NULL ? result : null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ch.dvbern.lib.doctemplate.common.MergeSource#ifStatement(ch.dvbern.lib.doctemplate.common.MergeContext,
+	 * java.lang.String)
+	 */
+	@Override
+	public Boolean ifStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+		Map<String, Object> cache = getCache(ctx, this.conditions, this.scopeConditions);
+		Object result = cache.get(key);
+		if (result == null) {
+			Boolean b = this.delegate.ifStatement(ctx, key);
+			cache.put(key, b != null ? b : NULL);
+			return b;
+		}
+		return result != NULL ? (Boolean) result : null;
+	}
+
+	/**
+	 * Die Elemente werden einmal dekoriert und bei jedem Aufruf in einer neuen Liste geliefert, damit Aufrufer sie z.B.
+	 * sortieren koennen.
+	 *
+	 * @see ch.dvbern.lib.doctemplate.common.MergeSource#whileStatement(ch.dvbern.lib.doctemplate.common.MergeContext,
+	 * java.lang.String)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+		Map<String, Object> cache = getCache(ctx, this.lists, this.scopeLists);
+		Object result = cache.get(key);
+		if (result == null) {
+			List<MergeSource> l = this.delegate.whileStatement(ctx, key);
+			if (l == null) {
+				cache.put(key, NULL);
+				return null;
+			}
+			List<MergeSource> wrapped = new ArrayList<>(l.size());
+			for (MergeSource mergeSource : l) {
+				wrapped.add(wrap(mergeSource));
+			}
+			cache.put(key, wrapped);
+			result = wrapped;
+		}
+		return result != NULL ? new ArrayList<>((List<MergeSource>) result) : null;
+	}
+
+	/**
+	 * Ist die Liste bereits bekannt, wird sie verwendet. Sonst werden die Elemente beim Durchlaufen dekoriert und, bis
+	 * zu {@link #MAX_CACHED_ELEMENTS} Elementen, fuer weitere Aufrufe gemerkt. Groessere Iterationen werden nicht im
+	 * Speicher gehalten.
+	 *
+	 * @see ch.dvbern.lib.doctemplate.common.MergeSource#whileIterator(ch.dvbern.lib.doctemplate.common.MergeContext,
+	 * java.lang.String)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<MergeSource> whileIterator(MergeContext ctx, String key) throws DocTemplateException {
+
+		final Map<String, Object> cache = getCache(ctx, this.lists, this.scopeLists);
+		Object cached = cache.get(key);
+		if (cached != null) {
+			return cached != NULL ? ((List<MergeSource>) cached).iterator() : null;
+		}
+		final Iterator<MergeSource> result = this.delegate.whileIterator(ctx, key);
+		if (result == null) {
+			cache.put(key, NULL);
+			return null;
+		}
+		final Object listScope = cache == this.scopeLists ? this.scope : null;
+		return new Iterator<MergeSource>() {
+
+			/** bisher gelieferte Elemente, <code>null</code> wenn die Iteration zu lang zum Merken ist */
+			private List<MergeSource> elements = new ArrayList<>();
+
+			@Override
+			public boolean hasNext() {
+
+				boolean hasNext = result.hasNext();
+				if (!hasNext && this.elements != null) {
+					// vollstaendig durchlaufen, der Scope kann inzwischen gewechselt haben
+					if (cache != CachingMergeSource.this.scopeLists || listScope == CachingMergeSource.this.scope) {
+						cache.put(key, this.elements);
+					}
+					this.elements = null;
+				}
+				return hasNext;
+			}
+
+			@Override
+			public MergeSource next() {
+
+				MergeSource mergeSource = wrap(result.next());
+				if (this.elements != null && this.elements.size() < MAX_CACHED_ELEMENTS) {
+					this.elements.add(mergeSource);
+				} else {
+					this.elements = null;
+				}
+				return mergeSource;
+			}
+		};
+	}
+
+	/**
+	 * Fragt alle <code>keys</code>, die noch nicht bekannt sind, ueber
+	 * {@link MergeSource#getDataAsync(MergeContext, String)} ab und merkt sich die Resultate.
+	 *
+	 * @param ctx Mergekontext ausserhalb von Iterationen
+	 * @param keys Keys fuer {@link #getData(MergeContext, String)}
+	 * @see #resolve(MergeContext, Collection, Executor)
+	 */
+	public void resolve(MergeContext ctx, Collection<String> keys) {
+
+		resolve(ctx, keys, null);
+	}
+
+	/**
+	 * Fragt alle <code>keys</code>, die noch nicht bekannt sind, ueber
+	 * {@link MergeSource#getDataAsync(MergeContext, String)} gleichzeitig ab und merkt sich die Resultate. Die Dauer
+	 * entspricht damit der langsamsten einzelnen Abfrage statt der Summe aller Abfragen. Fehlgeschlagene Abfragen werden
+	 * nicht gemerkt, sie werden bei der Verwendung des Keys wie bisher einzeln wiederholt.
+	 * <p>
+	 * Ohne <code>executor</code> laufen die Abfragen nur gleichzeitig, wenn die zugrunde liegende MergeSource
+	 * <code>getDataAsync</code> asynchron implementiert. Mit <code>executor</code> wird jeder Key dort mit einem eigenen
+	 * {@link MergeContext} abgefragt; die MergeSource muss dann gleichzeitige Aufrufe erlauben.
+	 *
+	 * @param ctx Mergekontext ausserhalb von Iterationen
+	 * @param keys Keys fuer {@link #getData(MergeContext, String)}
+	 * @param executor Executor fuer die Abfragen, <code>null</code> um <code>getDataAsync</code> direkt aufzurufen
+	 */
+	public void resolve(MergeContext ctx, Collection<String> keys, Executor executor) {
+
+		Map<String, CompletableFuture<Object>> futures = new LinkedHashMap<>();
+		for (String key : keys) {
+			if (!this.data.containsKey(key)) {
+				futures.put(key, executor != null ? resolveAsync(ctx, key, executor) : this.delegate.getDataAsync(ctx, key));
+			}
+		}
+		for (Map.Entry<String, CompletableFuture<Object>> entry : futures.entrySet()) {
+			try {
+				Object result = entry.getValue().join();
+				this.data.put(entry.getKey(), result != null ? result : NULL);
+			} catch (CompletionException | CancellationException e) {
+				log.debug("async resolution of " + entry.getKey() + " failed", e);
+			}
+		}
+	}
+
+	private CompletableFuture<Object> resolveAsync(MergeContext ctx, String key, Executor executor) {
+
+		// der Kontext ist nicht threadsafe, jede Abfrage erhaelt einen eigenen
+		MergeContext asyncCtx = new MergeContext(this.delegate, ctx.getSession());
+		try {
+			return CompletableFuture.supplyAsync(() -> this.delegate.getDataAsync(asyncCtx, key), executor).thenCompose(result -> result);
+		} catch (RejectedExecutionException e) {
+			log.debug("async resolution of " + key + " rejected", e);
+			return this.delegate.getDataAsync(asyncCtx, key);
+		}
+	}
+
+	@Override
+	public void prefetch(Set<String> keys) throws DocTemplateException {
+
+		this.delegate.prefetch(keys);
+	}
+
+	private static MergeSource wrap(MergeSource mergeSource) {
+
+		return mergeSource instanceof CachingMergeSource ? mergeSource : new CachingMergeSource(mergeSource);
+	}
+
+	/**
+	 * @return Cache fuer den aktuellen Scope: <code>cache</code> ausserhalb einer Iteration, sonst
+	 *         <code>scopeCache</code>, der beim Wechsel des aktuellen Elements geleert wird
+	 */
+	private Map<String, Object> getCache(MergeContext ctx, Map<String, Object> cache, Map<String, Object> scopeCache) {
+
+		MergeSource current = ctx != null ? ctx.getCurrentMergeSource() : null;
+		if (!(current instanceof IterationMergeSource)) {
+			return cache;
+		}
+		Object currentScope = ((IterationMergeSource) current).getCurrentSource();
+		if (currentScope != this.scope) {
+			this.scope = currentScope;
+			this.scopeData.clear();
+			this.scopeConditions.clear();
+			this.scopeLists.clear();
+		}
+		return scopeCache;
+	}
+}
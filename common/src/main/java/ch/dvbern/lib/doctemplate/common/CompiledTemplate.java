@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Vorgeparste Dokumentvorlage. Enthaelt pro XML-Bestandteil der Vorlage (z.B. content.xml, styles.xml,
+ * word/document.xml, Kopf- und Fusszeilen) den fertig aufgebauten {@link BasicMergeElement}-Baum, so dass ein Merge
+ * nur noch diesen Baum durchlaufen muss. Instanzen sind unveraenderlich und koennen von mehreren Threads gleichzeitig
+ * verwendet werden.
+ */
+public final class CompiledTemplate {
+
+	private final String key;
+	private final byte[] template;
+	private final Map<String, BasicMergeElement> parts;
+	private volatile ZipTemplate zipTemplate;
+	private volatile KeyManifest keyManifest;
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param key Identifikation der Vorlage (Inhalts-Hash inkl. Engine-Konfiguration), <code>null</code> wenn die
+	 *            Vorlage nicht in einem {@link TemplateCache} abgelegt wird
+	 * @param template Inhalt der Vorlage
+	 * @param parts geparste Bestandteile der Vorlage, pro Name des Bestandteils
+	 */
+	public CompiledTemplate(String key, byte[] template, Map<String, BasicMergeElement> parts) {
+
+		this.key = key;
+		this.template = template;
+		this.parts = Collections.unmodifiableMap(new LinkedHashMap<>(parts));
+	}
+
+	/**
+	 * @return Identifikation der Vorlage (Inhalts-Hash inkl. Engine-Konfiguration) oder <code>null</code>, wenn ohne
+	 *         {@link TemplateCache} geparst
+	 */
+	public String getKey() {
+
+		return this.key;
+	}
+
+	/**
+	 * @return Inhalt der Vorlage als neuer Stream
+	 */
+	public InputStream getInputStream() {
+
+		return new ByteArrayInputStream(this.template);
+	}
+
+	/**
+	 * @return Groesse der Vorlage in Bytes
+	 */
+	public int getSize() {
+
+		return this.template.length;
+	}
+
+	/**
+	 * Liefert das Inhaltsverzeichnis der Vorlage, falls es sich um ein ZIP-Archiv handelt (ODT, DOCX). Es wird beim
+	 * ersten Aufruf gelesen und danach fuer alle Merges wiederverwendet.
+	 *
+	 * @return Inhaltsverzeichnis der Vorlage
+	 * @throws DocTemplateException wenn die Vorlage kein gueltiges ZIP-Archiv ist
+	 */
+	public ZipTemplate getZipTemplate() throws DocTemplateException {
+
+		ZipTemplate result = this.zipTemplate;
+		if (result == null) {
+			result = ZipTemplate.read(this.template);
+			this.zipTemplate = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @param partName Name des Bestandteils, z.B. "content.xml"
+	 * @return geparster Bestandteil oder <code>null</code>, wenn die Vorlage keinen solchen Bestandteil enthaelt
+	 */
+	public BasicMergeElement getPart(String partName) {
+
+		return this.parts.get(partName);
+	}
+
+	/**
+	 * Liefert alle Keys, welche die Vorlage bei einer {@link MergeSource} abfragen kann, ueber alle Bestandteile. Sie
+	 * werden beim ersten Aufruf ermittelt und danach wiederverwendet.
+	 *
+	 * @return Keys der Vorlage
+	 */
+	public KeyManifest getKeyManifest() {
+
+		KeyManifest result = this.keyManifest;
+		if (result == null) {
+			result = new KeyManifest();
+			for (BasicMergeElement part : this.parts.values()) {
+				part.collectKeys(result);
+			}
+			this.keyManifest = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return Namen aller geparsten Bestandteile
+	 */
+	public Set<String> getPartNames() {
+
+		return this.parts.keySet();
+	}
+
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Vorkompilierte Bedingung eines IF_-Keys fuer {@link ExtendedBeanMergeSource}. Der Key wird einmal in einen Baum
+ * zerlegt, die Auswertung vergleicht nur noch die gelesenen Werte. Syntax (Operatoren in Grossbuchstaben, damit sie
+ * auch in Word-Textmarken verwendet werden koennen):
+ * <ul>
+ * <li><code>a_OR_b</code>, <code>a_AND_b</code> (AND bindet staerker), <code>NOT_a</code></li>
+ * <li><code>pfad_EQ_wert</code>, <code>pfad_NEQ_wert</code>: Textvergleich mit <code>toString()</code></li>
+ * <li><code>pfad_GT_wert</code>, <code>_GE_</code>, <code>_LT_</code>, <code>_LE_</code>: numerisch, wenn beide
+ * Werte Zahlen sind, sonst Textvergleich</li>
+ * <li><code>pfad_BETWEEN_von__bis</code>: wie <code>pfad_GE_von_AND_pfad_LE_bis</code></li>
+ * <li><code>pfad_IN_a__b__c</code>: Textvergleich mit einem der Werte</li>
+ * <li><code>pfad</code>: wie {@link BeanMergeSource#ifStatement(MergeContext, String)}</li>
+ * </ul>
+ * Die Operanden werden ueber die aktuelle MergeSource des Kontextes gelesen, innerhalb einer Iteration also zuerst
+ * auf der Zeile und dann auf den umgebenden MergeSources. Die Auswertung ist dreiwertig: kann ein Operand nicht
+ * aufgeloest werden, ist das Resultat <code>null</code>, ausser es steht bereits durch die anderen Operanden fest (z.B.
+ * <code>false</code> bei AND). Instanzen sind unveraenderlich und threadsafe.
+ */
+abstract class ConditionExpression {
+
+	/** maximale Anzahl Bedingungen im Cache, weitere Bedingungen werden bei jedem Aufruf neu zerlegt */
+	private static final int CACHE_LIMIT = 10000;
+	private static final ConcurrentMap<String, ConditionExpression> CACHE = new ConcurrentHashMap<>();
+
+	private static final String OR = "_OR_";
+	private static final String AND = "_AND_";
+	private static final String NOT = "NOT_";
+	private static final String LIST_SEPARATOR = "__";
+
+	/**
+	 * @param key IF_-Key ohne Praefix
+	 * @return kompilierte Bedingung
+	 * @throws DocTemplateException wenn der Key keine gueltige Bedingung ist
+	 */
+	static ConditionExpression of(String key) throws DocTemplateException {
+
+		ConditionExpression result = CACHE.get(key);
+		if (result == null) {
+			result = parseOr(key, key);
+			if (CACHE.size() < CACHE_LIMIT) {
+				CACHE.put(key, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return <code>true</code> wenn der Key keine Operatoren enthaelt
+	 */
+	boolean isFlag() {
+
+		return false;
+	}
+
+	/**
+	 * @param ctx aktueller Mergekontext, liefert die zu vergleichenden Werte
+	 * @return Resultat der Bedingung oder <code>null</code>, wenn sie mangels Werten nicht ausgewertet werden kann
+	 * @throws DocTemplateException
+	 */
+	abstract Boolean evaluate(MergeContext ctx) throws DocTemplateException;
+
+	private static ConditionExpression parseOr(String key, String expression) throws DocTemplateException {
+
+		List<String> parts = split(expression, OR);
+		if (parts.size() == 1) {
+			return parseAnd(key, expression);
+		}
+		List<ConditionExpression> operands = new ArrayList<>(parts.size());
+		for (String part : parts) {
+			operands.add(parseAnd(key, part));
+		}
+		return new Or(operands.toArray(new ConditionExpression[operands.size()]));
+	}
+
+	private static ConditionExpression parseAnd(String key, String expression) throws DocTemplateException {
+
+		List<String> parts = split(expression, AND);
+		if (parts.size() == 1) {
+			return parseNot(key, expression);
+		}
+		List<ConditionExpression> operands = new ArrayList<>(parts.size());
+		for (String part : parts) {
+			operands.add(parseNot(key, part));
+		}
+		return new And(operands.toArray(new ConditionExpression[operands.size()]));
+	}
+
+	private static ConditionExpression parseNot(String key, String expression) throws DocTemplateException {
+
+		if (expression.startsWith(NOT)) {
+			return new Not(parseNot(key, expression.substring(NOT.length())));
+		}
+		return parseComparison(key, expression);
+	}
+
+	private static ConditionExpression parseComparison(String key, String expression) throws DocTemplateException {
+
+		Operator operator = null;
+		int position = -1;
+		for (Operator o : Operator.values()) {
+			int p = expression.indexOf(o.pattern);
+			if (p > 0 && (position < 0 || p < position)) {
+				operator = o;
+				position = p;
+			}
+		}
+		if (operator == null) {
+			if (expression.isEmpty()) {
+				throw new DocTemplateException("error.condition.invalid", key);
+			}
+			return new Flag(expression);
+		}
+		String path = expression.substring(0, position);
+		String value = expression.substring(position + operator.pattern.length());
+		switch (operator) {
+		case BETWEEN:
+			List<String> bounds = split(value, LIST_SEPARATOR);
+			if (bounds.size() != 2) {
+				throw new DocTemplateException("error.condition.invalid", key);
+			}
+			return new And(new Comparison(path, Operator.GE, bounds.get(0)), new Comparison(path, Operator.LE, bounds.get(1)));
+		case IN:
+			return new In(path, split(value, LIST_SEPARATOR));
+		default:
+			return new Comparison(path, operator, value);
+		}
+	}
+
+	private static List<String> split(String s, String separator) {
+
+		List<String> result = new ArrayList<>();
+		int start = 0;
+		int p;
+		while ((p = s.indexOf(separator, start)) >= 0) {
+			result.add(s.substring(start, p));
+			start = p + separator.length();
+		}
+		result.add(s.substring(start));
+		return result;
+	}
+
+	/**
+	 * @return Zahl oder <code>null</code>, wenn <code>s</code> keine Zahl ist
+	 */
+	private static BigDecimal toNumber(String s) {
+
+		try {
+			return new BigDecimal(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Zahl oder <code>null</code>, wenn <code>o</code> keine Zahl ist
+	 */
+	private static BigDecimal toNumber(Object o) {
+
+		if (o instanceof BigDecimal) {
+			return (BigDecimal) o;
+		}
+		if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			return BigDecimal.valueOf(((Number) o).longValue());
+		}
+		if (o instanceof Double) {
+			double d = (Double) o;
+			return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+		}
+		// z.B. Float, BigInteger oder Text
+		return toNumber(o.toString());
+	}
+
+	private enum Operator {
+
+		EQ("_EQ_"), NEQ("_NEQ_"), GT("_GT_"), GE("_GE_"), LT("_LT_"), LE("_LE_"), BETWEEN("_BETWEEN_"), IN("_IN_");
+
+		private final String pattern;
+
+		Operator(String pattern) {
+
+			this.pattern = pattern;
+		}
+	}
+
+	private static final class Or extends ConditionExpression {
+
+		private final ConditionExpression[] operands;
+
+		Or(ConditionExpression... operands) {
+
+			this.operands = operands;
+		}
+
+		@Override
+		Boolean evaluate(MergeContext ctx) throws DocTemplateException {
+
+			Boolean result = Boolean.FALSE;
+			for (ConditionExpression operand : this.operands) {
+				Boolean b = operand.evaluate(ctx);
+				if (b == null) {
+					result = null;
+				} else if (b.booleanValue()) {
+					return Boolean.TRUE;
+				}
+			}
+			return result;
+		}
+	}
+
+	private static final class And extends ConditionExpression {
+
+		private final ConditionExpression[] operands;
+
+		And(ConditionExpression... operands) {
+
+			this.operands = operands;
+		}
+
+		@Override
+		Boolean evaluate(MergeContext ctx) throws DocTemplateException {
+
+			Boolean result = Boolean.TRUE;
+			for (ConditionExpression operand : this.operands) {
+				Boolean b = operand.evaluate(ctx);
+				if (b == null) {
+					result = null;
+				} else if (!b.booleanValue()) {
+					return Boolean.FALSE;
+				}
+			}
+			return result;
+		}
+	}
+
+	private static final class Not extends ConditionExpression {
+
+		private final ConditionExpression operand;
+
+		Not(ConditionExpression operand) {
+
+			this.operand = operand;
+		}
+
+		@Override
+		Boolean evaluate(MergeContext ctx) throws DocTemplateException {
+
+			Boolean b = this.operand.evaluate(ctx);
+			return b == null ? null : Boolean.valueOf(!b.booleanValue());
+		}
+	}
+
+	/**
+	 * Key ohne Operator, wird von der aktuellen MergeSource selbst ausgewertet.
+	 */
+	private static final class Flag extends ConditionExpression {
+
+		private final String path;
+
+		Flag(String path) {
+
+			this.path = path;
+		}
+
+		@Override
+		boolean isFlag() {
+
+			return true;
+		}
+
+		@Override
+		Boolean evaluate(MergeContext ctx) throws DocTemplateException {
+
+			return ctx.getCurrentMergeSource().ifStatement(ctx, this.path);
+		}
+	}
+
+	private static final class Comparison extends ConditionExpression {
+
+		private final String path;
+		private final Operator operator;
+		private final String value;
+		/** <code>null</code> wenn der Vergleichswert keine Zahl ist */
+		private final BigDecimal number;
+
+		Comparison(String path, Operator operator, String value) {
+
+			this.path = path;
+			this.operator = operator;
+			this.value = value;
+			this.number = toNumber(value);
+		}
+
+		@Override
+		Boolean evaluate(MergeContext ctx) throws DocTemplateException {
+
+			Object o = ctx.getCurrentMergeSource().getData(ctx, this.path);
+			if (o == null) {
+				return null;
+			}
+			switch (this.operator) {
+			case EQ:
+				return Boolean.valueOf(this.value.equals(o.toString()));
+			case NEQ:
+				return Boolean.valueOf(!this.value.equals(o.toString()));
+			default:
+				int result = compare(o);
+				switch (this.operator) {
+				case GT:
+					return Boolean.valueOf(result > 0);
+				case GE:
+					return Boolean.valueOf(result >= 0);
+				case LT:
+					return Boolean.valueOf(result < 0);
+				default:
+					return Boolean.valueOf(result <= 0);
+				}
+			}
+		}
+
+		private int compare(Object o) {
+
+			if (this.number != null) {
+				BigDecimal n = toNumber(o);
+				if (n != null) {
+					return n.compareTo(this.number);
+				}
+			}
+			return o.toString().compareTo(this.value);
+		}
+	}
+
+	private static final class In extends ConditionExpression {
+
+		private final String path;
+		private final List<String> values;
+
+		In(String path, List<String> values) {
+
+			this.path = path;
+			this.values = values;
+		}
+
+		@Override
+		Boolean evaluate(MergeContext ctx) throws DocTemplateException {
+
+			Object o = ctx.getCurrentMergeSource().getData(ctx, this.path);
+			return o == null ? null : Boolean.valueOf(this.values.contains(o.toString()));
+		}
+	}
+}
@@ -75,6 +75,13 @@ public class ConditionMergeElement extends AbstractMergeElement {
 		}
 	}
 
+	@Override
+	public void collectKeys(KeyManifest manifest) {
+
+		manifest.addConditionKey(this.key);
+		super.collectKeys(manifest);
+	}
+
 	@Override
 	public String toString() {
 		return new ToStringBuilder(this)
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+/**
+ * Empfaenger der Dokumente einer {@link BatchMerge}. Wird immer vom Thread aufgerufen, der die Verarbeitung gestartet
+ * hat, und nie gleichzeitig.
+ */
+@FunctionalInterface
+public interface DocumentSink {
+
+	/**
+	 * @param index Position der <code>mergeSource</code> in der Eingabe, beginnend bei 0
+	 * @param mergeSource Quelle, aus der das Dokument erzeugt wurde
+	 * @param document Ergebnisdokument
+	 * @throws DocTemplateException bricht die Verarbeitung ab
+	 */
+	void accept(long index, MergeSource mergeSource, byte[] document) throws DocTemplateException;
+
+}
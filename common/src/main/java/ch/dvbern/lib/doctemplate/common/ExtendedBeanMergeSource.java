@@ -25,14 +25,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * Implementiert eine MergeSource, die in if-Statements mit fixen Stringwerten vergleichen kann.
- * Vgl. dazu den Unit-Test
+ * Implementiert eine MergeSource, die in if-Statements mit fixen Werten vergleichen und Bedingungen verknuepfen kann,
+ * z.B. "betrag_GT_1000_AND_NOT_kanton_IN_BE__ZH". Die Syntax ist bei {@link ConditionExpression} beschrieben, jeder
+ * Key wird nur einmal zerlegt. Vgl. dazu den Unit-Test
  */
 public class ExtendedBeanMergeSource extends BeanMergeSource {
 
-	private static final String EQUALS_PATTERN = "_EQ_";
-	private static final String NOT_EQUALS_PATTERN = "_NEQ_";
-
 	/**
 	 * Konstruktor.
 	 *
@@ -83,19 +81,13 @@ public class ExtendedBeanMergeSource extends BeanMergeSource {
 	@Override
 	public Boolean ifStatement(MergeContext ctx, String key) throws DocTemplateException {
 
-		int equalsPosition = key.indexOf(EQUALS_PATTERN);
-		if (equalsPosition > 0) {
-			String equalsExpression = key.substring(equalsPosition + EQUALS_PATTERN.length());
-			Object result = ctx.getCurrentMergeSource().getData(ctx, key.substring(0, equalsPosition));
-			return result == null ? false : equalsExpression.equals(result.toString());
-		}
-		int notEqualsPosition = key.indexOf(NOT_EQUALS_PATTERN);
-		if (notEqualsPosition > 0) {
-			String equalsExpression = key.substring(notEqualsPosition + NOT_EQUALS_PATTERN.length());
-			Object result = ctx.getCurrentMergeSource().getData(ctx, key.substring(0, notEqualsPosition));
-			return result == null ? true : !equalsExpression.equals(result.toString());
+		ConditionExpression condition = ConditionExpression.of(key);
+		if (condition.isFlag()) {
+			return super.ifStatement(ctx, key);
 		}
-		return super.ifStatement(ctx, key);
+		// null, wenn die Operanden nicht aufgeloest werden koennen, damit z.B. eine Iteration die umgebende
+		// MergeSource fragt
+		return condition.evaluate(ctx);
 	}
 
 	private String getFirstPart(String s) {
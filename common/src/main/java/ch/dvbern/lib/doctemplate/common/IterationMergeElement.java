@@ -62,9 +62,13 @@ public class IterationMergeElement extends AbstractMergeElement {
 		if (ims != null) {
 			MergeSource previousMergeSource = ctx.getCurrentMergeSource();
 			ctx.setCurrentMergeSource(ims);
-			while (ims.hasNext()) {
-				ims.next();
-				result.append(super.getContent(ctx, ims));
+			try {
+				while (ims.hasNext()) {
+					ims.next();
+					result.append(super.getContent(ctx, ims));
+				}
+			} finally {
+				ims.close();
 			}
 			ctx.setCurrentMergeSource(previousMergeSource);
 		} else {
@@ -81,9 +85,13 @@ public class IterationMergeElement extends AbstractMergeElement {
 		if (ims != null) {
 			MergeSource previousMergeSource = ctx.getCurrentMergeSource();
 			ctx.setCurrentMergeSource(ims);
-			while (ims.hasNext()) {
-				ims.next();
-				super.getContent(ctx, ims, output);
+			try {
+				while (ims.hasNext()) {
+					ims.next();
+					super.getContent(ctx, ims, output);
+				}
+			} finally {
+				ims.close();
 			}
 			ctx.setCurrentMergeSource(previousMergeSource);
 		} else {
@@ -91,6 +99,12 @@ public class IterationMergeElement extends AbstractMergeElement {
 		}
 	}
 
+	@Override
+	public void collectKeys(KeyManifest manifest) {
+
+		super.collectKeys(manifest.addIteration(IterationMergeHelper.getListKey(this.key), this.sortFieldKeys));
+	}
+
 	@Override
 	public String toString() {
 		return new ToStringBuilder(this)
@@ -14,10 +14,13 @@
  */
 package ch.dvbern.lib.doctemplate.common;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
 import org.apache.commons.logging.Log;
@@ -33,9 +36,8 @@ public class IterationMergeSource implements MergeSource {
 	/** Logger */
 	private static final Log log = LogFactory.getLog(IterationMergeSource.class);
 
-	private List<MergeSource> mergeSources;
 	private final MergeSource basicSource;
-	private Iterator<MergeSource> sourceIterator;
+	private final Iterator<MergeSource> sourceIterator;
 	private final List<MergeSource> currentSources = new ArrayList<>();
 
 	/**
@@ -45,28 +47,37 @@ public class IterationMergeSource implements MergeSource {
 	 */
 	public IterationMergeSource(List<MergeSource> mergeSources, String vonBisBereich, MergeSource basicSource) {
 
+		this(mergeSources.iterator(), vonBisBereich, basicSource);
+	}
+
+	/**
+	 * Iteriert ueber <code>mergeSources</code>, ohne die Elemente vorgaengig zu sammeln. Es werden nur die Elemente des
+	 * aktuellen Durchlaufs gehalten.
+	 *
+	 * @param mergeSources ueber diese MergeSourcen wird iteriert
+	 * @param vonBisBereich von-/Bis-Bereich in der Form "_SUBvon" oder "_SUBvon_bis"
+	 * @param basicSource die uebergeordnete MergeSource
+	 */
+	public IterationMergeSource(Iterator<MergeSource> mergeSources, String vonBisBereich, MergeSource basicSource) {
+
 		super();
 
 		if (vonBisBereich != null) {
 			StringTokenizer st = new StringTokenizer(vonBisBereich.substring(4, vonBisBereich.length()), "_");
 			try {
-				int von = 0, bis = mergeSources.size();
-				von = Integer.parseInt(st.nextToken());
+				int von = Integer.parseInt(st.nextToken());
+				int bis = Integer.MAX_VALUE;
 				if (st.hasMoreTokens()) {
 					int i = Integer.parseInt(st.nextToken());
-					bis = i < bis ? i + 1 : bis; // nicht ueber das Ende hinaus
-				}
-				if (von < bis && von < mergeSources.size()) {
-					this.mergeSources = mergeSources.subList(von, bis);
-				} else {
-					this.mergeSources = new ArrayList<>();
+					bis = i < Integer.MAX_VALUE ? i + 1 : i;
 				}
+				this.sourceIterator = new RangeIterator(mergeSources, von, bis);
 			} catch (Exception e) {
 				throw new RuntimeException("error reading iteration index: " + vonBisBereich, e);
 			}
 		} else {
 			// kein von-Bis-Bereich
-			this.mergeSources = mergeSources;
+			this.sourceIterator = mergeSources;
 		}
 
 		this.basicSource = basicSource;
@@ -77,9 +88,6 @@ public class IterationMergeSource implements MergeSource {
 	 */
 	public boolean hasNext() {
 
-		if (this.sourceIterator == null) {
-			this.sourceIterator = this.mergeSources.iterator();
-		}
 		return this.sourceIterator.hasNext();
 	}
 
@@ -155,6 +163,47 @@ public class IterationMergeSource implements MergeSource {
 		return result;
 	}
 
+	/**
+	 * @see MergeSource#whileIterator(MergeContext, String)
+	 */
+	@Override
+	public Iterator<MergeSource> whileIterator(MergeContext ctx, String key) throws DocTemplateException {
+
+		StringBuffer sbKey = new StringBuffer(key);
+		int index = initCurrentSource(sbKey);
+		MergeSource currentMergeSource = this.currentSources.get(index);
+		Iterator<MergeSource> result = currentMergeSource.whileIterator(ctx, sbKey.toString());
+		if (result == null) {
+			result = this.basicSource.whileIterator(ctx, sbKey.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Gibt die Ressourcen der Iteration frei, z.B. die temporaeren Dateien einer Sortierung mit Zwischenablage auf der
+	 * Festplatte. Wird die Iteration vollstaendig durchlaufen, geschieht das automatisch.
+	 */
+	public void close() {
+
+		Iterator<MergeSource> iterator = this.sourceIterator instanceof RangeIterator ? ((RangeIterator) this.sourceIterator).source
+				: this.sourceIterator;
+		if (iterator instanceof Closeable) {
+			try {
+				((Closeable) iterator).close();
+			} catch (IOException e) {
+				log.warn("close", e);
+			}
+		}
+	}
+
+	/**
+	 * @return aktuelles Element der Iteration, <code>null</code> vor dem ersten {@link #next()}
+	 */
+	MergeSource getCurrentSource() {
+
+		return this.currentSources.isEmpty() ? null : this.currentSources.get(0);
+	}
+
 	private int initCurrentSource(StringBuffer sbKey) {
 
 		int index = 0;
@@ -183,6 +232,46 @@ public class IterationMergeSource implements MergeSource {
 		}
 	}
 
+	/**
+	 * Liefert die Elemente <code>von</code> (inklusive) bis <code>bis</code> (exklusive) eines Iterators, ohne die
+	 * uebersprungenen Elemente zu halten.
+	 */
+	private static final class RangeIterator implements Iterator<MergeSource> {
+
+		private final Iterator<MergeSource> source;
+		private int skip;
+		private int remaining;
+
+		RangeIterator(Iterator<MergeSource> source, int von, int bis) {
+
+			this.source = source;
+			this.skip = von;
+			this.remaining = von < bis ? bis - von : 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			if (this.remaining <= 0) {
+				return false;
+			}
+			for (; this.skip > 0 && this.source.hasNext(); this.skip--) {
+				this.source.next();
+			}
+			return this.source.hasNext();
+		}
+
+		@Override
+		public MergeSource next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			this.remaining--;
+			return this.source.next();
+		}
+	}
+
 	private class EmptyMergeSource implements MergeSource {
 
 		/*
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Alle Keys, die eine Vorlage bei einer {@link MergeSource} abfragen kann, gegliedert nach Iterationen. Die Keys sind
+ * so angegeben, wie sie an die MergeSource uebergeben werden, d.h. ohne Format-Suffix und ohne "_SUB"-Bereich. Wird
+ * einmal pro {@link CompiledTemplate} ermittelt und danach nicht mehr veraendert.
+ */
+public final class KeyManifest {
+
+	/** Praefixe in {@link #getKeys()} */
+	public static final String FIELD = "FIELD_";
+	public static final String CONDITION = "IF_";
+	public static final String ITERATION = "WHILE_";
+	public static final String SORT = "SORT_";
+
+	private static final String DESC_SUFFIX = "_DESC";
+
+	private final Set<String> fieldKeys = new LinkedHashSet<>();
+	private final Set<String> conditionKeys = new LinkedHashSet<>();
+	private final Set<String> sortKeys = new LinkedHashSet<>();
+	private final Map<String, KeyManifest> iterations = new LinkedHashMap<>();
+	private volatile Set<String> keys;
+
+	KeyManifest() {
+
+	}
+
+	/**
+	 * @return Keys fuer {@link MergeSource#getData(MergeContext, String)} auf dieser Stufe
+	 */
+	public Set<String> getFieldKeys() {
+
+		return Collections.unmodifiableSet(this.fieldKeys);
+	}
+
+	/**
+	 * @return Keys fuer {@link MergeSource#ifStatement(MergeContext, String)} auf dieser Stufe
+	 */
+	public Set<String> getConditionKeys() {
+
+		return Collections.unmodifiableSet(this.conditionKeys);
+	}
+
+	/**
+	 * @return Keys, nach denen die Elemente dieser Iteration sortiert werden, leer auf oberster Stufe
+	 */
+	public Set<String> getSortKeys() {
+
+		return Collections.unmodifiableSet(this.sortKeys);
+	}
+
+	/**
+	 * @return Keys fuer {@link MergeSource#whileStatement(MergeContext, String)} auf dieser Stufe
+	 */
+	public Set<String> getIterationKeys() {
+
+		return Collections.unmodifiableSet(this.iterations.keySet());
+	}
+
+	/**
+	 * @param key Key der Iteration, wie in {@link #getIterationKeys()}
+	 * @return Keys innerhalb der Iteration oder <code>null</code>, wenn die Vorlage keine solche Iteration enthaelt
+	 */
+	public KeyManifest getIteration(String key) {
+
+		return this.iterations.get(key);
+	}
+
+	/**
+	 * @return alle Keys dieser Stufe und aller Iterationen darin, mit Praefix {@link #FIELD}, {@link #CONDITION},
+	 *         {@link #ITERATION} oder {@link #SORT}, z.B. "FIELD_BRX_adresse.ort"
+	 */
+	public Set<String> getKeys() {
+
+		Set<String> result = this.keys;
+		if (result == null) {
+			Set<String> allKeys = new LinkedHashSet<>();
+			addKeys(allKeys);
+			result = Collections.unmodifiableSet(allKeys);
+			this.keys = result;
+		}
+		return result;
+	}
+
+	private void addKeys(Set<String> result) {
+
+		addKeys(result, FIELD, this.fieldKeys);
+		addKeys(result, CONDITION, this.conditionKeys);
+		addKeys(result, SORT, this.sortKeys);
+		for (Map.Entry<String, KeyManifest> iteration : this.iterations.entrySet()) {
+			result.add(ITERATION + iteration.getKey());
+			iteration.getValue().addKeys(result);
+		}
+	}
+
+	private static void addKeys(Set<String> result, String prefix, Set<String> keys) {
+
+		for (String key : keys) {
+			result.add(prefix + key);
+		}
+	}
+
+	void addFieldKey(String key) {
+
+		this.fieldKeys.add(key);
+	}
+
+	void addConditionKey(String key) {
+
+		this.conditionKeys.add(key);
+	}
+
+	/**
+	 * @return Manifest der Iteration, mehrfach vorkommende Iterationen werden zusammengefasst
+	 */
+	KeyManifest addIteration(String key, List<String> sortFieldKeys) {
+
+		KeyManifest result = this.iterations.computeIfAbsent(key, k -> new KeyManifest());
+		if (sortFieldKeys != null) {
+			for (String sortFieldKey : sortFieldKeys) {
+				// abgefragt wird ohne Sortierrichtung
+				result.sortKeys.add(sortFieldKey.endsWith(DESC_SUFFIX) ? sortFieldKey.substring(0, sortFieldKey.length() - DESC_SUFFIX.length())
+						: sortFieldKey);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+
+		return getKeys().toString();
+	}
+}
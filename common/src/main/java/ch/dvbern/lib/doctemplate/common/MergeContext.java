@@ -24,6 +24,7 @@ public class MergeContext {
 
 	MergeSource currentMergeSource;
 	private Map<Object, Object> attributes;
+	private final MergeSession<?> session;
 
 	/**
 	 * Konstruktor
@@ -32,7 +33,27 @@ public class MergeContext {
 	 */
 	public MergeContext(MergeSource currentMergeSource) {
 
+		this(currentMergeSource, null);
+	}
+
+	/**
+	 * Konstruktor
+	 *
+	 * @param currentMergeSource aktuell verwendete Merge-Quelle
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 */
+	public MergeContext(MergeSource currentMergeSource, MergeSession<?> session) {
+
 		this.currentMergeSource = currentMergeSource;
+		this.session = session;
+	}
+
+	/**
+	 * @return Zustand des laufenden Merge-Vorgangs oder <code>null</code>, wenn ausserhalb einer Engine verwendet
+	 */
+	public MergeSession<?> getSession() {
+
+		return this.session;
 	}
 
 	/**
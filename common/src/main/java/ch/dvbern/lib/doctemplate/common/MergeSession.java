@@ -0,0 +1,235 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.text.Collator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.Executor;
+
+import ch.dvbern.lib.doctemplate.util.FormatDefaults;
+import ch.dvbern.lib.doctemplate.util.ImageHandler;
+
+/**
+ * Zustand eines einzelnen Merge-Vorgangs. Eine Session wird pro Dokument erstellt und haelt alle Informationen, die
+ * sich waehrend des Parsens oder Abfuellens eines Dokumentes aendern. Die Engines selbst bleiben dadurch
+ * unveraenderlich und koennen von mehreren Threads gleichzeitig verwendet werden. Eine Session darf nur von einem
+ * Thread verwendet werden.
+ *
+ * @param <T> Typ der eingefuegten Bilder
+ */
+public class MergeSession<T extends Image> {
+
+	private final Map<String, String> keyTranslationTable;
+	private final Stack<BasicMergeElement> parseStack = new Stack<>();
+	private final Map<String, T> images = new LinkedHashMap<>();
+	private ImageHandler<T> imageHandler;
+	private Locale sortLocale;
+	private Collator sortCollator;
+	private int externalSortThreshold;
+	private boolean mergeSourceCaching;
+	private boolean asyncDataResolution;
+	private Executor dataResolutionExecutor;
+	private final Map<MergeSource, CachingMergeSource> cachingMergeSources = new IdentityHashMap<>();
+	private final FormatDefaults formatDefaults = FormatDefaults.current();
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param keyTranslationTable fuer diesen Merge gueltige Uebersetzung von Keys, wird kopiert
+	 */
+	public MergeSession(Map<String, String> keyTranslationTable) {
+
+		this.keyTranslationTable = keyTranslationTable != null ? new HashMap<>(keyTranslationTable) : new HashMap<>();
+	}
+
+	/**
+	 * @return fuer diesen Merge gueltige Uebersetzung von Keys
+	 */
+	public Map<String, String> getKeyTranslationTable() {
+
+		return this.keyTranslationTable;
+	}
+
+	/**
+	 * @param key
+	 * @return key mit allen Uebersetzungen aus {@link #getKeyTranslationTable()}
+	 */
+	public String translate(final String key) {
+
+		String result = key;
+		for (Map.Entry<String, String> entry : this.keyTranslationTable.entrySet()) {
+			result = result.replace(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * @return Sprache und Zeitzone fuer die Formatierung der Felder, beim Erstellen der Session ermittelt
+	 */
+	public FormatDefaults getFormatDefaults() {
+
+		return this.formatDefaults;
+	}
+
+	/**
+	 * @return Stack der waehrend des Parsens offenen Bedingungen und Iterationen
+	 */
+	public Stack<BasicMergeElement> getParseStack() {
+
+		return this.parseStack;
+	}
+
+	/**
+	 * @return in das Dokument eingefuegte Bilder, pro Name des Bildes im Dokument
+	 */
+	public Map<String, T> getImages() {
+
+		return this.images;
+	}
+
+	/**
+	 * @return ImageHandler fuer dieses Dokument oder <code>null</code>, wenn keine Bilder eingefuegt werden koennen
+	 */
+	public ImageHandler<T> getImageHandler() {
+
+		return this.imageHandler;
+	}
+
+	/**
+	 * @param imageHandler ImageHandler fuer dieses Dokument
+	 */
+	public void setImageHandler(ImageHandler<T> imageHandler) {
+
+		this.imageHandler = imageHandler;
+	}
+
+	/**
+	 * @return Sprache fuer den Vergleich von Texten in sortierten Iterationen oder <code>null</code>, wenn Texte
+	 *         zeichenweise verglichen werden
+	 */
+	public Locale getSortLocale() {
+
+		return this.sortLocale;
+	}
+
+	/**
+	 * @param sortLocale Sprache fuer den Vergleich von Texten in sortierten Iterationen, <code>null</code> fuer einen
+	 *            zeichenweisen Vergleich
+	 */
+	public void setSortLocale(Locale sortLocale) {
+
+		this.sortLocale = sortLocale;
+		this.sortCollator = null;
+	}
+
+	/**
+	 * @return Collator zu {@link #getSortLocale()} oder <code>null</code>, wenn keine Sprache gesetzt ist
+	 */
+	public Collator getSortCollator() {
+
+		if (this.sortCollator == null && this.sortLocale != null) {
+			this.sortCollator = Collator.getInstance(this.sortLocale);
+		}
+		return this.sortCollator;
+	}
+
+	/**
+	 * @return ab dieser Anzahl Elemente werden sortierte Iterationen mit Zwischenablage auf der Festplatte sortiert, 0
+	 *         wenn immer im Speicher sortiert wird
+	 */
+	public int getExternalSortThreshold() {
+
+		return this.externalSortThreshold;
+	}
+
+	/**
+	 * @param externalSortThreshold ab dieser Anzahl Elemente wird mit Zwischenablage auf der Festplatte sortiert, 0 um
+	 *            immer im Speicher zu sortieren
+	 */
+	public void setExternalSortThreshold(int externalSortThreshold) {
+
+		this.externalSortThreshold = externalSortThreshold;
+	}
+
+	/**
+	 * @return <code>true</code> wenn die Resultate der MergeSourcen fuer dieses Dokument gemerkt werden
+	 */
+	public boolean isMergeSourceCaching() {
+
+		return this.mergeSourceCaching;
+	}
+
+	/**
+	 * @param mergeSourceCaching <code>true</code> um die Resultate der MergeSourcen fuer dieses Dokument zu merken
+	 */
+	public void setMergeSourceCaching(boolean mergeSourceCaching) {
+
+		this.mergeSourceCaching = mergeSourceCaching;
+	}
+
+	/**
+	 * @return <code>true</code> wenn die Felder ausserhalb von Iterationen vor dem Merge gleichzeitig abgefragt werden
+	 */
+	public boolean isAsyncDataResolution() {
+
+		return this.asyncDataResolution;
+	}
+
+	/**
+	 * @param asyncDataResolution <code>true</code> um die Felder ausserhalb von Iterationen vor dem Merge ueber
+	 *            {@link MergeSource#getDataAsync(MergeContext, String)} gleichzeitig abzufragen
+	 */
+	public void setAsyncDataResolution(boolean asyncDataResolution) {
+
+		this.asyncDataResolution = asyncDataResolution;
+	}
+
+	/**
+	 * @return Executor, auf dem die Felder bei {@link #isAsyncDataResolution()} abgefragt werden, oder
+	 *         <code>null</code>
+	 */
+	public Executor getDataResolutionExecutor() {
+
+		return this.dataResolutionExecutor;
+	}
+
+	/**
+	 * @param dataResolutionExecutor Executor, auf dem die Felder bei {@link #isAsyncDataResolution()} abgefragt
+	 *            werden, <code>null</code> um {@link MergeSource#getDataAsync(MergeContext, String)} direkt aufzurufen
+	 */
+	public void setDataResolutionExecutor(Executor dataResolutionExecutor) {
+
+		this.dataResolutionExecutor = dataResolutionExecutor;
+	}
+
+	/**
+	 * @param mergeSource MergeSource des Dokuments
+	 * @return <code>mergeSource</code> oder, wenn die Resultate gemerkt oder vorgaengig abgefragt werden, die fuer
+	 *         alle Teile dieses Dokuments gemeinsame {@link CachingMergeSource}
+	 */
+	public MergeSource getMergeSource(MergeSource mergeSource) {
+
+		if (!(this.mergeSourceCaching || this.asyncDataResolution) || mergeSource instanceof CachingMergeSource) {
+			return mergeSource;
+		}
+		return this.cachingMergeSources.computeIfAbsent(mergeSource, CachingMergeSource::new);
+	}
+
+}
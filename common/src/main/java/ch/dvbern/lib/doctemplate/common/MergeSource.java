@@ -14,7 +14,10 @@
  */
 package ch.dvbern.lib.doctemplate.common;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Liefert Informationen fuer den Merge einer Dokumentvorlage in das vorgesehene Resultat.
@@ -31,6 +34,31 @@ public interface MergeSource {
 	 */
 	Object getData(MergeContext ctx, String key) throws DocTemplateException;
 
+	/**
+	 * Liefert ein Objekt wie {@link #getData(MergeContext, String)}, ohne auf das Resultat zu warten. Wird verwendet,
+	 * wenn die Felder eines Dokuments vor dem Merge gleichzeitig abgefragt werden (vgl.
+	 * {@link AbstractMergeEngine#setAsyncDataResolution(boolean)}). Der Default ruft
+	 * {@link #getData(MergeContext, String)} direkt auf und liefert ein fertiges Resultat; gleichzeitig laufen die
+	 * Abfragen dann nur, wenn die Engine einen Executor hat (vgl.
+	 * {@link AbstractMergeEngine#setDataResolutionExecutor(java.util.concurrent.Executor)}).
+	 * Implementierungen, deren Daten aus langsamen Quellen stammen, koennen die Abfrage auch selbst z.B. auf einem
+	 * eigenen Executor ausfuehren. Der Kontext ist nicht threadsafe und darf nur waehrend des Aufrufs verwendet werden.
+	 *
+	 * @param ctx Kontext zum Austauschen von Informationen zwischen MergeSourcen
+	 * @param key Identifikation des zu liefernden Objektes
+	 * @return Resultat als Objekt, evtl. noch nicht fertig
+	 */
+	default CompletableFuture<Object> getDataAsync(MergeContext ctx, String key) {
+
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		try {
+			result.complete(getData(ctx, key));
+		} catch (DocTemplateException | RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
 	/**
 	 * Entscheidet ob ein Textabschnitt im Ergebnisdokument enthalten sein soll.
 	 *
@@ -51,4 +79,33 @@ public interface MergeSource {
 	 */
 	List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException;
 
+	/**
+	 * Liefert die Daten einer Iteration als {@link Iterator}. Ohne Sortierung werden die Elemente erst beim Durchlaufen
+	 * der Iteration einzeln abgeholt, Implementierungen koennen so grosse Datenmengen (z.B. aus einem Cursor) liefern,
+	 * ohne sie vollstaendig im Speicher zu halten. Der Default liefert den Iterator von
+	 * {@link #whileStatement(MergeContext, String)}.
+	 *
+	 * @param ctx Kontext zum Austauschen von Informationen zwischen MergeSourcen
+	 * @param key Identifikation der zu liefernden Liste
+	 * @return Datenquellen fuer eine iterative Ermittlung von Daten, <code>null</code> wenn unter <code>key</code>
+	 *         keine Daten geliefert werden
+	 * @throws DocTemplateException Exception als Basis fuer eine Meldung an den Benutzer
+	 */
+	default Iterator<MergeSource> whileIterator(MergeContext ctx, String key) throws DocTemplateException {
+
+		List<MergeSource> result = whileStatement(ctx, key);
+		return result != null ? result.iterator() : null;
+	}
+
+	/**
+	 * Wird vor dem Merge eines Dokuments einmal mit allen Keys aufgerufen, welche die Vorlage abfragen kann. Die
+	 * MergeSource kann die Daten so gesammelt laden, statt bei jedem Key einzeln. Der Default tut nichts.
+	 *
+	 * @param keys Keys der Vorlage mit Praefix, vgl. {@link KeyManifest#getKeys()}
+	 * @throws DocTemplateException Exception als Basis fuer eine Meldung an den Benutzer
+	 */
+	default void prefetch(Set<String> keys) throws DocTemplateException {
+
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+/**
+ * Art, wie die XML-Bestandteile einer Vorlage vor dem Parsen der Merge-Struktur aufbereitet werden.
+ */
+public enum PreprocessingMode {
+
+	/**
+	 * Die Vorlage wird als DOM eingelesen, in ein zweites DOM mit eingefuegten Bookmarks kopiert und anschliessend
+	 * serialisiert. Benoetigt ein Mehrfaches der Groesse des XML-Bestandteils an Speicher.
+	 */
+	DOM,
+
+	/**
+	 * Die Vorlage wird mit StAX gelesen und die Merge-Elemente werden direkt aus den Events aufgebaut. Gepuffert wird
+	 * nur der statische Abschnitt seit dem letzten Bookmark.
+	 */
+	STREAMING
+
+}
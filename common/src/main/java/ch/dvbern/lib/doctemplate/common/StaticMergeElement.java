@@ -24,6 +24,8 @@ import java.nio.charset.StandardCharsets;
 public class StaticMergeElement extends BasicMergeElement {
 
 	private final String staticContent;
+	/** beim Parsen einmalig kodierter Inhalt, wird bei jedem Merge unveraendert geschrieben */
+	private final byte[] encodedContent;
 
 	/**
 	 * Konstruktor fuer ein MergeElement mit statischem Inhalt.
@@ -33,6 +35,7 @@ public class StaticMergeElement extends BasicMergeElement {
 	public StaticMergeElement(String staticContent) {
 
 		this.staticContent = staticContent;
+		this.encodedContent = staticContent.getBytes(StandardCharsets.UTF_8);
 	}
 
 	/*
@@ -51,7 +54,7 @@ public class StaticMergeElement extends BasicMergeElement {
 	public void getContent(MergeContext ctx, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
 
 		try {
-			output.write(this.staticContent.getBytes(StandardCharsets.UTF_8));
+			output.write(this.encodedContent, 0, this.encodedContent.length);
 		} catch (IOException e) {
 			throw new DocTemplateException(e);
 		}
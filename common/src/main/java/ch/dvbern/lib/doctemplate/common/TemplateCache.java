@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Groessenbeschraenkter Cache fuer {@link CompiledTemplate}-Instanzen. Werden mehr als <code>maxSize</code> Vorlagen
+ * abgelegt, wird die am laengsten nicht mehr verwendete Vorlage verworfen (LRU). Jeder Eintrag haelt den Inhalt der
+ * Vorlage und den geparsten Baum, der Speicherbedarf waechst also mit Anzahl und Groesse der Vorlagen.
+ */
+public class TemplateCache {
+
+	/** Standardgroesse des Caches */
+	public static final int DEFAULT_MAX_SIZE = 64;
+
+	private final int maxSize;
+	private final Map<String, CompiledTemplate> templates;
+
+	/**
+	 * Konstruktor.
+	 *
+	 * @param maxSize maximale Anzahl Vorlagen im Cache
+	 */
+	public TemplateCache(final int maxSize) {
+
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.templates = new LinkedHashMap<String, CompiledTemplate>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param key Identifikation der Vorlage
+	 * @return Vorlage oder <code>null</code>, wenn nicht im Cache vorhanden
+	 */
+	public synchronized CompiledTemplate get(String key) {
+
+		return this.templates.get(key);
+	}
+
+	/**
+	 * @param template abzulegende Vorlage
+	 */
+	public synchronized void put(CompiledTemplate template) {
+
+		this.templates.put(template.getKey(), template);
+	}
+
+	/**
+	 * Leert den Cache.
+	 */
+	public synchronized void clear() {
+
+		this.templates.clear();
+	}
+
+	/**
+	 * @return Anzahl Vorlagen im Cache
+	 */
+	public synchronized int size() {
+
+		return this.templates.size();
+	}
+
+	/**
+	 * @return maximale Anzahl Vorlagen im Cache
+	 */
+	public int getMaxSize() {
+
+		return this.maxSize;
+	}
+
+}
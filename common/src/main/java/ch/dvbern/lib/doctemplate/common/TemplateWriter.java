@@ -0,0 +1,639 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Baut beim {@link PreprocessingMode#STREAMING} aus den StAX-Events einer Vorlage direkt die Merge-Elemente auf. Die
+ * Engines kopieren die unveraenderten Events und melden gefundene Bookmarks; der Inhalt wird dabei gleich serialisiert
+ * wie vom Transformer beim {@link PreprocessingMode#DOM}, damit beide Modi dieselbe Vorlage ergeben. Nach jedem
+ * Bookmark wird der Puffer an die Engine uebergeben, gepuffert wird also nur der statische Inhalt seit dem letzten
+ * Bookmark (bzw. seit einem mit {@link #hold(Element)} zurueckgehaltenen Element).
+ *
+ * @param <T> Typ der eingefuegten Bilder
+ */
+public final class TemplateWriter<T extends Image> {
+
+	private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private final AbstractMergeEngine<T> engine;
+	private final MergeSession<T> session;
+	private final StringBuilder buffer = new StringBuilder();
+	/** absolute Position des ersten Zeichens im Puffer */
+	private long offset = 0;
+	private boolean startTagOpen = false;
+	private boolean rootWritten = false;
+	private int openBookmarks = 0;
+	private final Deque<Element> elements = new ArrayDeque<>();
+	private final List<Element> held = new ArrayList<>();
+	private final Map<String, Deque<String>> namespaces = new HashMap<>();
+
+	/**
+	 * @param engine Engine, welche die Merge-Elemente erstellt
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 */
+	TemplateWriter(AbstractMergeEngine<T> engine, MergeSession<T> session) {
+
+		this.engine = engine;
+		this.session = session;
+		pushNamespace(XMLConstants.DEFAULT_NS_PREFIX, XMLConstants.NULL_NS_URI);
+		this.buffer.append(XML_DECLARATION);
+	}
+
+	/**
+	 * Uebernimmt das aktuelle Event unveraendert. Start- und End-Elemente muessen mit
+	 * {@link #writeStartElement(StartTag)} bzw. {@link #writeEndElement()} geschrieben werden.
+	 *
+	 * @param reader auf dem zu kopierenden Event positionierter Reader
+	 */
+	public void copyEvent(XMLStreamReader reader) {
+
+		switch (reader.getEventType()) {
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.SPACE:
+			writeCharacters(reader.getText());
+			break;
+		case XMLStreamConstants.CDATA:
+			closeStartTag();
+			this.buffer.append("<![CDATA[").append(reader.getText()).append("]]>");
+			break;
+		case XMLStreamConstants.COMMENT:
+			closeStartTag();
+			this.buffer.append("<!--").append(reader.getText()).append("-->");
+			break;
+		case XMLStreamConstants.PROCESSING_INSTRUCTION:
+			closeStartTag();
+			String data = reader.getPIData() != null ? reader.getPIData() : "";
+			this.buffer.append("<?").append(reader.getPITarget());
+			if (!data.isEmpty() && !Character.isSpaceChar(data.charAt(0))) {
+				this.buffer.append(' ');
+			}
+			this.buffer.append(data).append("?>");
+			break;
+		default:
+			// DTD, Entity-Deklarationen etc. werden auch vom Transformer nicht ausgegeben
+			break;
+		}
+	}
+
+	/**
+	 * @param text zu schreibender Text, wird escaped
+	 */
+	public void writeCharacters(String text) {
+
+		if (text.isEmpty() || this.elements.isEmpty() && this.openBookmarks == 0) {
+			// Whitespace ausserhalb des Root-Elementes ist im DOM nicht enthalten
+			return;
+		}
+		closeStartTag();
+		escapeText(this.buffer, text);
+	}
+
+	/**
+	 * @param reader auf einem START_ELEMENT positionierter Reader
+	 * @return Handle auf das geschriebene Element
+	 */
+	public Element copyStartElement(XMLStreamReader reader) {
+
+		return writeStartElement(StartTag.of(reader));
+	}
+
+	/**
+	 * Schreibt ein Start-Tag. Namespace-Deklarationen, die bereits gelten, werden weggelassen.
+	 *
+	 * @param tag zu schreibendes Start-Tag
+	 * @return Handle auf das geschriebene Element
+	 */
+	public Element writeStartElement(StartTag tag) {
+
+		boolean closedParent = closeStartTag();
+		Element element = new Element(tag.qname, this.elements.peek(), closedParent, position());
+		this.elements.push(element);
+		this.buffer.append('<').append(tag.qname);
+		Map<String, String> attributes = new LinkedHashMap<>();
+		if (!this.rootWritten && tag.namespaceURI != null) {
+			// der Transformer deklariert den Namespace des Root-Elementes vor allen anderen
+			declareNamespace(element, attributes, tag.prefix, tag.namespaceURI);
+		}
+		this.rootWritten = true;
+		for (int i = 0; i < tag.names.length; i++) {
+			if (tag.namespaceDeclaration[i]) {
+				declareNamespace(element, attributes, tag.names[i].indexOf(':') > 0 ? tag.names[i].substring(6)
+						: XMLConstants.DEFAULT_NS_PREFIX, tag.values[i]);
+			}
+		}
+		for (int i = 0; i < tag.names.length; i++) {
+			if (!tag.namespaceDeclaration[i]) {
+				String uri = tag.uris[i];
+				int colon = tag.names[i].indexOf(':');
+				if (uri != null && !uri.isEmpty() && colon > 0) {
+					declareNamespace(element, attributes, tag.names[i].substring(0, colon), uri);
+				}
+				attributes.put(tag.names[i], tag.values[i]);
+			}
+		}
+		declareNamespace(element, attributes, tag.prefix, tag.namespaceURI != null ? tag.namespaceURI
+				: XMLConstants.NULL_NS_URI);
+		List<String> names = new ArrayList<>();
+		List<long[]> values = new ArrayList<>();
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			this.buffer.append(' ').append(attribute.getKey()).append("=\"");
+			long start = position();
+			escapeAttribute(this.buffer, attribute.getValue());
+			names.add(attribute.getKey());
+			values.add(new long[] { start, position() });
+			this.buffer.append('"');
+		}
+		element.attributeNames = names.toArray(new String[names.size()]);
+		element.attributeValues = values.toArray(new long[values.size()][]);
+		this.startTagOpen = true;
+		return element;
+	}
+
+	/**
+	 * Schliesst das zuletzt geoeffnete Element. Elemente ohne Inhalt werden als {@code <x/>} geschrieben.
+	 */
+	public void writeEndElement() {
+
+		Element element = this.elements.pop();
+		if (this.startTagOpen) {
+			this.buffer.append("/>");
+			this.startTagOpen = false;
+		} else {
+			this.buffer.append("</").append(element.qname).append('>');
+		}
+		element.end = position();
+		for (String prefix : element.namespacePrefixes) {
+			this.namespaces.get(prefix).pop();
+		}
+	}
+
+	/**
+	 * Fuegt ein Bookmark ohne Inhalt ein.
+	 *
+	 * @param key Key des Bookmarks
+	 * @throws DocTemplateException ungueltige Struktur der Vorlage
+	 */
+	public void writeBookmark(String key) throws DocTemplateException {
+
+		writeStartBookmark(key);
+		writeEndBookmark();
+	}
+
+	/**
+	 * Beginnt ein Bookmark. Alles bis zum {@link #writeEndBookmark()} Geschriebene wird wie beim
+	 * {@link PreprocessingMode#DOM} Teil des Keys.
+	 *
+	 * @param key Beginn des Keys
+	 */
+	public void writeStartBookmark(String key) {
+
+		closeStartTag();
+		this.buffer.append(AbstractMergeEngine.INTERNAL_BOOKMARK_XML_START);
+		escapeText(this.buffer, key);
+		this.openBookmarks++;
+	}
+
+	/**
+	 * Schliesst das zuletzt begonnene Bookmark.
+	 *
+	 * @throws DocTemplateException ungueltige Struktur der Vorlage
+	 */
+	public void writeEndBookmark() throws DocTemplateException {
+
+		closeStartTag();
+		this.buffer.append(AbstractMergeEngine.INTERNAL_BOOKMARK_XML_END);
+		this.openBookmarks--;
+		if (this.openBookmarks == 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Ersetzt den Wert eines Attributes des zuletzt geoeffneten Elementes durch ein Bookmark.
+	 *
+	 * @param attribute Name des Attributes
+	 * @param value neuer Wert des Attributes inkl. Bookmark-Markern, wird escaped
+	 * @return <code>false</code>, wenn das Element kein solches Attribut hat
+	 * @throws DocTemplateException wenn das Start-Tag bereits an die Engine uebergeben wurde, d.h. wenn im Element vor
+	 *             dem Attribut-Bookmark bereits ein anderes Bookmark steht
+	 */
+	public boolean replaceAttributeValue(String attribute, String value) throws DocTemplateException {
+
+		Element element = this.elements.peek();
+		int index = element == null ? -1 : Arrays.asList(element.attributeNames).indexOf(attribute);
+		if (index < 0) {
+			return false;
+		}
+		long start = element.attributeValues[index][0];
+		long end = element.attributeValues[index][1];
+		if (start < this.offset || this.openBookmarks > 0) {
+			throw new DocTemplateException("error.template.invalid.structure", "attribute '" + attribute
+					+ "' of <" + element.qname + "> can not be replaced after other bookmarks in streaming mode");
+		}
+		StringBuilder sb = new StringBuilder();
+		escapeAttribute(sb, value);
+		this.buffer.replace((int) (start - this.offset), (int) (end - this.offset), sb.toString());
+		shift(end, sb.length() - (end - start));
+		return true;
+	}
+
+	/**
+	 * Verhindert, dass das Element an die Engine uebergeben wird, damit es spaeter mit {@link #remove(Element)} wieder
+	 * entfernt werden kann.
+	 *
+	 * @param element bereits geschriebenes Element
+	 */
+	public void hold(Element element) {
+
+		this.held.add(element);
+	}
+
+	/**
+	 * @param element mit {@link #hold(Element)} zurueckgehaltenes Element, das nicht mehr entfernt werden muss
+	 */
+	public void release(Element element) {
+
+		this.held.remove(element);
+	}
+
+	/**
+	 * Entfernt ein bereits geschlossenes Element wieder. Wird das Elternelement dadurch leer, wird es wie beim
+	 * {@link PreprocessingMode#DOM} als {@code <x/>} geschrieben.
+	 *
+	 * @param element zu entfernendes Element
+	 * @return <code>false</code>, wenn das Element bereits an die Engine uebergeben wurde
+	 */
+	public boolean remove(Element element) {
+
+		release(element);
+		if (element.end < 0 || element.start < this.offset) {
+			return false;
+		}
+		int start = (int) (element.start - this.offset);
+		this.buffer.delete(start, (int) (element.end - this.offset));
+		shift(element.end, element.start - element.end);
+		if (element.closedParent) {
+			// das entfernte Element war das erste Kind, evtl. ist das Elternelement nun leer
+			String endTag = "</" + element.parent.qname + '>';
+			if (element.parent.end < 0 && start == this.buffer.length()) {
+				this.buffer.setLength(start - 1);
+				this.startTagOpen = true;
+				shift(element.start, -1);
+			} else if (element.parent.end >= 0 && start + endTag.length() <= this.buffer.length()
+					&& endTag.equals(this.buffer.substring(start, start + endTag.length()))) {
+				this.buffer.replace(start - 1, start + endTag.length(), "/>");
+				shift(element.start, 1 - endTag.length());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Uebergibt den restlichen Inhalt an die Engine.
+	 *
+	 * @throws DocTemplateException ungueltige Struktur der Vorlage
+	 */
+	void close() throws DocTemplateException {
+
+		this.held.clear();
+		String remainder = this.engine.parseBookmarks(this.session, this.buffer.toString());
+		this.buffer.setLength(0);
+		this.session.getParseStack().peek().addMergeElement(new StaticMergeElement(remainder));
+	}
+
+	private void flush() throws DocTemplateException {
+
+		long limit = this.offset + this.buffer.length();
+		for (Element element : this.held) {
+			limit = Math.min(limit, element.start);
+		}
+		if (limit <= this.offset) {
+			return;
+		}
+		int length = (int) (limit - this.offset);
+		String remainder = this.engine.parseBookmarks(this.session, this.buffer.substring(0, length));
+		int consumed = length - remainder.length();
+		this.buffer.delete(0, consumed);
+		this.offset += consumed;
+	}
+
+	private long position() {
+
+		return this.offset + this.buffer.length();
+	}
+
+	private boolean closeStartTag() {
+
+		if (this.startTagOpen) {
+			this.buffer.append('>');
+			this.startTagOpen = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Korrigiert die Positionen der noch benoetigten Elemente nach einer Aenderung im Puffer.
+	 */
+	private void shift(long from, long delta) {
+
+		for (Iterator<Element> it = this.elements.iterator(); it.hasNext();) {
+			it.next().shift(from, delta);
+		}
+		for (Element element : this.held) {
+			element.shift(from, delta);
+		}
+	}
+
+	private boolean pushNamespace(String prefix, String uri) {
+
+		if (prefix.startsWith(XMLConstants.XML_NS_PREFIX)) {
+			return false;
+		}
+		Deque<String> uris = this.namespaces.get(prefix);
+		if (uris == null) {
+			uris = new ArrayDeque<>();
+			this.namespaces.put(prefix, uris);
+		} else if (uri.equals(uris.peek())) {
+			return false;
+		}
+		uris.push(uri);
+		return true;
+	}
+
+	private void declareNamespace(Element element, Map<String, String> attributes, String prefix, String uri) {
+
+		if (pushNamespace(prefix, uri)) {
+			element.namespacePrefixes.add(prefix);
+			if (prefix.isEmpty()) {
+				attributes.put(XMLConstants.XMLNS_ATTRIBUTE, uri);
+			} else if (!uri.isEmpty()) {
+				attributes.put(XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix, uri);
+			}
+		}
+	}
+
+	private static void escapeText(StringBuilder sb, String text) {
+
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '\r':
+				sb.append("&#13;");
+				break;
+			case '\n':
+				sb.append(LINE_SEPARATOR);
+				break;
+			default:
+				i = appendCharacter(sb, text, i, true);
+			}
+		}
+	}
+
+	private static void escapeAttribute(StringBuilder sb, String value) {
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			case '\r':
+				sb.append("&#13;");
+				break;
+			case '\n':
+				sb.append("&#10;");
+				break;
+			case '\t':
+				sb.append("&#9;");
+				break;
+			default:
+				i = appendCharacter(sb, value, i, false);
+			}
+		}
+	}
+
+	/**
+	 * Schreibt wie der Transformer Zeichen ausserhalb der BMP und in Texten auch Steuerzeichen als Zeichenreferenz.
+	 *
+	 * @return Index des letzten geschriebenen Zeichens
+	 */
+	private static int appendCharacter(StringBuilder sb, String s, int index, boolean text) {
+
+		char c = s.charAt(index);
+		if (Character.isHighSurrogate(c) && index + 1 < s.length() && Character.isLowSurrogate(s.charAt(index + 1))) {
+			sb.append("&#").append(s.codePointAt(index)).append(';');
+			return index + 1;
+		}
+		if (text && (c >= 0x01 && c <= 0x1F && c != '\t' || c >= 0x7F && c <= 0x9F)) {
+			sb.append("&#").append((int) c).append(';');
+		} else {
+			sb.append(c);
+		}
+		return index;
+	}
+
+	/**
+	 * Handle auf ein geschriebenes Element.
+	 */
+	public static final class Element {
+
+		private final String qname;
+		private final Element parent;
+		private final boolean closedParent;
+		private long start;
+		private long end = -1;
+		private String[] attributeNames;
+		private long[][] attributeValues = new long[0][];
+		private final List<String> namespacePrefixes = new ArrayList<>(0);
+
+		private Element(String qname, Element parent, boolean closedParent, long start) {
+
+			this.qname = qname;
+			this.parent = parent;
+			this.closedParent = closedParent;
+			this.start = start;
+		}
+
+		private void shift(long from, long delta) {
+
+			if (this.start >= from) {
+				this.start += delta;
+			}
+			if (this.end >= from) {
+				this.end += delta;
+			}
+			for (long[] value : this.attributeValues) {
+				for (int i = 0; i < value.length; i++) {
+					if (value[i] >= from) {
+						value[i] += delta;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start-Tag eines Elementes der Vorlage. Die Attribute inkl. Namespace-Deklarationen sind wie im DOM nach Namen
+	 * sortiert.
+	 */
+	public static final class StartTag {
+
+		private final String qname;
+		private final String prefix;
+		private final String namespaceURI;
+		private final String[] names;
+		private final String[] uris;
+		private final String[] values;
+		private final boolean[] namespaceDeclaration;
+
+		private StartTag(String qname, String prefix, String namespaceURI, String[] names, String[] uris,
+				String[] values, boolean[] namespaceDeclaration) {
+
+			this.qname = qname;
+			this.prefix = prefix;
+			this.namespaceURI = namespaceURI;
+			this.names = names;
+			this.uris = uris;
+			this.values = values;
+			this.namespaceDeclaration = namespaceDeclaration;
+		}
+
+		/**
+		 * @param reader auf einem START_ELEMENT positionierter Reader
+		 * @return Start-Tag des aktuellen Elementes
+		 */
+		public static StartTag of(XMLStreamReader reader) {
+
+			String prefix = reader.getPrefix() != null ? reader.getPrefix() : XMLConstants.DEFAULT_NS_PREFIX;
+			String qname = prefix.isEmpty() ? reader.getLocalName() : prefix + ':' + reader.getLocalName();
+			String namespaceURI = reader.getNamespaceURI();
+			int namespaceCount = reader.getNamespaceCount();
+			int count = namespaceCount + reader.getAttributeCount();
+			String[][] attributes = new String[count][];
+			for (int i = 0; i < namespaceCount; i++) {
+				String nsPrefix = reader.getNamespacePrefix(i);
+				String uri = reader.getNamespaceURI(i);
+				attributes[i] = new String[] {
+						nsPrefix == null || nsPrefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE
+								: XMLConstants.XMLNS_ATTRIBUTE + ':' + nsPrefix,
+						XMLConstants.XMLNS_ATTRIBUTE_NS_URI, uri != null ? uri : XMLConstants.NULL_NS_URI };
+			}
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				String attrPrefix = reader.getAttributePrefix(i);
+				String name = attrPrefix == null || attrPrefix.isEmpty() ? reader.getAttributeLocalName(i)
+						: attrPrefix + ':' + reader.getAttributeLocalName(i);
+				attributes[namespaceCount + i] = new String[] { name, reader.getAttributeNamespace(i),
+						reader.getAttributeValue(i) };
+			}
+			Arrays.sort(attributes, (a, b) -> a[0].compareTo(b[0]));
+			String[] names = new String[count];
+			String[] uris = new String[count];
+			String[] values = new String[count];
+			boolean[] namespaceDeclaration = new boolean[count];
+			for (int i = 0; i < count; i++) {
+				names[i] = attributes[i][0];
+				uris[i] = attributes[i][1];
+				values[i] = attributes[i][2];
+				namespaceDeclaration[i] = XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(uris[i]);
+			}
+			return new StartTag(qname, prefix, namespaceURI != null && !namespaceURI.isEmpty() ? namespaceURI : null,
+					names, uris, values, namespaceDeclaration);
+		}
+
+		/**
+		 * @return qualifizierter Name des Elementes
+		 */
+		public String getQName() {
+
+			return this.qname;
+		}
+
+		/**
+		 * @return Namespace des Elementes oder <code>null</code>
+		 */
+		public String getNamespaceURI() {
+
+			return this.namespaceURI;
+		}
+
+		/**
+		 * @param name qualifizierter Name des Attributes
+		 * @return Wert des Attributes oder <code>null</code>
+		 */
+		public String getAttribute(String name) {
+
+			int index = Arrays.asList(this.names).indexOf(name);
+			return index < 0 ? null : this.values[index];
+		}
+
+		/**
+		 * @param name qualifizierter Name des Attributes, Gross-/Kleinschreibung wird ignoriert
+		 * @return Wert des Attributes oder <code>null</code>
+		 */
+		public String getAttributeIgnoreCase(String name) {
+
+			for (int i = 0; i < this.names.length; i++) {
+				if (this.names[i].equalsIgnoreCase(name)) {
+					return this.values[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return Wert des ersten Attributes in der Sortierung des DOM oder <code>null</code>, wenn das Element keine
+		 *         Attribute hat
+		 */
+		public String getFirstAttribute() {
+
+			return this.values.length > 0 ? this.values[0] : null;
+		}
+	}
+
+}
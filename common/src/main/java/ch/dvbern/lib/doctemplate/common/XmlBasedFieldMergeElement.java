@@ -24,11 +24,11 @@ import java.util.Date;
 import java.util.Map;
 
 import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import ch.dvbern.lib.doctemplate.util.FormatHelper;
+import ch.dvbern.lib.doctemplate.util.FieldFormat;
+import ch.dvbern.lib.doctemplate.util.FormatDefaults;
 import ch.dvbern.lib.doctemplate.util.ImageHandler;
 import ch.dvbern.lib.doctemplate.util.LdtConstants;
 
@@ -40,25 +40,55 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 	private static final Log log = LogFactory.getLog(XmlBasedFieldMergeElement.class);
 	private final String key;
 	private final String name;
+	/** Schluessel ohne Format-Suffix, mit dem die Daten aus der {@link MergeSource} gelesen werden */
+	private final String dataKey;
+	private final String formatSuffix;
+	private final FieldFormat format;
+	/** zuletzt verwendetes Default-Format, der Typ der Daten eines Feldes wechselt normalerweise nicht */
+	private volatile FieldFormat defaultFormat;
 	private Map<String, T> images = null;
 	private ImageHandler<T> imageHandler = null;
 
 	/**
-	 * Konstruktor eines MergeElements, dessen Ausgabe dynamisch ermittelt wird
+	 * Konstruktor eines MergeElements, dessen Ausgabe dynamisch ermittelt wird. Bilder werden ueber die
+	 * {@link MergeSession} des Kontexts eingefuegt, damit das Element unabhaengig vom einzelnen Merge ist und in einer
+	 * {@link CompiledTemplate} wiederverwendet werden kann.
 	 *
 	 * @param name
 	 * @param key Identifikation des Inhaltes, der fuer die Ausgabe ermittelt werden soll
-	 * @param images
-	 * @param imageHandler
 	 */
-	public XmlBasedFieldMergeElement(String name, String key, Map<String, T> images, ImageHandler<T> imageHandler) {
+	public XmlBasedFieldMergeElement(String name, String key) {
 
 		this.key = key;
 		this.name = name;
+		// Format-Suffix aus key extrahieren
+		int i = key.indexOf(FORMAT_SUFFIX);
+		this.dataKey = i > 0 ? key.substring(0, i) : key;
+		this.formatSuffix = i > 0 ? key.substring(i + FORMAT_SUFFIX.length()) : null;
+		this.format = FieldFormat.compile(this.formatSuffix);
+	}
+
+	/**
+	 * Konstruktor eines MergeElements, dessen Ausgabe dynamisch ermittelt wird
+	 *
+	 * @param name
+	 * @param key Identifikation des Inhaltes, der fuer die Ausgabe ermittelt werden soll
+	 * @param images wird verwendet, wenn der Kontext keine {@link MergeSession} enthaelt
+	 * @param imageHandler wird verwendet, wenn der Kontext keine {@link MergeSession} enthaelt
+	 */
+	public XmlBasedFieldMergeElement(String name, String key, Map<String, T> images, ImageHandler<T> imageHandler) {
+
+		this(name, key);
 		this.images = images;
 		this.imageHandler = imageHandler;
 	}
 
+	@Override
+	public void collectKeys(KeyManifest manifest) {
+
+		manifest.addFieldKey(this.dataKey);
+	}
+
 	/**
 	 * @see ch.dvbern.lib.doctemplate.common.BasicMergeElement#getContent(ch.dvbern.lib.doctemplate.common.MergeContext,
 	 *      ch.dvbern.lib.doctemplate.common.MergeSource, java.io.OutputStream)
@@ -66,19 +96,15 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 	@Override
 	public void getContent(MergeContext ctx, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
 
-		// Format-Suffix aus key extrahieren
-		String keyWithoutFormatSuffix = this.key, formatSuffix = null;
-		int i = this.key.indexOf(FORMAT_SUFFIX);
-		if (i > 0) {
-			formatSuffix = this.key.substring(i + FORMAT_SUFFIX.length());
-			keyWithoutFormatSuffix = this.key.substring(0, i);
-		}
-
-		Object data = mergeSource.getData(ctx, keyWithoutFormatSuffix);
+		Object data = mergeSource.getData(ctx, this.dataKey);
 		if (data instanceof Image) {
-			addImage((T) data, formatSuffix, output);
+			addImage(ctx, (T) data, this.formatSuffix, output);
 		} else if (data != null) {
-			String dataAsString = FormatHelper.getDataAsString(data, StringUtils.isEmpty(formatSuffix) ? getDefaultFormatter(data) : formatSuffix);
+			// Sprache und Zeitzone koennen seit dem Kompilieren der Vorlage geaendert haben
+			MergeSession<?> session = ctx.getSession();
+			FormatDefaults defaults = session != null ? session.getFormatDefaults() : FormatDefaults.current();
+			FieldFormat fieldFormat = this.format != null ? this.format.current(defaults) : getDefaultFieldFormat(data, defaults);
+			String dataAsString = fieldFormat != null ? fieldFormat.format(data) : data.toString();
 			dataAsString = StringEscapeUtils.escapeXml(dataAsString);
 			writeText(output, dataAsString);
 		} else {
@@ -108,6 +134,27 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 		return formatter;
 	}
 
+	/**
+	 * Liefert das kompilierte Pattern von {@link #getDefaultFormatter(Object)}, solange sich dieses und die
+	 * Default-Einstellungen (vgl. {@link FieldFormat#current(FormatDefaults)}) nicht aendern wird dieselbe Instanz
+	 * wiederverwendet.
+	 */
+	private FieldFormat getDefaultFieldFormat(Object data, FormatDefaults defaults) {
+
+		String pattern = getDefaultFormatter(data);
+		if (pattern == null) {
+			return null;
+		}
+		FieldFormat result = this.defaultFormat;
+		if (result == null || !pattern.equals(result.getPattern())) {
+			result = FieldFormat.compile(pattern, defaults);
+		} else {
+			result = result.current(defaults);
+		}
+		this.defaultFormat = result;
+		return result;
+	}
+
 	/**
 	 * @return
 	 */
@@ -146,18 +193,22 @@ public class XmlBasedFieldMergeElement<T extends Image> extends BasicMergeElemen
 		}
 	}
 
-	private void addImage(T image, String formatSuffix, OutputStream output) throws DocTemplateException {
+	@SuppressWarnings("unchecked")
+	private void addImage(MergeContext ctx, T image, String formatSuffix, OutputStream output) throws DocTemplateException {
 
-		if (this.imageHandler != null) {
+		MergeSession<T> session = (MergeSession<T>) ctx.getSession();
+		Map<String, T> imgs = session != null ? session.getImages() : this.images;
+		ImageHandler<T> handler = session != null ? session.getImageHandler() : this.imageHandler;
+		if (handler != null) {
 			boolean doublette = true;
-			if (!(doublette = this.images.containsValue(image))) {
-				this.images.put(this.imageHandler.addImage(image, formatSuffix, output, this.images.size(), doublette), image);
+			if (!(doublette = imgs.containsValue(image))) {
+				imgs.put(handler.addImage(image, formatSuffix, output, imgs.size(), doublette), image);
 				return;
 			}
 			int counter = 0;
-			for (T imItem : this.images.values()) {
+			for (T imItem : imgs.values()) {
 				if (imItem.equals(image)) {
-					this.imageHandler.addImage(imItem, formatSuffix, output, counter, doublette);
+					handler.addImage(imItem, formatSuffix, output, counter, doublette);
 					break;
 				}
 				counter++;
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Inhaltsverzeichnis einer ZIP-Vorlage (ODT, DOCX), gelesen aus dem Central Directory. Erlaubt es, einzelne Eintraege
+ * zu entpacken oder sie mit {@link ZipTemplateOutputStream#copyEntry(ZipTemplate, Entry)} unveraendert, also ohne erneutes
+ * Komprimieren, in das Ergebnisdokument zu uebernehmen. Instanzen sind unveraenderlich.
+ */
+public final class ZipTemplate {
+
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+
+	private final byte[] zip;
+	private final List<Entry> entries;
+
+	private ZipTemplate(byte[] zip, List<Entry> entries) {
+
+		this.zip = zip;
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * Liest das Central Directory von <code>zip</code>.
+	 *
+	 * @param zip Inhalt der Vorlage, wird nicht kopiert und darf nicht mehr veraendert werden
+	 * @return Inhaltsverzeichnis der Vorlage
+	 * @throws DocTemplateException wenn <code>zip</code> kein gueltiges ZIP-Archiv ist
+	 */
+	public static ZipTemplate read(byte[] zip) throws DocTemplateException {
+
+		try {
+			int end = findEnd(zip);
+			long count = u16(zip, end + 10);
+			long size = u32(zip, end + 12);
+			long offset = u32(zip, end + 16);
+			int locator = end - ZIP64_LOCATOR_SIZE;
+			if (locator >= 0 && i32(zip, locator) == ZIP64_LOCATOR_SIGNATURE) {
+				int zip64End = checkedOffset(zip, u64(zip, locator + 8), 56);
+				if (i32(zip, zip64End) != ZIP64_END_SIGNATURE) {
+					throw new ZipException("invalid zip64 end of central directory");
+				}
+				count = u64(zip, zip64End + 32);
+				size = u64(zip, zip64End + 40);
+				offset = u64(zip, zip64End + 48);
+			}
+			int pos = checkedOffset(zip, offset, size);
+			List<Entry> entries = new ArrayList<>();
+			for (long i = 0; i < count; i++) {
+				Entry entry = readEntry(zip, pos);
+				entries.add(entry);
+				pos += 46 + u16(zip, pos + 28) + u16(zip, pos + 30) + u16(zip, pos + 32);
+			}
+			return new ZipTemplate(zip, entries);
+		} catch (ZipException | ArrayIndexOutOfBoundsException e) {
+			throw new DocTemplateException(e instanceof ZipException ? e : new ZipException("invalid zip archive"));
+		}
+	}
+
+	private static Entry readEntry(byte[] zip, int pos) throws ZipException {
+
+		if (i32(zip, pos) != CENTRAL_HEADER_SIGNATURE) {
+			throw new ZipException("invalid central directory header");
+		}
+		int nameLength = u16(zip, pos + 28);
+		int extraLength = u16(zip, pos + 30);
+		long compressedSize = u32(zip, pos + 20);
+		long size = u32(zip, pos + 24);
+		long localOffset = u32(zip, pos + 42);
+		// Zip64: Werte mit 0xFFFFFFFF stehen in dieser Reihenfolge im Extra-Feld
+		int extra = pos + 46 + nameLength;
+		for (int e = extra; e + 4 <= extra + extraLength;) {
+			int id = u16(zip, e);
+			int length = u16(zip, e + 2);
+			if (id == ZIP64_EXTRA_ID) {
+				int value = e + 4;
+				if (size == 0xFFFFFFFFL) {
+					size = u64(zip, value);
+					value += 8;
+				}
+				if (compressedSize == 0xFFFFFFFFL) {
+					compressedSize = u64(zip, value);
+					value += 8;
+				}
+				if (localOffset == 0xFFFFFFFFL) {
+					localOffset = u64(zip, value);
+				}
+			}
+			e += 4 + length;
+		}
+		int local = checkedOffset(zip, localOffset, 30);
+		if (i32(zip, local) != LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("invalid local file header");
+		}
+		long dataOffset = local + 30L + u16(zip, local + 26) + u16(zip, local + 28);
+		checkedOffset(zip, dataOffset, compressedSize);
+		byte[] rawName = new byte[nameLength];
+		System.arraycopy(zip, pos + 46, rawName, 0, nameLength);
+		int flags = u16(zip, pos + 8);
+		String name = new String(rawName, (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+		return new Entry(name, rawName, flags, u16(zip, pos + 10), u32(zip, pos + 12), u32(zip, pos + 16), (int) dataOffset,
+				(int) compressedSize, size);
+	}
+
+	private static int findEnd(byte[] zip) throws ZipException {
+
+		// der Kommentar am Ende des Archivs ist hoechstens 0xFFFF Bytes lang
+		for (int pos = zip.length - END_SIZE; pos >= 0 && pos >= zip.length - END_SIZE - 0xFFFF; pos--) {
+			if (i32(zip, pos) == END_SIGNATURE) {
+				return pos;
+			}
+		}
+		throw new ZipException("end of central directory not found");
+	}
+
+	private static int checkedOffset(byte[] zip, long offset, long length) throws ZipException {
+
+		if (offset < 0 || length < 0 || offset + length > zip.length) {
+			throw new ZipException("invalid zip offset");
+		}
+		return (int) offset;
+	}
+
+	static int u16(byte[] b, int pos) {
+
+		return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8;
+	}
+
+	static long u32(byte[] b, int pos) {
+
+		return i32(b, pos) & 0xFFFFFFFFL;
+	}
+
+	private static int i32(byte[] b, int pos) {
+
+		return u16(b, pos) | u16(b, pos + 2) << 16;
+	}
+
+	private static long u64(byte[] b, int pos) {
+
+		return u32(b, pos) | u32(b, pos + 4) << 32;
+	}
+
+	/**
+	 * @return alle Eintraege in der Reihenfolge des Central Directory
+	 */
+	public List<Entry> getEntries() {
+
+		return this.entries;
+	}
+
+	/**
+	 * @param entry Eintrag dieser Vorlage
+	 * @return entpackter Inhalt von <code>entry</code>
+	 * @throws IOException wenn die Kompressionsmethode nicht unterstuetzt wird
+	 */
+	public InputStream getInputStream(Entry entry) throws IOException {
+
+		InputStream raw = new ByteArrayInputStream(this.zip, entry.dataOffset, entry.compressedSize);
+		if (entry.method == STORED) {
+			return raw;
+		}
+		if (entry.method != DEFLATED) {
+			throw new ZipException("unsupported compression method " + entry.method + " in " + entry.name);
+		}
+		return new InflaterInputStream(raw, new Inflater(true)) {
+
+			private boolean eof;
+
+			@Override
+			protected void fill() throws IOException {
+
+				if (this.eof) {
+					throw new EOFException("Unexpected end of ZLIB input stream");
+				}
+				this.len = this.in.read(this.buf, 0, this.buf.length);
+				if (this.len == -1) {
+					// wie ZipFile: der Inflater im nowrap-Modus benoetigt evtl. ein zusaetzliches Byte
+					this.buf[0] = 0;
+					this.len = 1;
+					this.eof = true;
+				}
+				this.inf.setInput(this.buf, 0, this.len);
+			}
+
+			@Override
+			public void close() throws IOException {
+
+				super.close();
+				this.inf.end();
+			}
+		};
+	}
+
+	byte[] getBytes() {
+
+		return this.zip;
+	}
+
+	/**
+	 * Eintrag einer {@link ZipTemplate}.
+	 */
+	public static final class Entry {
+
+		private final String name;
+		final byte[] rawName;
+		final int flags;
+		final int method;
+		final long dosTime;
+		final long crc;
+		final int dataOffset;
+		final int compressedSize;
+		final long size;
+
+		Entry(String name, byte[] rawName, int flags, int method, long dosTime, long crc, int dataOffset, int compressedSize, long size) {
+
+			this.name = name;
+			this.rawName = rawName;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.dataOffset = dataOffset;
+			this.compressedSize = compressedSize;
+			this.size = size;
+		}
+
+		/**
+		 * @return Name des Eintrags, z.B. "content.xml"
+		 */
+		public String getName() {
+
+			return this.name;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Schreibt ein ZIP-Archiv wie {@link java.util.zip.ZipOutputStream}, kann aber zusaetzlich Eintraege einer
+ * {@link ZipTemplate} unveraendert uebernehmen: die bereits komprimierten Daten werden ohne Entpacken und erneutes
+ * Komprimieren kopiert. Neue Eintraege werden mit {@link #putNextEntry(String)} begonnen und komprimiert geschrieben.
+ * Nicht threadsafe.
+ */
+public final class ZipTemplateOutputStream extends OutputStream {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int VERSION = 20;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int FLAG_UTF8 = 0x800;
+	private static final long MAX_OFFSET = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+
+	private final OutputStream out;
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+	/** lokale Header werden gesammelt geschrieben, damit ungepufferte Ziel-Streams nicht byteweise beschrieben werden */
+	private final ByteArrayOutputStream header = new ByteArrayOutputStream(128);
+	private final Set<String> names = new HashSet<>();
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final CRC32 crc = new CRC32();
+	private final byte[] buffer = new byte[8192];
+	private final long dosTime = toDosTime(LocalDateTime.now());
+	private long written;
+	private int entryCount;
+	/** Name des offenen Eintrags, <code>null</code> wenn kein Eintrag offen ist */
+	private byte[] openName;
+	private long openOffset;
+	private long openSize;
+	private boolean finished;
+	private boolean closed;
+
+	/**
+	 * @param out Ziel des Archivs, wird mit {@link #close()} geschlossen, nicht aber mit {@link #finish()}
+	 */
+	public ZipTemplateOutputStream(OutputStream out) {
+
+		this.out = out;
+	}
+
+	/**
+	 * Beginnt einen neuen, komprimierten Eintrag. Ein noch offener Eintrag wird abgeschlossen.
+	 *
+	 * @param name Name des Eintrags
+	 * @throws IOException bei doppelten Namen oder Schreibfehlern
+	 */
+	public void putNextEntry(String name) throws IOException {
+
+		closeEntry();
+		checkName(name);
+		byte[] rawName = name.getBytes(StandardCharsets.UTF_8);
+		this.openName = rawName;
+		this.openOffset = this.written;
+		this.openSize = 0;
+		this.deflater.reset();
+		this.crc.reset();
+		writeLocalHeader(FLAG_DATA_DESCRIPTOR | FLAG_UTF8, ZipTemplate.DEFLATED, this.dosTime, 0, 0, 0, rawName);
+	}
+
+	/**
+	 * Uebernimmt <code>entry</code> unveraendert, d.h. ohne die Daten zu entpacken und neu zu komprimieren. Ein noch
+	 * offener Eintrag wird abgeschlossen.
+	 *
+	 * @param template Vorlage, aus der <code>entry</code> stammt
+	 * @param entry zu kopierender Eintrag
+	 * @throws IOException bei doppelten Namen oder Schreibfehlern
+	 */
+	public void copyEntry(ZipTemplate template, ZipTemplate.Entry entry) throws IOException {
+
+		closeEntry();
+		checkName(entry.getName());
+		long offset = this.written;
+		// Groessen und Pruefsumme sind bekannt, daher ohne Data Descriptor
+		int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+		writeLocalHeader(flags, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, entry.rawName);
+		writeBytes(template.getBytes(), entry.dataOffset, entry.compressedSize);
+		addCentralHeader(flags, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, entry.rawName, offset);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		if (this.openName == null) {
+			throw new ZipException("no current ZIP entry");
+		}
+		if (len == 0) {
+			return;
+		}
+		this.crc.update(b, off, len);
+		this.openSize += len;
+		this.deflater.setInput(b, off, len);
+		while (!this.deflater.needsInput()) {
+			deflate();
+		}
+	}
+
+	/**
+	 * Schliesst den offenen Eintrag ab, falls einer offen ist.
+	 *
+	 * @throws IOException bei Schreibfehlern
+	 */
+	public void closeEntry() throws IOException {
+
+		if (this.finished) {
+			throw new IOException("Stream closed");
+		}
+		if (this.openName == null) {
+			return;
+		}
+		this.deflater.finish();
+		while (!this.deflater.finished()) {
+			deflate();
+		}
+		long compressedSize = this.deflater.getBytesWritten();
+		long crcValue = this.crc.getValue();
+		this.header.reset();
+		writeInt(this.header, DATA_DESCRIPTOR_SIGNATURE);
+		writeInt(this.header, crcValue);
+		writeInt(this.header, compressedSize);
+		writeInt(this.header, this.openSize);
+		writeHeader();
+		addCentralHeader(FLAG_DATA_DESCRIPTOR | FLAG_UTF8, ZipTemplate.DEFLATED, this.dosTime, crcValue, compressedSize, this.openSize,
+				this.openName, this.openOffset);
+		this.openName = null;
+	}
+
+	/**
+	 * Schliesst den offenen Eintrag ab und schreibt das Inhaltsverzeichnis, ohne den Ziel-Stream zu schliessen.
+	 *
+	 * @throws IOException bei Schreibfehlern
+	 */
+	public void finish() throws IOException {
+
+		if (this.finished) {
+			return;
+		}
+		try {
+			closeEntry();
+			long offset = this.written;
+			int size = this.centralDirectory.size();
+			if (offset + size > MAX_OFFSET) {
+				throw new ZipException("archive too large");
+			}
+			ByteArrayOutputStream cd = this.centralDirectory;
+			writeInt(cd, END_SIGNATURE);
+			writeShort(cd, 0);
+			writeShort(cd, 0);
+			writeShort(cd, this.entryCount);
+			writeShort(cd, this.entryCount);
+			writeInt(cd, size);
+			writeInt(cd, offset);
+			writeShort(cd, 0);
+			cd.writeTo(this.out);
+			this.written += cd.size();
+			this.out.flush();
+		} finally {
+			this.finished = true;
+			this.deflater.end();
+		}
+	}
+
+	/**
+	 * Schliesst den offenen Eintrag ab, schreibt das Inhaltsverzeichnis und schliesst den Ziel-Stream.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		try {
+			finish();
+		} finally {
+			this.out.close();
+		}
+	}
+
+	private void checkName(String name) throws ZipException {
+
+		if (!this.names.add(name)) {
+			throw new ZipException("duplicate entry: " + name);
+		}
+		if (this.names.size() > MAX_ENTRIES) {
+			throw new ZipException("too many entries");
+		}
+	}
+
+	private void deflate() throws IOException {
+
+		int len = this.deflater.deflate(this.buffer, 0, this.buffer.length);
+		if (len > 0) {
+			writeBytes(this.buffer, 0, len);
+		}
+	}
+
+	private void writeLocalHeader(int flags, int method, long time, long crcValue, long compressedSize, long size, byte[] rawName)
+			throws IOException {
+
+		this.header.reset();
+		writeInt(this.header, LOCAL_HEADER_SIGNATURE);
+		writeShort(this.header, VERSION);
+		writeShort(this.header, flags);
+		writeShort(this.header, method);
+		writeInt(this.header, time);
+		writeInt(this.header, crcValue);
+		writeInt(this.header, compressedSize);
+		writeInt(this.header, size);
+		writeShort(this.header, rawName.length);
+		writeShort(this.header, 0);
+		this.header.write(rawName, 0, rawName.length);
+		writeHeader();
+	}
+
+	private void writeHeader() throws IOException {
+
+		this.header.writeTo(this.out);
+		this.written += this.header.size();
+	}
+
+	private void addCentralHeader(int flags, int method, long time, long crcValue, long compressedSize, long size, byte[] rawName,
+			long offset) throws IOException {
+
+		if (offset > MAX_OFFSET || compressedSize > MAX_OFFSET || size > MAX_OFFSET) {
+			throw new ZipException("archive too large");
+		}
+		ByteArrayOutputStream cd = this.centralDirectory;
+		writeInt(cd, CENTRAL_HEADER_SIGNATURE);
+		writeShort(cd, VERSION);
+		writeShort(cd, VERSION);
+		writeShort(cd, flags);
+		writeShort(cd, method);
+		writeInt(cd, time);
+		writeInt(cd, crcValue);
+		writeInt(cd, compressedSize);
+		writeInt(cd, size);
+		writeShort(cd, rawName.length);
+		writeShort(cd, 0);
+		writeShort(cd, 0);
+		writeShort(cd, 0);
+		writeShort(cd, 0);
+		writeInt(cd, 0);
+		writeInt(cd, offset);
+		cd.write(rawName, 0, rawName.length);
+		this.entryCount++;
+	}
+
+	private void writeBytes(byte[] b, int off, int len) throws IOException {
+
+		this.out.write(b, off, len);
+		this.written += len;
+	}
+
+	private static void writeShort(OutputStream os, int v) throws IOException {
+
+		os.write(v & 0xff);
+		os.write((v >>> 8) & 0xff);
+	}
+
+	private static void writeInt(OutputStream os, long v) throws IOException {
+
+		writeShort(os, (int) (v & 0xffff));
+		writeShort(os, (int) ((v >>> 16) & 0xffff));
+	}
+
+	/**
+	 * @return <code>time</code> im MS-DOS-Format, wie es im ZIP-Header steht
+	 */
+	private static long toDosTime(LocalDateTime time) {
+
+		if (time.getYear() < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (long) (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16 | time.getHour() << 11
+				| time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.CollationKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.MergeContext;
+import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.util.IterationSorter.SortKeys;
+import ch.dvbern.lib.doctemplate.util.IterationSorter.Sortable;
+
+/**
+ * Sortiert sehr grosse Iterationen mit Zwischenablage auf der Festplatte. Jeweils <code>threshold</code> Elemente
+ * werden im Speicher sortiert und ihre Sortierwerte zusammen mit der Position des Elements als Lauf in eine temporaere
+ * Datei geschrieben. Die Elemente selbst werden danach nicht gehalten.
+ * <p>
+ * Die Laeufe werden erst beim Durchlaufen des Resultats gemischt. Dabei werden jeweils die Positionen der naechsten
+ * <code>threshold</code> Elemente gelesen und die Elemente in einem weiteren Durchgang ueber
+ * {@link MergeSource#whileIterator(MergeContext, String)} anhand ihrer Position erneut abgeholt. Im Speicher sind damit
+ * hoechstens <code>threshold</code> Elemente bzw. deren Sortierwerte (inkl. {@link CollationKey}s), die Iteration wird
+ * dafuer bei <code>n</code> Elementen etwa <code>n / threshold + 1</code> mal abgefragt und muss jedes Mal dieselben
+ * Elemente in derselben Reihenfolge liefern.
+ * <p>
+ * Die Reihenfolge ist dieselbe wie bei {@link IterationSorter#sort(MergeContext, MergeSource, List, List)}. Die
+ * Sortierwerte muessen {@link Serializable} sein.
+ */
+final class ExternalSorter {
+
+	/** maximale Anzahl gleichzeitig gemischter Laeufe, mehr Laeufe werden in mehreren Durchgaengen gemischt */
+	static final int MAX_FAN_IN = 64;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Log log = LogFactory.getLog(ExternalSorter.class);
+
+	private ExternalSorter() {
+
+	}
+
+	/**
+	 * @param ctx aktueller Mergekontext
+	 * @param basicSource uebergeordnete MergeSource, liefert Sortierwerte, die ein Element nicht kennt, und die
+	 *            Elemente der Iteration
+	 * @param key Key der Iteration bei <code>basicSource</code>, ueber den die Elemente erneut abgeholt werden
+	 * @param mergeSources zu sortierende Elemente, von <code>basicSource.whileIterator(ctx, key)</code>
+	 * @param sortFieldKeys Sortierkriterien, evtl. mit Suffix "_DESC"
+	 * @param threshold maximale Anzahl Elemente, die bzw. deren Sortierwerte gleichzeitig im Speicher gehalten werden
+	 * @return sortierte Elemente; ist das Resultat {@link Closeable}, muss es geschlossen werden, falls es nicht
+	 *         vollstaendig durchlaufen wird
+	 * @throws DocTemplateException wenn die temporaeren Dateien nicht geschrieben werden koennen oder ein Sortierwert
+	 *             nicht serialisierbar ist
+	 */
+	static Iterator<MergeSource> sort(MergeContext ctx, MergeSource basicSource, String key, Iterator<MergeSource> mergeSources,
+			List<String> sortFieldKeys, int threshold) throws DocTemplateException {
+
+		SortKeys sortKeys = new SortKeys(ctx, basicSource, sortFieldKeys);
+		// die Laeufe sind in der Reihenfolge der Eingabe, bei gleichen Werten entscheidet die Position
+		Comparator<Sortable> order = sortKeys.thenComparingInt(sortable -> sortable.index);
+		List<Sortable> chunk = new ArrayList<>();
+		Deque<Run> runs = new ArrayDeque<>();
+		int count = 0;
+		boolean merging = false;
+		try {
+			while (mergeSources.hasNext()) {
+				chunk.add(sortKeys.extract(mergeSources.next(), count++));
+				if (chunk.size() >= threshold) {
+					runs.add(writeRun(chunk, order));
+					chunk.clear();
+				}
+			}
+			if (runs.isEmpty()) {
+				// passt in den Speicher
+				Sortable[] sortables = chunk.toArray(new Sortable[chunk.size()]);
+				IterationSorter.sort(sortables, order);
+				return IterationSorter.unwrap(sortables).iterator();
+			}
+			if (!chunk.isEmpty()) {
+				runs.add(writeRun(chunk, order));
+				chunk.clear();
+			}
+			log.debug("external sort of " + count + " elements in " + runs.size() + " runs");
+			while (runs.size() > MAX_FAN_IN) {
+				List<Run> group = new ArrayList<>(MAX_FAN_IN);
+				for (int i = 0; i < MAX_FAN_IN; i++) {
+					group.add(runs.poll());
+				}
+				try {
+					Run merged = new Run();
+					runs.add(merged);
+					try (RunWriter writer = new RunWriter(merged)) {
+						merge(group, sortFieldKeys.size(), order, writer::write);
+					}
+				} finally {
+					for (Run run : group) {
+						run.delete();
+					}
+				}
+			}
+			// der Kontext des Merges aendert sich waehrend des Durchlaufens
+			MergeContext fetchContext = new MergeContext(ctx.getCurrentMergeSource(), ctx.getSession());
+			SortedIterator result = new SortedIterator(runs, sortFieldKeys.size(), order, fetchContext, basicSource, key, threshold);
+			merging = true;
+			return result;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new DocTemplateException(e);
+		} finally {
+			if (!merging) {
+				for (Run run : runs) {
+					run.delete();
+				}
+			}
+		}
+	}
+
+	private static Run writeRun(List<Sortable> chunk, Comparator<Sortable> order) throws IOException {
+
+		Sortable[] sortables = chunk.toArray(new Sortable[chunk.size()]);
+		IterationSorter.sort(sortables, order);
+		Run run = new Run();
+		try (RunWriter writer = new RunWriter(run)) {
+			for (Sortable sortable : sortables) {
+				writer.write(sortable);
+			}
+		} catch (IOException | RuntimeException e) {
+			run.delete();
+			throw e;
+		}
+		return run;
+	}
+
+	private static void merge(Collection<Run> runs, int valueCount, Comparator<Sortable> order, SortableSink sink) throws IOException,
+			ClassNotFoundException {
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), (r1, r2) -> order.compare(r1.current, r2.current));
+		List<RunReader> readers = new ArrayList<>(runs.size());
+		try {
+			for (Run run : runs) {
+				RunReader reader = new RunReader(run, valueCount);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			RunReader reader;
+			while ((reader = queue.poll()) != null) {
+				sink.accept(reader.current);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			for (RunReader r : readers) {
+				r.close();
+			}
+		}
+	}
+
+	/**
+	 * Mischt die Laeufe beim Durchlaufen und holt die Elemente blockweise anhand ihrer Position erneut ab. Loescht die
+	 * temporaeren Dateien, sobald alle Elemente geliefert sind oder {@link #close()} aufgerufen wird.
+	 */
+	private static final class SortedIterator implements Iterator<MergeSource>, Closeable {
+
+		private final Collection<Run> runs;
+		private final PriorityQueue<RunReader> queue;
+		private final List<RunReader> readers;
+		private final MergeContext ctx;
+		private final MergeSource basicSource;
+		private final String key;
+		private final int blockSize;
+		private MergeSource[] block = new MergeSource[0];
+		private int position;
+		private boolean closed;
+
+		SortedIterator(Collection<Run> runs, int valueCount, Comparator<Sortable> order, MergeContext ctx, MergeSource basicSource, String key,
+				int blockSize) throws IOException, ClassNotFoundException {
+
+			this.runs = runs;
+			this.queue = new PriorityQueue<>(runs.size(), (r1, r2) -> order.compare(r1.current, r2.current));
+			this.readers = new ArrayList<>(runs.size());
+			this.ctx = ctx;
+			this.basicSource = basicSource;
+			this.key = key;
+			this.blockSize = blockSize;
+			try {
+				for (Run run : runs) {
+					RunReader reader = new RunReader(run, valueCount);
+					this.readers.add(reader);
+					if (reader.next()) {
+						this.queue.add(reader);
+					}
+				}
+			} catch (IOException | ClassNotFoundException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			if (this.position < this.block.length) {
+				return true;
+			}
+			if (this.closed) {
+				return false;
+			}
+			try {
+				if (this.queue.isEmpty()) {
+					close();
+					return false;
+				}
+				fetchBlock();
+				return true;
+			} catch (IOException | ClassNotFoundException | DocTemplateException e) {
+				close();
+				throw new RuntimeException("error reading sorted iteration: " + this.key, e);
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public MergeSource next() {
+
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			MergeSource result = this.block[this.position];
+			this.block[this.position++] = null;
+			return result;
+		}
+
+		/**
+		 * Liest die Positionen der naechsten Elemente aus den Laeufen und holt diese Elemente in einem Durchgang ueber
+		 * die Iteration ab.
+		 */
+		private void fetchBlock() throws IOException, ClassNotFoundException, DocTemplateException {
+
+			// Position in der Iteration (hoeherwertig) und Position im Block
+			long[] wanted = new long[this.blockSize];
+			int size = 0;
+			RunReader reader;
+			while (size < this.blockSize && (reader = this.queue.poll()) != null) {
+				wanted[size] = ((long) reader.current.index << 32) | size;
+				size++;
+				if (reader.next()) {
+					this.queue.add(reader);
+				}
+			}
+			Arrays.sort(wanted, 0, size);
+			this.block = new MergeSource[size];
+			this.position = 0;
+			Iterator<MergeSource> mergeSources = this.basicSource.whileIterator(this.ctx, this.key);
+			int index = 0;
+			for (int i = 0; i < size; i++) {
+				int wantedIndex = (int) (wanted[i] >>> 32);
+				MergeSource mergeSource = null;
+				while (index <= wantedIndex && mergeSources != null && mergeSources.hasNext()) {
+					mergeSource = mergeSources.next();
+					index++;
+				}
+				if (index != wantedIndex + 1) {
+					throw new DocTemplateException("iteration " + this.key + " changed while sorting, element " + wantedIndex + " is missing");
+				}
+				this.block[(int) wanted[i]] = mergeSource;
+			}
+		}
+
+		@Override
+		public void close() {
+
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.queue.clear();
+			for (RunReader reader : this.readers) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					log.warn("could not close run", e);
+				}
+			}
+			for (Run run : this.runs) {
+				run.delete();
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface SortableSink {
+
+		void accept(Sortable sortable) throws IOException;
+	}
+
+	/**
+	 * Sortierter Lauf in einer temporaeren Datei.
+	 */
+	private static final class Run {
+
+		private final Path file;
+		private int count;
+
+		Run() throws IOException {
+
+			this.file = Files.createTempFile("doctemplate-sort", ".run");
+		}
+
+		void delete() {
+
+			try {
+				Files.deleteIfExists(this.file);
+			} catch (IOException e) {
+				log.warn("could not delete " + this.file, e);
+			}
+		}
+	}
+
+	private static final class RunWriter implements Closeable {
+
+		private final Run run;
+		private final ObjectOutputStream out;
+
+		RunWriter(Run run) throws IOException {
+
+			this.run = run;
+			this.out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(run.file), BUFFER_SIZE));
+		}
+
+		void write(Sortable sortable) throws IOException {
+
+			this.out.writeInt(sortable.index);
+			for (Object value : sortable.values) {
+				this.out.writeObject(toSerializable(value));
+			}
+			// keine Referenzen auf bereits geschriebene Werte halten
+			this.out.reset();
+			this.run.count++;
+		}
+
+		private static Object toSerializable(Object value) throws NotSerializableException {
+
+			if (value instanceof CollationKey) {
+				return new CollationBytes(((CollationKey) value).toByteArray());
+			}
+			if (value != null && !(value instanceof Serializable)) {
+				throw new NotSerializableException("sort value " + value.getClass().getName());
+			}
+			return value;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			this.out.close();
+		}
+	}
+
+	private static final class RunReader implements Closeable {
+
+		private final ObjectInputStream in;
+		private final int valueCount;
+		private int remaining;
+		Sortable current;
+
+		RunReader(Run run, int valueCount) throws IOException {
+
+			this.valueCount = valueCount;
+			this.remaining = run.count;
+			this.in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(run.file), BUFFER_SIZE)) {
+
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+
+					// Sortierwerte koennen Klassen der Anwendung sein
+					ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+					if (classLoader != null) {
+						try {
+							return Class.forName(desc.getName(), false, classLoader);
+						} catch (ClassNotFoundException e) {
+							// Standardverhalten
+						}
+					}
+					return super.resolveClass(desc);
+				}
+			};
+		}
+
+		boolean next() throws IOException, ClassNotFoundException {
+
+			if (this.remaining == 0) {
+				this.current = null;
+				return false;
+			}
+			this.remaining--;
+			int index = this.in.readInt();
+			Object[] values = new Object[this.valueCount];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = this.in.readObject();
+			}
+			this.current = new Sortable(null, index, values);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			this.in.close();
+		}
+	}
+
+	/**
+	 * {@link CollationKey} in serialisierbarer Form. Der bitweise Vergleich ergibt dieselbe Reihenfolge wie
+	 * {@link CollationKey#compareTo(CollationKey)}.
+	 */
+	private static final class CollationBytes implements Comparable<CollationBytes>, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] bytes;
+
+		CollationBytes(byte[] bytes) {
+
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int compareTo(CollationBytes other) {
+
+			int length = Math.min(this.bytes.length, other.bytes.length);
+			for (int i = 0; i < length; i++) {
+				int result = (this.bytes[i] & 0xff) - (other.bytes[i] & 0xff);
+				if (result != 0) {
+					return result;
+				}
+			}
+			return this.bytes.length - other.bytes.length;
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.util;
+
+import java.beans.IntrospectionException;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Einmalig analysiertes Format-Pattern eines Feldes (Teil nach {@link LdtConstants#FORMAT_SUFFIX}). Pattern, Sprache und
+ * Boolean-Texte werden beim Kompilieren der Vorlage aufgeloest, die {@link DecimalFormat}- und
+ * {@link SimpleDateFormat}-Instanzen werden pro Thread einmal erzeugt und danach wiederverwendet. Rein numerische
+ * Datums-Pattern (Tag, Monat, Jahr, Stunde, Minute, Sekunde) werden ueber einen unveraenderlichen
+ * {@link DateTimeFormatter} ausgegeben. Instanzen sind threadsafe und werden pro Pattern in einem globalen Cache
+ * gehalten.
+ */
+public final class FieldFormat {
+
+	/** maximale Anzahl Pattern im Cache, weitere Pattern werden bei jedem Aufruf neu analysiert */
+	private static final int CACHE_LIMIT = 1000;
+	private static final ConcurrentMap<String, FieldFormat> CACHE = new ConcurrentHashMap<>();
+	/** Datums-Pattern-Buchstaben, die {@link SimpleDateFormat} und {@link DateTimeFormatter} identisch ausgeben */
+	private static final String NUMERIC_DATE_LETTERS = "dMyHms";
+	/** Zeichen, die fuer {@link DateTimeFormatter} eine Bedeutung haben, fuer {@link SimpleDateFormat} aber nicht */
+	private static final String DATE_TIME_RESERVED = "[]{}#";
+	/**
+	 * Bereich, in dem {@link DateTimeFormatter} dieselbe Ausgabe wie {@link SimpleDateFormat} liefert: vorher gilt der
+	 * julianische Kalender, nachher unterscheidet sich die Ausgabe fuenfstelliger Jahre
+	 */
+	private static final long DATE_TIME_MIN = -12212467200000L; // 1583-01-02 UTC
+	private static final long DATE_TIME_MAX = 253402128000000L; // 9999-12-30 UTC
+
+	private final String pattern;
+	/** Default-Einstellungen zum Zeitpunkt der Analyse */
+	private final FormatDefaults defaults;
+	private final boolean blank;
+	private final String localizedPattern;
+	private final Locale locale;
+	private final String trueText;
+	private final String falseText;
+	private final String stringFormat;
+	private final String[] collectionFormat;
+	private final ThreadLocal<DecimalFormat> decimalFormat;
+	private final ThreadLocal<SimpleDateFormat> dateFormat;
+	private final DateTimeFormatter dateTimeFormatter;
+	/** Zeitzone wie bei {@link SimpleDateFormat}, die Offsets von java.time weichen historisch teilweise ab */
+	private final TimeZone timeZone;
+
+	private FieldFormat(String pattern, FormatDefaults defaults) {
+
+		this.pattern = pattern;
+		this.defaults = defaults;
+		this.timeZone = defaults.getTimeZone();
+		Locale defaultLocale = defaults.getOverwriteLocale();
+		this.blank = StringUtils.isBlank(pattern);
+		// Die Sprache kann mittels eines Delimiter "_" im Pattern erfasst werden, z.B. "#'##0.00_de" oder "dd. MMMMM yyyy_de"
+		int i = pattern.indexOf('_');
+		Locale patternLocale = i > 0 ? FormatHelper.getLocale(pattern.substring(i + 1)) : null;
+		this.localizedPattern = i > 0 ? pattern.substring(0, i) : pattern;
+		this.locale = patternLocale == null ? defaultLocale : patternLocale;
+		// Boolean: "TrueText_FalseText"
+		this.trueText = i >= 0 ? pattern.substring(0, i) : pattern;
+		this.falseText = i >= 0 ? pattern.substring(i + 1) : "";
+		this.stringFormat = "%" + pattern + "s";
+		this.collectionFormat = pattern.split(";");
+		this.decimalFormat = ThreadLocal.withInitial(() -> FormatHelper.getDecimalFormat(this.localizedPattern, this.locale));
+		this.dateFormat = ThreadLocal.withInitial(() -> {
+			SimpleDateFormat sdf = FormatHelper.getSimpleDateFormat(this.localizedPattern, this.locale);
+			sdf.setTimeZone(this.timeZone);
+			return sdf;
+		});
+		this.dateTimeFormatter = this.blank ? null : getDateTimeFormatter(this.localizedPattern, this.locale, defaults.getSystemLocale());
+	}
+
+	/**
+	 * @param pattern Format-Pattern ohne {@link LdtConstants#FORMAT_SUFFIX}
+	 * @return das mit den aktuellen Default-Einstellungen analysierte Pattern, <code>null</code> wenn kein Pattern
+	 *         angegeben ist
+	 */
+	public static FieldFormat compile(String pattern) {
+
+		return compile(pattern, FormatDefaults.current());
+	}
+
+	/**
+	 * @param pattern Format-Pattern ohne {@link LdtConstants#FORMAT_SUFFIX}
+	 * @param defaults zu verwendende Default-Einstellungen
+	 * @return das analysierte Pattern, <code>null</code> wenn kein Pattern angegeben ist
+	 */
+	public static FieldFormat compile(String pattern, FormatDefaults defaults) {
+
+		if (pattern == null || pattern.isEmpty()) {
+			return null;
+		}
+		FieldFormat result = CACHE.get(pattern);
+		if (result == null || !result.isValidFor(defaults)) {
+			result = new FieldFormat(pattern, defaults);
+			if (CACHE.size() < CACHE_LIMIT || CACHE.containsKey(pattern)) {
+				CACHE.put(pattern, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Die Default-Einstellungen werden beim Kompilieren uebernommen. Wer eine Instanz laenger haelt (z.B. in einer
+	 * {@link ch.dvbern.lib.doctemplate.common.CompiledTemplate}) muss sie vor der Verwendung hier pruefen lassen.
+	 *
+	 * @param defaults die fuer die Ausgabe gueltigen Default-Einstellungen, normalerweise einmal pro Merge ermittelt
+	 * @return diese Instanz, wenn sie mit denselben Default-Einstellungen analysiert wurde, sonst das mit
+	 *         <code>defaults</code> analysierte Pattern
+	 */
+	public FieldFormat current(FormatDefaults defaults) {
+
+		return isValidFor(defaults) ? this : compile(this.pattern, defaults);
+	}
+
+	/**
+	 * @return <code>true</code> wenn die Instanz mit denselben Default-Einstellungen erzeugt wurde
+	 */
+	private boolean isValidFor(FormatDefaults defaults) {
+
+		return this.defaults.equals(defaults);
+	}
+
+	/**
+	 * @return einen {@link DateTimeFormatter}, der fuer <code>datePattern</code> dieselbe Ausgabe wie
+	 *         {@link SimpleDateFormat} liefert, sonst <code>null</code>
+	 */
+	private static DateTimeFormatter getDateTimeFormatter(String datePattern, Locale locale, Locale systemLocale) {
+
+		Locale i18n = locale == null ? systemLocale : locale;
+		if (!"gregory".equals(Calendar.getInstance(i18n).getCalendarType()) || DecimalFormatSymbols.getInstance(i18n).getZeroDigit() != '0') {
+			return null;
+		}
+		boolean quoted = false;
+		int i = 0;
+		while (i < datePattern.length()) {
+			char c = datePattern.charAt(i);
+			int count = 1;
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted) {
+				if (DATE_TIME_RESERVED.indexOf(c) >= 0) {
+					return null;
+				}
+				if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+					while (i + count < datePattern.length() && datePattern.charAt(i + count) == c) {
+						count++;
+					}
+					if (NUMERIC_DATE_LETTERS.indexOf(c) < 0 || (c != 'y' && count > 2)) {
+						return null;
+					}
+				}
+			}
+			i += count;
+		}
+		if (quoted) {
+			return null;
+		}
+		try {
+			return DateTimeFormatter.ofPattern(datePattern, i18n);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return das urspruengliche Format-Pattern
+	 */
+	public String getPattern() {
+
+		return this.pattern;
+	}
+
+	/**
+	 * @param o das in ein {@link String} zu konvertierende Objekt
+	 * @return <code>o</code> als String
+	 */
+	public String format(Object o) {
+
+		if (o == null) {
+			return "";
+		}
+		if (this.blank) {
+			return o.toString();
+		}
+		if (o instanceof Number) {
+			// Ausgabe einer Ganz- oder Fliesskommazahl
+			Number n = (Number) o;
+			if (o instanceof Float || o instanceof Double || o instanceof BigDecimal) {
+				return this.decimalFormat.get().format(n.doubleValue());
+			}
+			return this.decimalFormat.get().format(n.longValue());
+		} else if (o instanceof Date) {
+			// Ausgabe eines Datums mit oder ohne Zeitangabe
+			Date d = (Date) o;
+			long time = d.getTime();
+			if (this.dateTimeFormatter != null && time >= DATE_TIME_MIN && time <= DATE_TIME_MAX) {
+				long localTime = time + this.timeZone.getOffset(time);
+				return this.dateTimeFormatter.format(LocalDateTime.ofEpochSecond(Math.floorDiv(localTime, 1000L),
+						(int) Math.floorMod(localTime, 1000L) * 1000000, ZoneOffset.UTC));
+			}
+			return this.dateFormat.get().format(d);
+		} else if (o instanceof Boolean) {
+			return (Boolean) o ? this.trueText : this.falseText;
+		} else if (o instanceof String) {
+			String str = (String) o;
+			if (str.length() > 0) {
+				return String.format(this.stringFormat, str);
+			}
+			return str;
+		} else if (o instanceof Collection) {
+			return formatCollection((Collection<?>) o);
+		}
+		return o.toString();
+	}
+
+	private String formatCollection(Collection<?> o) {
+
+		String[] splitted = this.collectionFormat;
+		String separator = ", ";
+		if (splitted.length > 1) {
+			separator = splitted[1].substring(1, separator.length() - 1);
+		}
+
+		String result = o.stream().map(r -> {
+			try {
+				Object value = PropertyUtils.getNestedProperty(o, splitted[0]);
+				if (value != null) {
+					return value.toString();
+				}
+			} catch (IllegalArgumentException | SecurityException | IllegalAccessException | InvocationTargetException | NoSuchMethodException | IntrospectionException e) {
+				LogFactory.getLog(FormatHelper.class).error("getDataAsString", e);
+			}
+			return null;
+		}).filter(Objects::nonNull).collect(Collectors.joining(separator));
+
+		if (splitted.length > 2) {
+			int maxLen = Integer.parseInt(splitted[2]);
+			if (maxLen > 3) {
+				return StringUtils.abbreviate(result, maxLen);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.util;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TimeZone;
+
+/**
+ * Default-Einstellungen, mit denen ein {@link FieldFormat} formatiert: die Sprache aus "default.locale.overwrite", die
+ * Default-Sprache fuer Formatierungen und die Default-Zeitzone. Eine Instanz wird pro Merge einmal ermittelt (vgl.
+ * {@link ch.dvbern.lib.doctemplate.common.MergeSession#getFormatDefaults()}), damit nicht jedes Feld die
+ * Einstellungen erneut abfragen muss. Instanzen sind unveraenderlich.
+ */
+public final class FormatDefaults {
+
+	private final Locale overwriteLocale;
+	private final Locale systemLocale;
+	private final TimeZone timeZone;
+
+	private FormatDefaults(Locale overwriteLocale, Locale systemLocale, TimeZone timeZone) {
+
+		this.overwriteLocale = overwriteLocale;
+		this.systemLocale = systemLocale;
+		this.timeZone = timeZone;
+	}
+
+	/**
+	 * @return die aktuellen Default-Einstellungen
+	 */
+	public static FormatDefaults current() {
+
+		return new FormatDefaults(FormatHelper.getLocale(), Locale.getDefault(Locale.Category.FORMAT), TimeZone.getDefault());
+	}
+
+	/**
+	 * @return Sprache aus "default.locale.overwrite" oder <code>null</code>, wenn nicht gesetzt
+	 */
+	public Locale getOverwriteLocale() {
+
+		return this.overwriteLocale;
+	}
+
+	/**
+	 * @return Default-Sprache fuer Formatierungen
+	 */
+	public Locale getSystemLocale() {
+
+		return this.systemLocale;
+	}
+
+	/**
+	 * @return Default-Zeitzone, darf nicht veraendert werden
+	 */
+	public TimeZone getTimeZone() {
+
+		return this.timeZone;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof FormatDefaults)) {
+			return false;
+		}
+		FormatDefaults other = (FormatDefaults) obj;
+		return Objects.equals(this.overwriteLocale, other.overwriteLocale) && this.systemLocale.equals(other.systemLocale)
+				&& this.timeZone.equals(other.timeZone);
+	}
+
+	@Override
+	public int hashCode() {
+
+		return Objects.hash(this.overwriteLocale, this.systemLocale, this.timeZone.getID());
+	}
+
+}
@@ -14,12 +14,13 @@
  */
 package ch.dvbern.lib.doctemplate.util;
 
-import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
 import ch.dvbern.lib.doctemplate.common.IterationMergeSource;
 import ch.dvbern.lib.doctemplate.common.MergeContext;
+import ch.dvbern.lib.doctemplate.common.MergeSession;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
 
 /**
@@ -33,7 +34,14 @@ public class IterationMergeHelper {
 
 	/**
 	 * Erstellt eine {@link IterationMergeSource}-Instanz. Dabei werden Sortierungs- und Subiterationsdefinitionen
-	 * beruecksichtigt.
+	 * beruecksichtigt. Ohne Sortierung werden die Elemente ueber {@link MergeSource#whileIterator(MergeContext, String)}
+	 * erst beim Durchlaufen abgeholt. Ist bei einer Sortierung der Bereich nach oben begrenzt ("_SUBvon_bis"), werden
+	 * nur die ersten <code>bis + 1</code> Elemente gehalten und sortiert. Ist in der {@link MergeSession} ein
+	 * {@link MergeSession#getExternalSortThreshold()} gesetzt, werden grosse Iterationen mit Zwischenablage auf der
+	 * Festplatte sortiert und die Elemente beim Durchlaufen erneut ueber
+	 * {@link MergeSource#whileIterator(MergeContext, String)} abgeholt; die zurueckgegebene {@link IterationMergeSource}
+	 * muss dann mit {@link IterationMergeSource#close()} freigegeben werden, falls sie nicht vollstaendig durchlaufen
+	 * wird.
 	 *
 	 * @param ctx aktueller Mergekontext
 	 * @param mergeSource aktuelle Merge Source
@@ -54,15 +62,67 @@ public class IterationMergeHelper {
 			key = key.substring(0, p);
 		}
 
+		if (sortFieldKeys == null) {
+			Iterator<MergeSource> i = mergeSource.whileIterator(ctx, key);
+			return i != null ? new IterationMergeSource(i, vonBisBereich, mergeSource) : null;
+		}
+		int limit = getLimit(vonBisBereich);
+		if (limit >= 0) {
+			Iterator<MergeSource> i = mergeSource.whileIterator(ctx, key);
+			if (i != null) {
+				return new IterationMergeSource(IterationSorter.top(ctx, mergeSource, i, sortFieldKeys, limit), vonBisBereich, mergeSource);
+			}
+			return null;
+		}
+		MergeSession<?> session = ctx.getSession();
+		if (session != null && session.getExternalSortThreshold() > 0) {
+			Iterator<MergeSource> i = mergeSource.whileIterator(ctx, key);
+			if (i != null) {
+				Iterator<MergeSource> sorted = ExternalSorter.sort(ctx, mergeSource, key, i, sortFieldKeys, session.getExternalSortThreshold());
+				return new IterationMergeSource(sorted, vonBisBereich, mergeSource);
+			}
+			return null;
+		}
 		List<MergeSource> l = mergeSource.whileStatement(ctx, key);
 		if (l != null) {
-			if (sortFieldKeys != null) {
-				// Sortierung innerhalb der Iteration bestimmen
-				Collections.sort(l, new IterationMergeSource.IMSComparator(ctx, mergeSource, sortFieldKeys));
-			}
+			// Sortierung innerhalb der Iteration bestimmen
+			l = IterationSorter.sort(ctx, mergeSource, l, sortFieldKeys);
 			return new IterationMergeSource(l, vonBisBereich, mergeSource);
 		}
 		return null;
 	}
 
+	/**
+	 * @param iterationKey key inkl. Subiterationsinformationen
+	 * @return Key, unter dem die Liste bei der MergeSource abgefragt wird, d.h. ohne "_SUB"-Bereich
+	 */
+	public static String getListKey(String iterationKey) {
+
+		int p = iterationKey.indexOf(SUB_ITERATION_PATTERN_PREFIX);
+		return p > 0 ? iterationKey.substring(0, p) : iterationKey;
+	}
+
+	/**
+	 * @param vonBisBereich von-/Bis-Bereich in der Form "_SUBvon" oder "_SUBvon_bis", kann <code>null</code> sein
+	 * @return Anzahl der Elemente bis und mit <code>bis</code>, -1 wenn der Bereich nicht nach oben begrenzt ist
+	 */
+	private static int getLimit(String vonBisBereich) {
+
+		if (vonBisBereich == null) {
+			return -1;
+		}
+		String[] vonBis = vonBisBereich.substring(SUB_ITERATION_PATTERN_PREFIX.length()).split("_");
+		if (vonBis.length != 2) {
+			return -1;
+		}
+		try {
+			Integer.parseInt(vonBis[0]);
+			int bis = Integer.parseInt(vonBis[1]);
+			// ungueltige Bereiche meldet wie bisher die IterationMergeSource
+			return bis >= 0 && bis < Integer.MAX_VALUE ? bis + 1 : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.util;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.MergeContext;
+import ch.dvbern.lib.doctemplate.common.MergeSession;
+import ch.dvbern.lib.doctemplate.common.MergeSource;
+
+/**
+ * Sortiert die Elemente einer Iteration nach den SORT_-Kriterien. Die Sortierwerte jedes Elements werden vorgaengig
+ * genau einmal gelesen, der Vergleich arbeitet nur noch auf diesen Werten. Ist in der {@link MergeSession} eine
+ * Sprache gesetzt, werden Texte ueber {@link java.text.CollationKey}s verglichen. Grosse Iterationen werden parallel
+ * sortiert. Wird nur der Anfang der sortierten Iteration benoetigt, haelt {@link #top(MergeContext, MergeSource,
+ * Iterator, List, int)} nur so viele Elemente wie noetig.
+ * <p>
+ * Die Reihenfolge entspricht der bisherigen Sortierung mit
+ * {@link ch.dvbern.lib.doctemplate.common.IterationMergeSource.IMSComparator}: nur Werte derselben Klasse werden
+ * verglichen, fehlende Werte gelten als "", gleiche Elemente behalten ihre Reihenfolge.
+ */
+final class IterationSorter {
+
+	/** ab dieser Anzahl Elemente wird parallel sortiert */
+	static final int PARALLEL_THRESHOLD = 8192;
+
+	private static final String DESC_SUFFIX = "_DESC";
+
+	private static final Log log = LogFactory.getLog(IterationSorter.class);
+
+	private IterationSorter() {
+
+	}
+
+	/**
+	 * @param ctx aktueller Mergekontext
+	 * @param basicSource uebergeordnete MergeSource, liefert Sortierwerte, die ein Element nicht kennt
+	 * @param mergeSources zu sortierende Elemente, werden nicht veraendert
+	 * @param sortFieldKeys Sortierkriterien, evtl. mit Suffix "_DESC"
+	 * @return sortierte Elemente
+	 */
+	static List<MergeSource> sort(MergeContext ctx, MergeSource basicSource, List<MergeSource> mergeSources, List<String> sortFieldKeys) {
+
+		SortKeys sortKeys = new SortKeys(ctx, basicSource, sortFieldKeys);
+		Sortable[] sortables = new Sortable[mergeSources.size()];
+		int n = 0;
+		for (MergeSource mergeSource : mergeSources) {
+			sortables[n] = sortKeys.extract(mergeSource, n);
+			n++;
+		}
+		sort(sortables, sortKeys);
+		return unwrap(sortables);
+	}
+
+	/**
+	 * Liefert die ersten <code>limit</code> Elemente der sortierten Iteration, gleich wie
+	 * <code>sort(...).subList(0, limit)</code>. Die Elemente werden nur einmal durchlaufen, gehalten werden jeweils nur
+	 * die bisher kleinsten <code>limit</code> Elemente (O(n log limit) statt O(n log n)).
+	 *
+	 * @param ctx aktueller Mergekontext
+	 * @param basicSource uebergeordnete MergeSource, liefert Sortierwerte, die ein Element nicht kennt
+	 * @param mergeSources zu sortierende Elemente
+	 * @param sortFieldKeys Sortierkriterien, evtl. mit Suffix "_DESC"
+	 * @param limit maximale Anzahl gelieferter Elemente
+	 * @return die ersten <code>limit</code> Elemente, sortiert
+	 */
+	static List<MergeSource> top(MergeContext ctx, MergeSource basicSource, Iterator<MergeSource> mergeSources, List<String> sortFieldKeys,
+			int limit) {
+
+		SortKeys sortKeys = new SortKeys(ctx, basicSource, sortFieldKeys);
+		// bei gleichen Sortierwerten gewinnt das fruehere Element, wie bei einer stabilen Sortierung
+		Comparator<Sortable> order = sortKeys.thenComparingInt(sortable -> sortable.index);
+		// das groesste der gehaltenen Elemente steht zuoberst und wird als erstes verdraengt
+		PriorityQueue<Sortable> heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)), order.reversed());
+		for (int n = 0; limit > 0 && mergeSources.hasNext(); n++) {
+			Sortable sortable = sortKeys.extract(mergeSources.next(), n);
+			if (heap.size() < limit) {
+				heap.add(sortable);
+			} else if (order.compare(sortable, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(sortable);
+			}
+		}
+		Sortable[] sortables = heap.toArray(new Sortable[heap.size()]);
+		Arrays.sort(sortables, order);
+		return unwrap(sortables);
+	}
+
+	/**
+	 * Sortiert <code>sortables</code> stabil, ab {@link #PARALLEL_THRESHOLD} Elementen parallel.
+	 */
+	static void sort(Sortable[] sortables, Comparator<Sortable> order) {
+
+		if (sortables.length >= PARALLEL_THRESHOLD) {
+			// stabil wie Collections.sort
+			Arrays.parallelSort(sortables, order);
+		} else {
+			Arrays.sort(sortables, order);
+		}
+	}
+
+	static List<MergeSource> unwrap(Sortable[] sortables) {
+
+		List<MergeSource> result = new ArrayList<>(sortables.length);
+		for (Sortable sortable : sortables) {
+			result.add(sortable.mergeSource);
+		}
+		return result;
+	}
+
+	/**
+	 * Element einer Iteration mit seinen Sortierwerten.
+	 */
+	static final class Sortable {
+
+		final MergeSource mergeSource;
+		/** Position in der unsortierten Iteration */
+		final int index;
+		final Object[] values;
+
+		Sortable(MergeSource mergeSource, int index, Object[] values) {
+
+			this.mergeSource = mergeSource;
+			this.index = index;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Geparste Sortierkriterien. Liest die Sortierwerte der Elemente und vergleicht sie.
+	 */
+	static final class SortKeys implements Comparator<Sortable> {
+
+		private final MergeContext ctx;
+		private final MergeSource basicSource;
+		private final Collator collator;
+		private final String[] keys;
+		private final boolean[] descending;
+
+		SortKeys(MergeContext ctx, MergeSource basicSource, List<String> sortFieldKeys) {
+
+			this.ctx = ctx;
+			this.basicSource = basicSource;
+			MergeSession<?> session = ctx.getSession();
+			this.collator = session != null ? session.getSortCollator() : null;
+			this.keys = new String[sortFieldKeys.size()];
+			this.descending = new boolean[this.keys.length];
+			for (int i = 0; i < this.keys.length; i++) {
+				String key = sortFieldKeys.get(i);
+				this.descending[i] = key.endsWith(DESC_SUFFIX);
+				this.keys[i] = this.descending[i] ? key.substring(0, key.length() - DESC_SUFFIX.length()) : key;
+			}
+		}
+
+		/**
+		 * Liest die Sortierwerte von <code>mergeSource</code>. Nicht threadsafe, verwendet den Mergekontext.
+		 */
+		Sortable extract(MergeSource mergeSource, int index) {
+
+			Object[] values = new Object[this.keys.length];
+			MergeSource previousMergeSource = this.ctx.getCurrentMergeSource();
+			this.ctx.setCurrentMergeSource(mergeSource);
+			try {
+				for (int i = 0; i < this.keys.length; i++) {
+					Object o = mergeSource.getData(this.ctx, this.keys[i]);
+					if (o == null) {
+						o = this.basicSource.getData(this.ctx, this.keys[i]);
+					}
+					if (o == null) {
+						o = "";
+					}
+					if (this.collator != null && o instanceof String) {
+						o = this.collator.getCollationKey((String) o);
+					}
+					values[i] = o;
+				}
+			} catch (DocTemplateException sfe) {
+				// die restlichen Werte bleiben null und werden nicht verglichen
+				log.warn("error reading sort value", sfe);
+			} finally {
+				this.ctx.setCurrentMergeSource(previousMergeSource);
+			}
+			return new Sortable(mergeSource, index, values);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public int compare(Sortable s1, Sortable s2) {
+
+			for (int i = 0; i < this.keys.length; i++) {
+				Object o1 = s1.values[i];
+				Object o2 = s2.values[i];
+				int result = 0;
+				if (o1 instanceof Comparable && o2 != null && o1.getClass().equals(o2.getClass())) {
+					result = ((Comparable<Object>) o1).compareTo(o2);
+				}
+				if (result != 0) {
+					return this.descending[i] ? -result : result;
+				}
+			}
+			return 0;
+		}
+	}
+}
@@ -21,7 +21,9 @@ import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 public class PropertyUtils {
@@ -102,25 +104,53 @@ public class PropertyUtils {
 		return getPropertyDescriptor(object.getClass(), property);
 	}
 
-	protected final static Hashtable<Class<?>, Hashtable<String, PropertyDescriptor>> propertyDescriptorss = new Hashtable<>();
-
-	public static PropertyDescriptor getPropertyDescriptor(Class<?> clazz,
-			String property) throws IntrospectionException {
-		Hashtable<String, PropertyDescriptor> propertyDescriptors = propertyDescriptorss
-				.get(clazz);
-		if (propertyDescriptors == null) {
-			BeanInfo beanInfo = Introspector.getBeanInfo(clazz);
-			if (beanInfo != null) {
-				propertyDescriptors = new Hashtable<>();
-				PropertyDescriptor[] propertyDescriptorArray = beanInfo
-						.getPropertyDescriptors();
-				for (PropertyDescriptor descriptor : propertyDescriptorArray) {
-					propertyDescriptors.put(descriptor.getName(), descriptor);
+	/**
+	 * Property-Deskriptoren pro Klasse. Der Wert haengt an der Klasse selbst, haelt also deren Classloader nicht fest,
+	 * und wird nach dem ersten Zugriff ohne Sperren gelesen.
+	 */
+	private static final ClassValue<Map<String, PropertyDescriptor>> propertyDescriptorss = new ClassValue<Map<String, PropertyDescriptor>>() {
+		@Override
+		protected Map<String, PropertyDescriptor> computeValue(Class<?> clazz) {
+			try {
+				Map<String, PropertyDescriptor> propertyDescriptors = new HashMap<>();
+				BeanInfo beanInfo = Introspector.getBeanInfo(clazz);
+				if (beanInfo != null) {
+					PropertyDescriptor[] propertyDescriptorArray = beanInfo
+							.getPropertyDescriptors();
+					for (PropertyDescriptor descriptor : propertyDescriptorArray) {
+						propertyDescriptors.put(descriptor.getName(), descriptor);
+					}
 				}
-				propertyDescriptorss.put(clazz, propertyDescriptors);
+				return Collections.unmodifiableMap(propertyDescriptors);
+			}
+			catch (IntrospectionException e) {
+				// wird nicht gecached, der naechste Zugriff versucht es erneut
+				throw new IntrospectionFailure(e);
 			}
 		}
-		return propertyDescriptors == null ? null : propertyDescriptors.get(property);
+	};
+
+	/**
+	 * Liefert die Property-Deskriptoren einer Klasse. Sie werden pro Klasse nur einmal ermittelt; schlaegt die
+	 * Introspektion fehl, wird nichts gemerkt und der naechste Aufruf versucht es erneut.
+	 *
+	 * @param clazz zu untersuchende Klasse
+	 * @return alle Property-Deskriptoren von <code>clazz</code>, pro Property-Name, nicht veraenderbar
+	 * @throws IntrospectionException wenn {@link Introspector#getBeanInfo(Class)} fehlschlaegt
+	 */
+	public static Map<String, PropertyDescriptor> getPropertyDescriptors(Class<?> clazz)
+			throws IntrospectionException {
+		try {
+			return propertyDescriptorss.get(clazz);
+		}
+		catch (IntrospectionFailure e) {
+			throw e.getCause();
+		}
+	}
+
+	public static PropertyDescriptor getPropertyDescriptor(Class<?> clazz,
+			String property) throws IntrospectionException {
+		return getPropertyDescriptors(clazz).get(property);
 	}
 
 	public static Method getReadMethod(Class<?> clazz, String property)
@@ -167,6 +197,20 @@ public class PropertyUtils {
 		return readMethod;
 	}
 
+	private static final class IntrospectionFailure extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		IntrospectionFailure(IntrospectionException cause) {
+			super(cause);
+		}
+
+		@Override
+		public synchronized IntrospectionException getCause() {
+			return (IntrospectionException) super.getCause();
+		}
+	}
+
 	static String capitalize(String s) {
 		if (s.length() == 0) {
 			return s;
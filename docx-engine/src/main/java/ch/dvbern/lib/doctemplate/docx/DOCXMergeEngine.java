@@ -19,16 +19,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
@@ -36,11 +41,20 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
 import ch.dvbern.lib.doctemplate.common.AbstractMergeEngine;
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
+import ch.dvbern.lib.doctemplate.common.CompiledTemplate;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.DocumentSink;
 import ch.dvbern.lib.doctemplate.common.Image;
 import ch.dvbern.lib.doctemplate.common.Image.Format;
+import ch.dvbern.lib.doctemplate.common.MergeSession;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.common.TemplateWriter;
+import ch.dvbern.lib.doctemplate.common.TemplateWriter.StartTag;
 import ch.dvbern.lib.doctemplate.common.XmlBasedFieldMergeElement;
+import ch.dvbern.lib.doctemplate.common.ZipTemplate;
+import ch.dvbern.lib.doctemplate.common.ZipTemplateOutputStream;
 import ch.dvbern.lib.doctemplate.util.ImageHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -80,14 +94,6 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 	private static final String DOCX_FLDCHARTYPE_BEGIN = "begin";
 	private static final String DOCX_FLDCHARTYPE_END = "end";
 
-	private ImageHandler<DocxImage> imageHandler;
-
-	private int maxImgIdx = 0;
-	private int maxRId = 0;
-
-	private StringBuilder docVariable = null;
-	private Node fldcharBeginParentNode = null, fldcharBeginNode = null;
-
 	private static final Log LOG = LogFactory.getLog(DOCXMergeEngine.class);
 	/**
 	 * Initialisierung der Engine mit einem kennzeichnenden Namen.
@@ -130,8 +136,8 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource, Map<String, String> keyTranslationTbl) throws DocTemplateException {
 
-		this.keyTranslationTable.putAll(keyTranslationTbl);
-		return getDocument(input, mergeSource);
+		MergeSession<DocxImage> session = createSession(keyTranslationTbl);
+		return getDocument(compile(session, readTemplate(input)), mergeSource, session);
 	}
 
 	/**
@@ -145,54 +151,167 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource) throws DocTemplateException {
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		try (ZipOutputStream zipout = new ZipOutputStream(baos); ZipInputStream zipin = new ZipInputStream(input)) {
-			ZipEntry ze;
+		return getDocument(compile(input), mergeSource);
+	}
 
-			ByteArrayOutputStream rels = new ByteArrayOutputStream();
-			ByteArrayOutputStream contentTypes = new ByteArrayOutputStream();
-			ByteArrayOutputStream content = new ByteArrayOutputStream();
-			while ((ze = zipin.getNextEntry()) != null) {
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> ein Dokument und gibt dieses als byte[] zurueck.
+	 * Die Platzhalter innerhalb der Vorlage werden mit Hilfe der <code>mergeSource</code> ermittelt und abgefuellt.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @return Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public byte[] getDocument(CompiledTemplate template, MergeSource mergeSource) throws DocTemplateException {
+
+		return getDocument(template, mergeSource, createSession(null));
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>, ohne
+	 * es vollstaendig im Speicher aufzubauen. <code>output</code> wird nicht geschlossen; im Fehlerfall kann bereits ein
+	 * Teil des Dokuments geschrieben sein.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param keyTranslationTbl Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, Map<String, String> keyTranslationTbl, OutputStream output)
+			throws DocTemplateException {
+
+		MergeSession<DocxImage> session = createSession(keyTranslationTbl);
+		writeDocument(compile(session, readTemplate(input)), mergeSource, session, output);
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>.
+	 * <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		writeDocument(compile(input), mergeSource, output);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> ein Dokument und schreibt dieses direkt nach
+	 * <code>output</code>. <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(CompiledTemplate template, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		writeDocument(template, mergeSource, createSession(null), output);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> ein Dokument und schreibt dieses direkt nach
+	 * <code>channel</code>. <code>channel</code> muss blockierend sein und wird nicht geschlossen.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param channel Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(CompiledTemplate template, MergeSource mergeSource, WritableByteChannel channel) throws DocTemplateException {
+
+		writeDocument(template, mergeSource, Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> fuer jede <code>mergeSource</code> ein Dokument und liefert dieses an
+	 * <code>sink</code>. Die Vorlage wird nur einmal gelesen und geparst.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(InputStream input, Iterable<? extends MergeSource> mergeSources, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		getDocuments(compile(input), mergeSources, batch, sink);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> fuer jede <code>mergeSource</code> ein Dokument und
+	 * liefert dieses an <code>sink</code>.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(CompiledTemplate template, Iterable<? extends MergeSource> mergeSources, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		batch.run(mergeSources.iterator(), mergeSource -> getDocument(template, mergeSource), sink);
+	}
+
+	private byte[] getDocument(CompiledTemplate template, MergeSource mergeSource, MergeSession<DocxImage> session) throws DocTemplateException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(template.getSize());
+		writeDocument(template, mergeSource, session, baos);
+		return baos.toByteArray();
+	}
+
+	private void writeDocument(CompiledTemplate template, MergeSource mergeSource, MergeSession<DocxImage> session, OutputStream output)
+			throws DocTemplateException {
+
+		prefetch(session, mergeSource, template);
+		try {
+			ZipTemplateOutputStream zipout = new ZipTemplateOutputStream(output);
+			ZipTemplate zip = template.getZipTemplate();
+			ZipTemplate.Entry rels = null;
+			ZipTemplate.Entry contentTypes = null;
+			BasicMergeElement content = null;
+			int maxImgIdx = 0;
+			int maxRId = 0;
+			for (ZipTemplate.Entry ze : zip.getEntries()) {
 				String zeName = ze.getName();
 				// In Header und Footer ebenfalls Variablen ersetzen
-				if (zeName != null //
-						&& (zeName.startsWith(HEADER_XML_FILE_NAME) || zeName.startsWith(FOOTER_XML_FILE_NAME))) {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					mergeContent(mergeSource, zipin, zipout);
+				if (zeName.startsWith(HEADER_XML_FILE_NAME) || zeName.startsWith(FOOTER_XML_FILE_NAME)) {
+					zipout.putNextEntry(zeName);
+					mergeContent(session, mergeSource, template.getPart(zeName), zipout);
 				} else if (CONTENT_XML_FILE_NAME.equals(zeName)) {
-					transfer(zipin, content);
+					content = template.getPart(zeName);
 				} else if (RELS_XML_FILE_NAME.equals(zeName)) {
-					transfer(zipin, rels);
-					getMaxRId(rels);
+					rels = ze;
+					maxRId = getMaxRId(read(zip, ze), maxRId);
 				} else if (CONTENT_TYPES_FILE_NAME.equals(zeName)) {
-					transfer(zipin, contentTypes);
+					contentTypes = ze;
 				} else if (zeName.startsWith(IMAGE_PREFIX)) {
 					// wir nehmen die hoechste Nummer aus dem Ordner media
 					int idx = Integer.parseInt(zeName.substring(IMAGE_PREFIX.length(), zeName.indexOf('.', IMAGE_PREFIX.length())));
-					this.maxImgIdx = idx > this.maxImgIdx ? idx : this.maxImgIdx;
-					zipout.putNextEntry(new ZipEntry(zeName));
-					transfer(zipin, zipout);
+					maxImgIdx = idx > maxImgIdx ? idx : maxImgIdx;
+					zipout.copyEntry(zip, ze);
 				} else {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					transfer(zipin, zipout);
+					// unveraenderte Eintraege ohne erneutes Komprimieren uebernehmen
+					zipout.copyEntry(zip, ze);
 				}
 			}
-			this.imageHandler = new DocxImageHandler(this.maxImgIdx, this.maxRId);
-			updateContent(content, zipout, mergeSource);
-			updateRels(rels, zipout);
-			updateContentTypes(contentTypes, zipout);
+			session.setImageHandler(new DocxImageHandler(maxImgIdx, maxRId));
+			updateContent(session, content, zipout, mergeSource);
+			updateRels(session.getImages(), zip, rels, zipout, maxRId);
+			updateContentTypes(session.getImages(), zip, contentTypes, zipout);
 			// Bilder einfuegen
-			if (this.images != null) {
-				for (Map.Entry<String, DocxImage> me : this.images.entrySet()) {
-					zipout.putNextEntry(new ZipEntry(me.getKey()));
-					zipout.write(me.getValue().getBytes());
-				}
+			for (Map.Entry<String, DocxImage> me : session.getImages().entrySet()) {
+				zipout.putNextEntry(me.getKey());
+				zipout.write(me.getValue().getBytes());
 			}
-			zipin.close();
-			zipout.close();
-			byte[] result = baos.toByteArray();
-			baos.close();
-			return result;
+			zipout.finish();
 		} catch (IOException e) {
 			throw new DocTemplateException(e);
 		} catch (XPathExpressionException e) {
@@ -204,6 +323,30 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		}
 	}
 
+	@Override
+	protected Map<String, BasicMergeElement> compileParts(MergeSession<DocxImage> session, byte[] template) throws DocTemplateException {
+
+		Map<String, BasicMergeElement> parts = new LinkedHashMap<>();
+		try (ZipInputStream zipin = new ZipInputStream(new ByteArrayInputStream(template))) {
+			ZipEntry ze;
+			while ((ze = zipin.getNextEntry()) != null) {
+				String zeName = ze.getName();
+				if (zeName != null && (zeName.startsWith(HEADER_XML_FILE_NAME) || zeName.startsWith(FOOTER_XML_FILE_NAME) || CONTENT_XML_FILE_NAME.equals(zeName))) {
+					parts.put(zeName, compileContent(session, zipin));
+				}
+			}
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+		return parts;
+	}
+
+	@Override
+	protected String getTemplateConfiguration(MergeSession<DocxImage> session) {
+
+		return super.getTemplateConfiguration(session) + '|' + this.docxDocVariableStart + '|' + this.docxDocVariableEnd;
+	}
+
 	private static void transfer(InputStream input, OutputStream output) throws IOException {
 
 		int read = 0;
@@ -213,34 +356,49 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		}
 	}
 
-	private void updateContent(ByteArrayOutputStream content, ZipOutputStream zipout, MergeSource mergeSource) throws IOException, DocTemplateException {
+	private static ByteArrayOutputStream read(ZipTemplate zip, ZipTemplate.Entry entry) throws IOException {
 
-		if (content.size() > 0) {
-			zipout.putNextEntry(new ZipEntry(CONTENT_XML_FILE_NAME));
-			mergeContent(mergeSource, new ByteArrayInputStream(content.toByteArray()), zipout);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		try (InputStream input = zip.getInputStream(entry)) {
+			transfer(input, result);
 		}
+		return result;
 	}
 
-	private void updateRels(ByteArrayOutputStream rels, ZipOutputStream zipout) throws IOException {
+	private void updateContent(MergeSession<DocxImage> session, BasicMergeElement content, ZipTemplateOutputStream zipout,
+			MergeSource mergeSource) throws IOException, DocTemplateException {
 
-		if (rels.size() > 0) {
-			zipout.putNextEntry(new ZipEntry(RELS_XML_FILE_NAME));
-			String xml = new String(rels.toByteArray(), UTF8);
-			if (this.images != null && this.images.size() > 0) {
-				StringBuffer xmlSB = new StringBuffer(xml.substring(0, xml.length() - "</Relationships>".length()));
-				for (DocxImage image : this.images.values()) {
-					image.setId(++this.maxRId);
-					xmlSB.append(RELATION.replace(IMAGE_ID, image.getRId()).replace(ImageHandler.IMAGE_NAME_TAG, image.getName()));
-				}
-				xmlSB.append("</Relationships>");
-				xml = xmlSB.toString();
-			}
-			zipout.write(xml.getBytes());
+		if (content != null) {
+			zipout.putNextEntry(CONTENT_XML_FILE_NAME);
+			mergeContent(session, mergeSource, content, zipout);
+		}
+	}
+
+	private void updateRels(Map<String, DocxImage> images, ZipTemplate zip, ZipTemplate.Entry rels, ZipTemplateOutputStream zipout, int maxRId)
+			throws IOException {
+
+		if (rels == null) {
+			return;
+		}
+		if (images.isEmpty()) {
+			zipout.copyEntry(zip, rels);
+			return;
+		}
+		String xml = new String(read(zip, rels).toByteArray(), UTF8);
+		zipout.putNextEntry(RELS_XML_FILE_NAME);
+		int rId = maxRId;
+		StringBuffer xmlSB = new StringBuffer(xml.substring(0, xml.length() - "</Relationships>".length()));
+		for (DocxImage image : images.values()) {
+			image.setId(++rId);
+			xmlSB.append(RELATION.replace(IMAGE_ID, image.getRId()).replace(ImageHandler.IMAGE_NAME_TAG, image.getName()));
 		}
+		xmlSB.append("</Relationships>");
+		zipout.write(xmlSB.toString().getBytes());
 	}
 
-	private int getMaxRId(ByteArrayOutputStream xmlStream) throws ParserConfigurationException, SAXException, IOException, XPathExpressionException {
+	private static int getMaxRId(ByteArrayOutputStream xmlStream, int maxRId) throws ParserConfigurationException, SAXException, IOException, XPathExpressionException {
 
+		int result = maxRId;
 		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 		DocumentBuilder builder = factory.newDocumentBuilder();
 		Document doc = builder.parse(new ByteArrayInputStream(xmlStream.toByteArray()));
@@ -251,74 +409,60 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		for (int i = 0; i < nodeList.getLength(); i++) {
 			String id = nodeList.item(i).getAttributes().getNamedItem("Id").getTextContent();
 			int idNum = Integer.parseInt(id.substring("rId".length()));
-			this.maxRId = idNum > this.maxRId ? idNum : this.maxRId;
+			result = idNum > result ? idNum : result;
 		}
-		return this.maxRId;
+		return result;
 	}
 
-	private void updateContentTypes(ByteArrayOutputStream contentTypes, ZipOutputStream zipout) throws IOException {
+	private void updateContentTypes(Map<String, DocxImage> images, ZipTemplate zip, ZipTemplate.Entry contentTypes, ZipTemplateOutputStream zipout)
+			throws IOException {
 
+		if (contentTypes == null) {
+			return;
+		}
+		if (images.isEmpty()) {
+			zipout.copyEntry(zip, contentTypes);
+			return;
+		}
 		Set<Format> formatSet = new HashSet<>();
-		if (contentTypes.size() > 0) {
-			zipout.putNextEntry(new ZipEntry(CONTENT_TYPES_FILE_NAME));
-			String xml = new String(contentTypes.toByteArray(), UTF8);
-			if (this.images != null && this.images.size() > 0) {
-				StringBuffer xmlSB = new StringBuffer(xml.substring(0, xml.length() - "</Types>".length()));
-				for (Image image : this.images.values()) {
-					if (formatSet.add(image.getFormat()) && xml.indexOf("image/" + image.getFormat().name().toLowerCase()) < 0) {
-						xmlSB.append(EXTENSION_NODE.replaceAll(IMAGE_EXTENSION, image.getFormat().name().toLowerCase()));
-					}
-				}
-				xmlSB.append("</Types>");
-				xml = xmlSB.toString();
+		String xml = new String(read(zip, contentTypes).toByteArray(), UTF8);
+		zipout.putNextEntry(CONTENT_TYPES_FILE_NAME);
+		StringBuffer xmlSB = new StringBuffer(xml.substring(0, xml.length() - "</Types>".length()));
+		for (Image image : images.values()) {
+			if (formatSet.add(image.getFormat()) && xml.indexOf("image/" + image.getFormat().name().toLowerCase()) < 0) {
+				xmlSB.append(EXTENSION_NODE.replaceAll(IMAGE_EXTENSION, image.getFormat().name().toLowerCase()));
 			}
-			zipout.write(xml.getBytes());
 		}
+		xmlSB.append("</Types>");
+		zipout.write(xmlSB.toString().getBytes());
 	}
 
 	@Override
-	protected void preProcess(Document doc, Node src, Node dest) throws DocTemplateException {
+	protected void preProcess(MergeSession<DocxImage> session, Document doc, Node src, Node dest) throws DocTemplateException {
+
+		preProcess(new DocVariableState(), doc, src, dest);
+	}
+
+	private void preProcess(DocVariableState state, Document doc, Node src, Node dest) throws DocTemplateException {
 
 		NodeList childElements = src.getChildNodes();
 		for (int i = 0; i < childElements.getLength(); i++) {
 			Node childElement = childElements.item(i);
 			if (childElement.getNodeName().equals(DOCX_DOCVARIABLE_TAG)) {
 				String s = childElement.getTextContent();
-				if (this.docVariable != null || s != null && s.startsWith(this.docxDocVariableStart)) {
-					if (this.fldcharBeginNode != null && this.fldcharBeginParentNode != null) {
+				if (state.docVariable != null || s != null && s.startsWith(this.docxDocVariableStart)) {
+					if (state.fldcharBeginNode != null && state.fldcharBeginParentNode != null) {
 						// vorherigen DocVariable-Begin-Tag entfernen
-						this.fldcharBeginParentNode.removeChild(this.fldcharBeginNode);
-						this.fldcharBeginNode = null;
-						this.fldcharBeginParentNode = null;
-					}
-					if (s != null && s.startsWith(this.docxDocVariableStart)) {
-						s = s.substring(this.docxDocVariableStart.length());
-					}
-					if (this.docVariable == null) {
-						this.docVariable = new StringBuilder();
+						state.fldcharBeginParentNode.removeChild(state.fldcharBeginNode);
+						state.fldcharBeginNode = null;
+						state.fldcharBeginParentNode = null;
 					}
-					this.docVariable.append(s);
-					int endMarker = this.docVariable.indexOf(this.docxDocVariableEnd);
-					if (endMarker < 0) {
-						LOG.debug("'" + this.docxDocVariableEnd +"' was not immediatly found in tag, this can happen if the Docvariable"
-								+ "is broken up over multiple instr tags. Continuing search...");
-						continue; // DocVariable noch unvollstaendig
-					}
-					this.docVariable.delete(endMarker, this.docVariable.length());
-					String dv = removeDoubleQuotes(this.docVariable.toString());
-					int altPos = dv.indexOf(ALTERNATE_SUFFIX);
-					if (altPos > 0) {
-						// mehrere gleiche Textmarken mit ALT-Suffix: ab hier ohne
-						// ALT-Suffix
-						dv = dv.substring(0, altPos);
-					}
-					if (dv.startsWith(getFieldPrefix()) || dv.startsWith(SORTFIELD_PREFIX) || dv.startsWith(CONDITION_BEGIN) || dv.startsWith(CONDITION_END)
-							|| dv.startsWith(ITERATION_BEGIN) || dv.startsWith(ITERATION_END)) {
+					String dv = appendDocVariable(state, s);
+					if (dv != null) {
 						Node n = doc.createElement(INTERNAL_BOOKMARK_TAG);
 						n.setTextContent(dv);
 						dest.appendChild(n);
 					}
-					this.docVariable = null;
 					continue;
 				}
 			}
@@ -327,19 +471,152 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 				Node n = childElement.getAttributes().getNamedItem(DOCX_FLDCHARTYPE_ATTR);
 				String fldCharType = n == null ? null : n.getTextContent();
 				if (DOCX_FLDCHARTYPE_BEGIN.equals(fldCharType)) {
-					this.fldcharBeginNode = adoptedNode;
-					this.fldcharBeginParentNode = dest;
+					state.fldcharBeginNode = adoptedNode;
+					state.fldcharBeginParentNode = dest;
 				} else if (DOCX_FLDCHARTYPE_END.equals(fldCharType)) {
-					if (this.fldcharBeginNode == null || this.fldcharBeginParentNode == null) {
+					if (state.fldcharBeginNode == null || state.fldcharBeginParentNode == null) {
 						continue;
 					}
 				}
 			}
 			dest.appendChild(adoptedNode);
-			preProcess(doc, childElement, adoptedNode);
+			preProcess(state, doc, childElement, adoptedNode);
 		}
 	}
 
+	@Override
+	protected void preProcess(MergeSession<DocxImage> session, XMLStreamReader reader, TemplateWriter<DocxImage> writer)
+			throws XMLStreamException, DocTemplateException {
+
+		DocVariableState state = new DocVariableState();
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				StartTag tag = StartTag.of(reader);
+				if (tag.getQName().equals(DOCX_DOCVARIABLE_TAG)) {
+					String s = readText(reader);
+					if (state.docVariable != null || s.startsWith(this.docxDocVariableStart)) {
+						if (state.fldcharBeginElement != null) {
+							// vorherigen DocVariable-Begin-Tag entfernen
+							writer.remove(state.fldcharBeginElement);
+							state.fldcharBeginElement = null;
+						}
+						String dv = appendDocVariable(state, s);
+						if (dv != null) {
+							writer.writeBookmark(dv);
+						}
+					} else {
+						writer.writeStartElement(tag);
+						writer.writeCharacters(s);
+						writer.writeEndElement();
+					}
+					continue;
+				}
+				if (tag.getQName().equals(DOCX_FLDCHAR_TAG)) {
+					String fldCharType = tag.getAttribute(DOCX_FLDCHARTYPE_ATTR);
+					if (DOCX_FLDCHARTYPE_BEGIN.equals(fldCharType)) {
+						if (state.fldcharBeginElement != null) {
+							writer.release(state.fldcharBeginElement);
+						}
+						state.fldcharBeginElement = writer.writeStartElement(tag);
+						// bis zum zugehoerigen w:instrText zurueckhalten, damit der Tag noch entfernt werden kann
+						writer.hold(state.fldcharBeginElement);
+						continue;
+					} else if (DOCX_FLDCHARTYPE_END.equals(fldCharType)) {
+						if (state.fldcharBeginElement == null) {
+							skipElement(reader);
+							continue;
+						}
+						// das Feld ist abgeschlossen, der Begin-Tag wird nicht mehr entfernt
+						writer.release(state.fldcharBeginElement);
+					}
+				}
+				writer.writeStartElement(tag);
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				writer.writeEndElement();
+			} else {
+				writer.copyEvent(reader);
+			}
+		}
+	}
+
+	/**
+	 * Liest den gesamten Text bis zum Ende des aktuellen Elementes.
+	 */
+	private static String readText(XMLStreamReader reader) throws XMLStreamException {
+
+		StringBuilder sb = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			} else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE) {
+				sb.append(reader.getText());
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Ueberspringt das aktuelle Element inkl. Inhalt.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Haengt den Inhalt eines w:instrText-Elementes an die aktuelle DocVariable an.
+	 *
+	 * @param state Zustand des Preprocessings
+	 * @param value Inhalt des w:instrText-Elementes
+	 * @return Inhalt des einzufuegenden Bookmarks oder <code>null</code>, wenn die DocVariable noch unvollstaendig
+	 *         oder kein Merge-Befehl ist
+	 */
+	private String appendDocVariable(DocVariableState state, String value) {
+
+		String s = value;
+		if (s != null && s.startsWith(this.docxDocVariableStart)) {
+			s = s.substring(this.docxDocVariableStart.length());
+		}
+		if (state.docVariable == null) {
+			state.docVariable = new StringBuilder();
+		}
+		state.docVariable.append(s);
+		int endMarker = state.docVariable.indexOf(this.docxDocVariableEnd);
+		if (endMarker < 0) {
+			LOG.debug("'" + this.docxDocVariableEnd +"' was not immediatly found in tag, this can happen if the Docvariable"
+					+ "is broken up over multiple instr tags. Continuing search...");
+			return null; // DocVariable noch unvollstaendig
+		}
+		state.docVariable.delete(endMarker, state.docVariable.length());
+		String dv = removeDoubleQuotes(state.docVariable.toString());
+		state.docVariable = null;
+		int altPos = dv.indexOf(ALTERNATE_SUFFIX);
+		if (altPos > 0) {
+			// mehrere gleiche Textmarken mit ALT-Suffix: ab hier ohne
+			// ALT-Suffix
+			dv = dv.substring(0, altPos);
+		}
+		if (dv.startsWith(getFieldPrefix()) || dv.startsWith(SORTFIELD_PREFIX) || dv.startsWith(CONDITION_BEGIN) || dv.startsWith(CONDITION_END)
+				|| dv.startsWith(ITERATION_BEGIN) || dv.startsWith(ITERATION_END)) {
+			return dv;
+		}
+		return null;
+	}
+
 	private static String removeDoubleQuotes(String value) {
 
 		// Word setzt Docvariablen in Anfuehrungszeichen, wenn Spaces enthalten sind
@@ -348,10 +625,21 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 		return s;
 	}
 
-	private class FieldMergeElement extends XmlBasedFieldMergeElement<DocxImage> {
+	/**
+	 * Zustand waehrend des Preprocessings eines XML-Bestandteils: eine DocVariable kann ueber mehrere
+	 * w:instrText-Elemente verteilt sein.
+	 */
+	private static class DocVariableState {
+
+		private StringBuilder docVariable = null;
+		private Node fldcharBeginParentNode = null, fldcharBeginNode = null;
+		private TemplateWriter.Element fldcharBeginElement = null;
+	}
+
+	private static class FieldMergeElement extends XmlBasedFieldMergeElement<DocxImage> {
 
-		public FieldMergeElement(String name, String key, Map<String, DocxImage> images) {
-			super(name, key, images, DOCXMergeEngine.this.imageHandler);
+		public FieldMergeElement(String name, String key) {
+			super(name, key);
 		}
 
 		@Override
@@ -381,15 +669,9 @@ public class DOCXMergeEngine extends AbstractMergeEngine<DocxImage> {
 	}
 
 	@Override
-	protected XmlBasedFieldMergeElement<DocxImage> getFieldMergeElement(String key, ImageHandler<DocxImage> imageHdlr) {
-
-		return new FieldMergeElement(this.name, translate(key), this.images);
-	}
-
-	@Override
-	public ImageHandler<DocxImage> getImageHandler() {
+	protected XmlBasedFieldMergeElement<DocxImage> getFieldMergeElement(MergeSession<DocxImage> session, String key) {
 
-		return this.imageHandler;
+		return new FieldMergeElement(this.name, session.translate(key));
 	}
 
 }
@@ -34,6 +34,7 @@ import ch.dvbern.lib.doctemplate.common.ExtendedBeanMergeSource;
 import ch.dvbern.lib.doctemplate.common.Image;
 import ch.dvbern.lib.doctemplate.common.MergeContext;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.common.PreprocessingMode;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -78,6 +79,49 @@ public class DOCXMergeEngineTest {
 		Assert.assertEquals("merged docx does not match the expected result", xml, expected);
 	}
 
+	/**
+	 * Test 1b: dieselbe Engine wird fuer mehrere Dokumente nacheinander verwendet, Bilder duerfen nicht in das
+	 * naechste Dokument uebernommen werden.
+	 */
+	@Test
+	public void testEngineReuse() throws Exception {
+
+		DOCXMergeEngine docxME = new DOCXMergeEngine("Test1b");
+		String expected = getContent(new ByteArrayInputStream(getBytes("result1.docx")), "word/document.xml");
+		String expectedRels = null;
+		for (int i = 0; i < 2; i++) {
+			byte[] document;
+			try (InputStream is = this.getClass().getResourceAsStream("test1.docx")) {
+				document = docxME.getDocument(is, new RootMergeSource(true, true));
+			}
+			String xml = getContent(new ByteArrayInputStream(document), "word/document.xml");
+			Assert.assertEquals("merged docx does not match the expected result", xml, expected);
+			String rels = getContent(new ByteArrayInputStream(document), "word/_rels/document.xml.rels");
+			if (expectedRels == null) {
+				expectedRels = rels;
+			}
+			Assert.assertEquals("image relations differ between documents", expectedRels, rels);
+		}
+	}
+
+	/**
+	 * Test 1c: die Vorlage wird mit StAX statt ueber ein DOM aufbereitet, das Resultat muss identisch sein.
+	 */
+	@Test
+	public void testStreamingPreprocessing() throws Exception {
+
+		DOCXMergeEngine docxME = new DOCXMergeEngine("Test1c");
+		docxME.setPreprocessingMode(PreprocessingMode.STREAMING);
+		byte[] document;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.docx")) {
+			document = docxME.getDocument(is, new RootMergeSource(true, true));
+		}
+
+		String xml = getContent(new ByteArrayInputStream(document), "word/document.xml");
+		String expected = getContent(new ByteArrayInputStream(getBytes("result1.docx")), "word/document.xml");
+		Assert.assertEquals("merged docx does not match the expected result", xml, expected);
+	}
+
 	/**
 	 * Test 2: Multithreading-Test.
 	 */
@@ -148,6 +192,27 @@ public class DOCXMergeEngineTest {
 
 	}
 
+	/**
+	 * Test 5: Bedingungen mit Vergleichen und Verknuepfungen
+	 */
+	@Test
+	public void testConditionExpressions() throws Exception {
+
+		ExtendedBeanMergeSource mergeSource = new ExtendedBeanMergeSource(new Pojo(), "ext.pojo.");
+		MergeContext ctx = new MergeContext(mergeSource);
+		Assert.assertTrue(mergeSource.ifStatement(ctx, "ext.pojo.konstante_EQ_CONST2"));
+		Assert.assertFalse(mergeSource.ifStatement(ctx, "ext.pojo.konstante_NEQ_CONST2"));
+		Assert.assertTrue(mergeSource.ifStatement(ctx, "ext.pojo.ganzzahl_GT_100_AND_ext.pojo.ganzzahl_LT_200"));
+		Assert.assertFalse(mergeSource.ifStatement(ctx, "ext.pojo.ganzzahl_GE_124"));
+		Assert.assertTrue(mergeSource.ifStatement(ctx, "ext.pojo.ganzzahl_LE_123"));
+		Assert.assertTrue(mergeSource.ifStatement(ctx, "ext.pojo.fliesskommazahl_BETWEEN_123__123.5"));
+		Assert.assertFalse(mergeSource.ifStatement(ctx, "ext.pojo.fliesskommazahl_BETWEEN_123.2__200"));
+		Assert.assertTrue(mergeSource.ifStatement(ctx, "ext.pojo.konstante_IN_CONST1__CONST2"));
+		Assert.assertFalse(mergeSource.ifStatement(ctx, "NOT_ext.pojo.konstante_IN_CONST1__CONST2"));
+		Assert.assertTrue(mergeSource.ifStatement(ctx, "ext.pojo.text_EQ_x_OR_ext.pojo.liste"));
+		Assert.assertFalse(mergeSource.ifStatement(ctx, "ext.pojo.text_EQ_x_OR_ext.pojo.ganzzahl_LT_0_AND_ext.pojo.liste"));
+	}
+
 	private static String getContent(InputStream input, final String zipEntryName) {
 
 		try (ZipInputStream zipin = new ZipInputStream(input)) {
@@ -14,14 +14,23 @@
  */
 package ch.dvbern.lib.doctemplate.odt;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,9 +39,18 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import ch.dvbern.lib.doctemplate.common.AbstractMergeEngine;
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
+import ch.dvbern.lib.doctemplate.common.CompiledTemplate;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.DocumentSink;
 import ch.dvbern.lib.doctemplate.common.Image;
+import ch.dvbern.lib.doctemplate.common.MergeSession;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.common.TemplateWriter;
+import ch.dvbern.lib.doctemplate.common.TemplateWriter.StartTag;
+import ch.dvbern.lib.doctemplate.common.ZipTemplate;
+import ch.dvbern.lib.doctemplate.common.ZipTemplateOutputStream;
 import ch.dvbern.lib.doctemplate.util.ImageHandler;
 
 /**
@@ -59,7 +77,7 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 	private static final String MANIFEST_ENTRY_1 = "<manifest:file-entry manifest:media-type=\"image/";
 	private static final String MANIFEST_ENTRY_2 = "\" manifest:full-path=\"";
 	private static final String MANIFEST_ENTRY_3 = "\"/>";
-	private final ImageHandler<Image> imageHandler = new ODTImageHandler();
+	private static final ImageHandler<Image> IMAGE_HANDLER = new ODTImageHandler();
 
 	/** Logger */
 	private static final Log log = LogFactory.getLog(ODTMergeEngine.class);
@@ -85,8 +103,8 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource, Map<String, String> keyTranslationTable) throws DocTemplateException {
 
-		this.keyTranslationTable.putAll(keyTranslationTable);
-		return getDocument(input, mergeSource);
+		MergeSession<Image> session = createSession(keyTranslationTable);
+		return getDocument(compile(session, readTemplate(input)), mergeSource, session);
 	}
 
 	/**
@@ -100,41 +118,175 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource) throws DocTemplateException {
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		return getDocument(compile(input), mergeSource);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> ein Dokument und gibt dieses als byte[] zurueck.
+	 * Die Platzhalter innerhalb der Vorlage werden mit Hilfe der <code>mergeSource</code> ermittelt und abgefuellt.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @return Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public byte[] getDocument(CompiledTemplate template, MergeSource mergeSource) throws DocTemplateException {
+
+		return getDocument(template, mergeSource, createSession(null));
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>, ohne
+	 * es vollstaendig im Speicher aufzubauen. <code>output</code> wird nicht geschlossen; im Fehlerfall kann bereits ein
+	 * Teil des Dokuments geschrieben sein.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, Map<String, String> keyTranslationTable, OutputStream output)
+			throws DocTemplateException {
+
+		MergeSession<Image> session = createSession(keyTranslationTable);
+		writeDocument(compile(session, readTemplate(input)), mergeSource, session, output);
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>.
+	 * <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		writeDocument(compile(input), mergeSource, output);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> ein Dokument und schreibt dieses direkt nach
+	 * <code>output</code>. <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(CompiledTemplate template, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		writeDocument(template, mergeSource, createSession(null), output);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> ein Dokument und schreibt dieses direkt nach
+	 * <code>channel</code>. <code>channel</code> muss blockierend sein und wird nicht geschlossen.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param channel Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(CompiledTemplate template, MergeSource mergeSource, WritableByteChannel channel) throws DocTemplateException {
+
+		writeDocument(template, mergeSource, Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> fuer jede <code>mergeSource</code> ein Dokument und liefert dieses an
+	 * <code>sink</code>. Die Vorlage wird nur einmal gelesen und geparst.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(InputStream input, Iterable<? extends MergeSource> mergeSources, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		getDocuments(compile(input), mergeSources, batch, sink);
+	}
+
+	/**
+	 * Merged aus der bereits geparsten Vorlage <code>template</code> fuer jede <code>mergeSource</code> ein Dokument und
+	 * liefert dieses an <code>sink</code>.
+	 *
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(CompiledTemplate template, Iterable<? extends MergeSource> mergeSources, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		batch.run(mergeSources.iterator(), mergeSource -> getDocument(template, mergeSource), sink);
+	}
+
+	private byte[] getDocument(CompiledTemplate template, MergeSource mergeSource, MergeSession<Image> session) throws DocTemplateException {
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(template.getSize());
+		writeDocument(template, mergeSource, session, baos);
+		return baos.toByteArray();
+	}
+
+	private void writeDocument(CompiledTemplate template, MergeSource mergeSource, MergeSession<Image> session, OutputStream output)
+			throws DocTemplateException {
+
+		prefetch(session, mergeSource, template);
+		session.setImageHandler(IMAGE_HANDLER);
 		try {
-			ZipEntry ze;
-			ZipOutputStream zipout = new ZipOutputStream(baos);
-			ZipInputStream zipin = new ZipInputStream(input);
-			ByteArrayOutputStream manifest = new ByteArrayOutputStream();
-			while ((ze = zipin.getNextEntry()) != null) {
+			ZipTemplate zip = template.getZipTemplate();
+			ZipTemplateOutputStream zipout = new ZipTemplateOutputStream(output);
+			ZipTemplate.Entry manifest = null;
+			for (ZipTemplate.Entry ze : zip.getEntries()) {
 				String zeName = ze.getName();
+				BasicMergeElement part = template.getPart(zeName);
 				// In styles.xml kann der Header and Footer gefunden werden.
-				if (CONTENT_XML_FILE_NAME.equals(zeName) || STYLES_XML_FILE_NAME.equals(zeName)) {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					mergeContent(mergeSource, zipin, zipout);
+				if (part != null) {
+					zipout.putNextEntry(zeName);
+					mergeContent(session, mergeSource, part, zipout);
 				} else if (MANIFEST_FILE_NAME.equals(zeName)) {
-					transfer(zipin, manifest);
+					manifest = ze;
 				} else {
-					zipout.putNextEntry(new ZipEntry(zeName));
-					transfer(zipin, zipout);
+					// unveraenderte Eintraege ohne erneutes Komprimieren uebernehmen
+					zipout.copyEntry(zip, ze);
 				}
 			}
-			addManifest(manifest, zipout);
+			addManifest(session.getImages(), zip, manifest, zipout);
 			// Bilder einfuegen
-			for (Map.Entry<String, Image> me : images.entrySet()) {
-				zipout.putNextEntry(new ZipEntry(me.getKey()));
+			for (Map.Entry<String, Image> me : session.getImages().entrySet()) {
+				zipout.putNextEntry(me.getKey());
 				zipout.write(me.getValue().getBytes());
 			}
-			zipin.close();
-			zipout.close();
-			byte[] result = baos.toByteArray();
-			baos.close();
-			return result;
+			zipout.finish();
 		} catch (IOException e) {
 			throw new DocTemplateException(e);
 		}
 	}
 
+	@Override
+	protected Map<String, BasicMergeElement> compileParts(MergeSession<Image> session, byte[] template) throws DocTemplateException {
+
+		Map<String, BasicMergeElement> parts = new LinkedHashMap<>();
+		try (ZipInputStream zipin = new ZipInputStream(new ByteArrayInputStream(template))) {
+			ZipEntry ze;
+			while ((ze = zipin.getNextEntry()) != null) {
+				String zeName = ze.getName();
+				if (CONTENT_XML_FILE_NAME.equals(zeName) || STYLES_XML_FILE_NAME.equals(zeName)) {
+					parts.put(zeName, compileContent(session, zipin));
+				}
+			}
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+		return parts;
+	}
+
 	private void transfer(InputStream input, OutputStream output) throws IOException {
 
 		int read = 0;
@@ -144,28 +296,35 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 		}
 	}
 
-	private void addManifest(ByteArrayOutputStream manifest, ZipOutputStream zipout) throws IOException {
+	private void addManifest(Map<String, Image> images, ZipTemplate zip, ZipTemplate.Entry manifest, ZipTemplateOutputStream zipout)
+			throws IOException {
 
-		if (manifest.size() > 0) {
-			zipout.putNextEntry(new ZipEntry(MANIFEST_FILE_NAME));
-			byte[] manifestBytes = manifest.toByteArray();
-			if (images != null && images.size() > 0) {
-				StringBuilder manifestBuilder = new StringBuilder(new String(manifestBytes, UTF8));
-				for (Map.Entry<String, Image> img : images.entrySet()) {
-					int p = manifestBuilder.indexOf(MANIFEST_END_TAG);
-					StringBuilder sb = new StringBuilder(MANIFEST_ENTRY_1);
-					sb.append(img.getValue().getFormat().toString().toLowerCase());
-					sb.append(MANIFEST_ENTRY_2).append(img.getKey()).append(MANIFEST_ENTRY_3);
-					manifestBuilder.insert(p, sb.toString());
-				}
-				manifestBytes = manifestBuilder.toString().getBytes(UTF8);
-			}
-			zipout.write(manifestBytes);
+		if (manifest == null) {
+			return;
+		}
+		if (images == null || images.isEmpty()) {
+			// ohne Bilder bleibt das Manifest unveraendert
+			zipout.copyEntry(zip, manifest);
+			return;
+		}
+		ByteArrayOutputStream manifestStream = new ByteArrayOutputStream();
+		try (InputStream input = zip.getInputStream(manifest)) {
+			transfer(input, manifestStream);
 		}
+		zipout.putNextEntry(MANIFEST_FILE_NAME);
+		StringBuilder manifestBuilder = new StringBuilder(new String(manifestStream.toByteArray(), UTF8));
+		for (Map.Entry<String, Image> img : images.entrySet()) {
+			int p = manifestBuilder.indexOf(MANIFEST_END_TAG);
+			StringBuilder sb = new StringBuilder(MANIFEST_ENTRY_1);
+			sb.append(img.getValue().getFormat().toString().toLowerCase());
+			sb.append(MANIFEST_ENTRY_2).append(img.getKey()).append(MANIFEST_ENTRY_3);
+			manifestBuilder.insert(p, sb.toString());
+		}
+		zipout.write(manifestBuilder.toString().getBytes(UTF8));
 	}
 
 	@Override
-	protected void preProcess(Document doc, Node src, Node dest) throws DocTemplateException {
+	protected void preProcess(MergeSession<Image> session, Document doc, Node src, Node dest) throws DocTemplateException {
 
 		NodeList childElements = src.getChildNodes();
 		for (int i = 0; i < childElements.getLength(); i++) {
@@ -173,8 +332,7 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 			Node result = null;
 			boolean field = false;
 			// OO Field Eigenschaft kann mit "variable-get" oder "variable-set" Knotename behandlen werden.
-			if (childElement.getNodeName().endsWith(ODT_BOOKMARK_TAG_SUFFIX)
-					|| (field = childElement.getNodeName().endsWith(OO_FIELD_GET_TAG_POSTFIX) || childElement.getNodeName().endsWith(OO_FIELD_SET_TAG_POSTFIX))) {
+			if (isBookmark(childElement.getNodeName()) || (field = isField(childElement.getNodeName()))) {
 				String key = "";
 				// In Fall des Fields key gleich mit dem "text:name" Eigenschaft
 				if (field) {
@@ -182,36 +340,100 @@ public class ODTMergeEngine extends AbstractMergeEngine<Image> {
 				} else {
 					key = childElement.getAttributes().item(0).getTextContent();
 				}
-				// mehrere gleiche Textmarken mit ALT-Suffix intern ohne ALT-Suffix anwenden
-				int altPos = key.indexOf(ALTERNATE_SUFFIX);
-				if (altPos > 0) {
-					key = key.substring(0, altPos);
-				}
-				if (key != null && (key.startsWith(getFieldPrefix()) || key.startsWith(SORTFIELD_PREFIX) || key.startsWith(CONDITION_BEGIN) || key.startsWith(CONDITION_END)
-						|| key.startsWith(ITERATION_BEGIN) || key.startsWith(ITERATION_END)) || field) {
+				String content = getBookmarkContent(key, field);
+				if (content != null) {
 					result = doc.createElement(INTERNAL_BOOKMARK_TAG);
-					// In Fall des Fields wird ein Feld mit Prefix "FIELD_" generiert. Das bedautet, wir behandlen den
-					// OO Field ebenso, als "FIELD_" Bookmark
-					result.setTextContent(field ? (getFieldPrefix() + key) : key);
+					result.setTextContent(content);
 				}
 			}
 			if (result == null) {
 				result = doc.adoptNode(childElement.cloneNode(false));
 			}
 			dest.appendChild(result);
-			preProcess(doc, childElement, result);
+			preProcess(session, doc, childElement, result);
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see ch.dvbern.lib.doctemplate.common.AbstractMergeEngine#getImageHandler()
+	@Override
+	protected void preProcess(MergeSession<Image> session, XMLStreamReader reader, TemplateWriter<Image> writer)
+			throws XMLStreamException, DocTemplateException {
+
+		// pro offenem Element, ob es durch ein Bookmark ersetzt wurde
+		Deque<Boolean> replaced = new ArrayDeque<>();
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				StartTag tag = StartTag.of(reader);
+				String content = null;
+				if (isBookmark(tag.getQName())) {
+					String key = tag.getFirstAttribute();
+					content = key != null ? getBookmarkContent(key, false) : null;
+				} else if (isField(tag.getQName())) {
+					String key = tag.getAttribute(TEXT_NAME);
+					content = key != null ? getBookmarkContent(key, true) : null;
+				}
+				if (content != null) {
+					writer.writeStartBookmark(content);
+				} else {
+					writer.writeStartElement(tag);
+				}
+				replaced.push(content != null);
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (replaced.pop()) {
+					writer.writeEndBookmark();
+				} else {
+					writer.writeEndElement();
+				}
+			} else {
+				writer.copyEvent(reader);
+			}
+		}
+	}
+
+	private static boolean isBookmark(String nodeName) {
+
+		return nodeName.endsWith(ODT_BOOKMARK_TAG_SUFFIX);
+	}
+
+	private static boolean isField(String nodeName) {
+
+		return nodeName.endsWith(OO_FIELD_GET_TAG_POSTFIX) || nodeName.endsWith(OO_FIELD_SET_TAG_POSTFIX);
+	}
+
+	/**
+	 * @param key Name des Bookmarks bzw. des Feldes
+	 * @param field <code>true</code> fuer ein OO Field
+	 * @return Inhalt des Bookmarks, das anstelle des Elementes eingefuegt wird, oder <code>null</code>, wenn das
+	 *         Element unveraendert uebernommen wird
+	 */
+	private String getBookmarkContent(String key, boolean field) {
+
+		String result = key;
+		// mehrere gleiche Textmarken mit ALT-Suffix intern ohne ALT-Suffix anwenden
+		int altPos = result.indexOf(ALTERNATE_SUFFIX);
+		if (altPos > 0) {
+			result = result.substring(0, altPos);
+		}
+		if (field) {
+			// In Fall des Fields wird ein Feld mit Prefix "FIELD_" generiert. Das bedautet, wir behandlen den
+			// OO Field ebenso, als "FIELD_" Bookmark
+			return getFieldPrefix() + result;
+		}
+		if (result.startsWith(getFieldPrefix()) || result.startsWith(SORTFIELD_PREFIX) || result.startsWith(CONDITION_BEGIN)
+				|| result.startsWith(CONDITION_END) || result.startsWith(ITERATION_BEGIN) || result.startsWith(ITERATION_END)) {
+			return result;
+		}
+		return null;
+	}
+
+	/**
+	 * @deprecated vgl. {@link ch.dvbern.lib.doctemplate.common.MergeSession#getImageHandler()}
 	 */
+	@Deprecated
 	@Override
 	public ImageHandler<Image> getImageHandler() {
 
-		return imageHandler;
+		return IMAGE_HANDLER;
 	}
 
 }
\ No newline at end of file
@@ -21,8 +21,16 @@ import java.io.InputStream;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -31,10 +39,16 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
+import ch.dvbern.lib.doctemplate.common.CompiledTemplate;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
 import ch.dvbern.lib.doctemplate.common.Image;
+import ch.dvbern.lib.doctemplate.common.IterationMergeSource;
+import ch.dvbern.lib.doctemplate.common.KeyManifest;
 import ch.dvbern.lib.doctemplate.common.MergeContext;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.common.PreprocessingMode;
+import ch.dvbern.lib.doctemplate.common.TemplateCache;
 
 /**
  * @author METH
@@ -81,6 +95,57 @@ public class ODTMergeEngineTest {
 		Assert.assertEquals("merged odt does not match the expected result", xmlContent, expected);
 	}
 
+	/**
+	 * Test 3: geparste Vorlage wird aus dem Cache geliefert und fuer mehrere Merges wiederverwendet.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompiledTemplate() throws Exception {
+
+		TemplateCache cache = new TemplateCache(TemplateCache.DEFAULT_MAX_SIZE);
+		ODTMergeEngine odtME = new ODTMergeEngine("Test3");
+		odtME.setTemplateCache(cache);
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			template = odtME.compile(is);
+		}
+		ODTMergeEngine cachedME = new ODTMergeEngine("Test3.cached");
+		cachedME.setTemplateCache(cache);
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			Assert.assertSame("template is not cached", template, cachedME.compile(is));
+		}
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			Assert.assertNotSame("template is cached by default", template, new ODTMergeEngine("Test3.uncached").compile(is));
+		}
+		Assert.assertEquals(1, cache.size());
+
+		String expected = new String(getBytes("result1.xml"));
+		for (int i = 0; i < 2; i++) {
+			byte[] document = odtME.getDocument(template, new RootMergeSource(true, true));
+			Assert.assertEquals("merged odt does not match the expected result", getContent(new ByteArrayInputStream(document)), expected);
+		}
+	}
+
+	/**
+	 * Test 3b: die Vorlage wird mit StAX statt ueber ein DOM aufbereitet, das Resultat muss identisch sein.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testStreamingPreprocessing() throws Exception {
+
+		ODTMergeEngine odtME = new ODTMergeEngine("Test3b");
+		odtME.setPreprocessingMode(PreprocessingMode.STREAMING);
+		byte[] document;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			document = odtME.getDocument(is, new RootMergeSource(true, true));
+		}
+
+		String expected = new String(getBytes("result1.xml"));
+		Assert.assertEquals("merged odt does not match the expected result", getContent(new ByteArrayInputStream(document)), expected);
+	}
+
 	private static String getContent(InputStream input) {
 
 		try {
@@ -124,6 +189,209 @@ public class ODTMergeEngineTest {
 		semaphore.acquire(100);
 	}
 
+	/**
+	 * Test 5: eine einzige Engine wird von mehreren Threads gleichzeitig verwendet.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testSharedEngine() throws Exception {
+
+		final String expected = new String(getBytes("result1.xml"));
+		final ODTMergeEngine odtME = new ODTMergeEngine("Test5");
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 50; i++) {
+				results.add(executor.submit(new Callable<String>() {
+
+					@Override
+					public String call() throws Exception {
+
+						try (InputStream is = ODTMergeEngineTest.class.getResourceAsStream("test1.odt")) {
+							return getContent(new ByteArrayInputStream(odtME.getDocument(is, new RootMergeSource(true, true))));
+						}
+					}
+				}));
+			}
+			for (Future<String> result : results) {
+				Assert.assertEquals("merged odt does not match the expected result", result.get(), expected);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Test 6: Massenverarbeitung, die Dokumente werden parallel erzeugt und in der Reihenfolge der Eingabe geliefert.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatch() throws Exception {
+
+		final String expected = new String(getBytes("result1.xml"));
+		ODTMergeEngine odtME = new ODTMergeEngine("Test6");
+		List<MergeSource> mergeSources = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			mergeSources.add(new RootMergeSource(true, true));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Long> indexes = new ArrayList<>();
+			try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+				odtME.getDocuments(is, mergeSources, new BatchMerge(executor, 3, true), (index, mergeSource, document) -> {
+					Assert.assertSame(mergeSources.get((int) index), mergeSource);
+					Assert.assertEquals("merged odt does not match the expected result", getContent(new ByteArrayInputStream(document)), expected);
+					indexes.add(index);
+				});
+			}
+			Assert.assertEquals(20, indexes.size());
+			for (int i = 0; i < indexes.size(); i++) {
+				Assert.assertEquals("documents not delivered in input order", i, indexes.get(i).longValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Test 7: unveraenderte Eintraege der Vorlage werden ohne erneutes Komprimieren uebernommen, "mimetype" bleibt
+	 * der erste und unkomprimierte Eintrag.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testCopyUnchangedEntries() throws Exception {
+
+		byte[] template = getBytes("test1.odt");
+		byte[] document = new ODTMergeEngine("Test7").getDocument(new ByteArrayInputStream(template), new RootMergeSource(false, false));
+
+		Map<String, ZipEntry> templateEntries = new LinkedHashMap<>();
+		Map<String, byte[]> templateContents = readEntries(new ByteArrayInputStream(template), templateEntries);
+		Map<String, ZipEntry> documentEntries = new LinkedHashMap<>();
+		Map<String, byte[]> documentContents = readEntries(new ByteArrayInputStream(document), documentEntries);
+
+		Assert.assertEquals("mimetype", documentEntries.keySet().iterator().next());
+		Assert.assertEquals(ZipEntry.STORED, documentEntries.get("mimetype").getMethod());
+		Assert.assertTrue(documentEntries.keySet().containsAll(templateEntries.keySet()));
+		for (String name : templateEntries.keySet()) {
+			// gemergte Bestandteile und das um die Bilder ergaenzte Manifest werden neu geschrieben
+			if ("content.xml".equals(name) || "styles.xml".equals(name) || "META-INF/manifest.xml".equals(name)) {
+				continue;
+			}
+			Assert.assertArrayEquals(name, templateContents.get(name), documentContents.get(name));
+			Assert.assertEquals(name, templateEntries.get(name).getMethod(), documentEntries.get(name).getMethod());
+			Assert.assertEquals(name, templateEntries.get(name).getCompressedSize(), documentEntries.get(name).getCompressedSize());
+		}
+	}
+
+	/**
+	 * Test 8: das Dokument wird direkt in einen Stream geschrieben, der Stream bleibt offen.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteDocument() throws Exception {
+
+		ODTMergeEngine odtME = new ODTMergeEngine("Test8");
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			template = odtME.compile(is);
+		}
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream output = new ByteArrayOutputStream() {
+
+			@Override
+			public void close() {
+
+				closed[0] = true;
+			}
+		};
+		odtME.writeDocument(template, new RootMergeSource(true, true), output);
+
+		Assert.assertFalse("output stream must not be closed", closed[0]);
+		String expected = new String(getBytes("result1.xml"));
+		Assert.assertEquals("merged odt does not match the expected result", getContent(new ByteArrayInputStream(output.toByteArray())), expected);
+	}
+
+	/**
+	 * Test 9: mit gemerkten Resultaten wird jeder Key ausserhalb von Iterationen nur einmal abgefragt, das Resultat
+	 * bleibt gleich.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testMergeSourceCaching() throws Exception {
+
+		ODTMergeEngine odtME = new ODTMergeEngine("Test9");
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			template = odtME.compile(is);
+		}
+		CountingMergeSource uncached = new CountingMergeSource(new RootMergeSource(true, true));
+		odtME.getDocument(template, uncached);
+
+		odtME.setMergeSourceCaching(true);
+		CountingMergeSource cached = new CountingMergeSource(new RootMergeSource(true, true));
+		byte[] document = odtME.getDocument(template, cached);
+
+		String expected = new String(getBytes("result1.xml"));
+		Assert.assertEquals("merged odt does not match the expected result", getContent(new ByteArrayInputStream(document)), expected);
+		Assert.assertTrue("keys requested more than once: " + cached.rootKeys, cached.rootKeys.size() == new HashSet<>(cached.rootKeys).size());
+		Assert.assertTrue(cached.rootKeys.size() < uncached.rootKeys.size());
+	}
+
+	/**
+	 * Test 10: die Vorlage kennt alle Keys, die sie abfragt, und uebergibt sie vor dem Mergen einmal an die
+	 * MergeSource.
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void testKeyManifest() throws Exception {
+
+		ODTMergeEngine odtME = new ODTMergeEngine("Test10");
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.odt")) {
+			template = odtME.compile(is);
+		}
+		KeyManifest manifest = template.getKeyManifest();
+		Assert.assertTrue(manifest.getFieldKeys().contains("TestWert"));
+		Assert.assertTrue(manifest.getConditionKeys().contains("testcondition"));
+		Assert.assertTrue(manifest.getIteration("testloop").getFieldKeys().contains("Col1"));
+		Assert.assertTrue(manifest.getKeys().contains("WHILE_testloop"));
+
+		CountingMergeSource mergeSource = new CountingMergeSource(new RootMergeSource(true, true));
+		odtME.getDocument(template, mergeSource);
+
+		Assert.assertEquals(1, mergeSource.prefetched.size());
+		Assert.assertEquals(manifest.getKeys(), mergeSource.prefetched.get(0));
+		Assert.assertTrue("keys missing in manifest: " + mergeSource.rootKeys, manifest.getKeys().containsAll(mergeSource.rootKeys));
+	}
+
+	private static Map<String, byte[]> readEntries(InputStream input, Map<String, ZipEntry> entries) throws IOException {
+
+		Map<String, byte[]> result = new LinkedHashMap<>();
+		try (ZipInputStream zipin = new ZipInputStream(input)) {
+			ZipEntry ze;
+			while ((ze = zipin.getNextEntry()) != null) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				byte[] buf = new byte[1024];
+				int numRead;
+				while ((numRead = zipin.read(buf)) != -1) {
+					baos.write(buf, 0, numRead);
+				}
+				result.put(ze.getName(), baos.toByteArray());
+				// Groessen stehen bei Eintraegen mit Data Descriptor erst nach dem Lesen fest
+				entries.put(ze.getName(), ze);
+			}
+		}
+		return result;
+	}
+
 	private class MultithreadingTest extends Thread {
 
 		private final int number;
@@ -248,6 +516,55 @@ public class ODTMergeEngineTest {
 		}
 	}
 
+	/**
+	 * Zaehlt die Abfragen ausserhalb von Iterationen.
+	 */
+	private static class CountingMergeSource implements MergeSource {
+
+		private final MergeSource delegate;
+		private final List<String> rootKeys = new ArrayList<>();
+		private final List<Set<String>> prefetched = new ArrayList<>();
+
+		CountingMergeSource(MergeSource delegate) {
+
+			this.delegate = delegate;
+		}
+
+		private void count(MergeContext ctx, String type, String key) {
+
+			if (!(ctx.getCurrentMergeSource() instanceof IterationMergeSource)) {
+				this.rootKeys.add(type + key);
+			}
+		}
+
+		@Override
+		public Object getData(MergeContext ctx, String key) throws DocTemplateException {
+
+			count(ctx, "FIELD_", key);
+			return this.delegate.getData(ctx, key);
+		}
+
+		@Override
+		public Boolean ifStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+			count(ctx, "IF_", key);
+			return this.delegate.ifStatement(ctx, key);
+		}
+
+		@Override
+		public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+			count(ctx, "WHILE_", key);
+			return this.delegate.whileStatement(ctx, key);
+		}
+
+		@Override
+		public void prefetch(Set<String> keys) {
+
+			this.prefetched.add(keys);
+		}
+	}
+
 	private class DetailMergeSource implements MergeSource {
 
 		private final String col1, col2, col3, col4;
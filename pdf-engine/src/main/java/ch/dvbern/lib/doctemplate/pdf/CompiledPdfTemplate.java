@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.pdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.lowagie.text.pdf.AcroFields;
+import com.lowagie.text.pdf.PdfReader;
+
+/**
+ * Einmal gelesene PDF-Vorlage fuer beliebig viele Merges, vgl. {@link PDFMergeEngine#compile(java.io.InputStream)}.
+ * Pro Formularfeld sind Key, Format und Position bereits ermittelt. Jeder Merge arbeitet auf einer Kopie der gelesenen
+ * Vorlage, die Vorlage selbst wird nicht veraendert. Instanzen sind threadsafe.
+ */
+public final class CompiledPdfTemplate {
+
+	private final PdfReader reader;
+	private final List<Field> fields;
+
+	CompiledPdfTemplate(PdfReader reader, Map<String, String> keyTranslationTable) {
+
+		this.reader = reader;
+		AcroFields acroFields = reader.getAcroFields();
+		List<Field> result = new ArrayList<>();
+		for (Object o : acroFields.getFields().keySet()) {
+			String name = o.toString();
+			result.add(new Field(name, PDFMergeEngine.translate(name, keyTranslationTable), acroFields.getFieldPositions(name)));
+		}
+		this.fields = Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * @return Formularfelder der Vorlage
+	 */
+	List<Field> getFields() {
+
+		return this.fields;
+	}
+
+	/**
+	 * @return unabhaengige Kopie der Vorlage fuer einen Merge, ohne die Vorlage erneut zu parsen
+	 */
+	PdfReader newReader() {
+
+		synchronized (this.reader) {
+			return new PdfReader(this.reader);
+		}
+	}
+
+	/**
+	 * Ein Formularfeld mit dem bereits aufbereiteten Key.
+	 */
+	static final class Field {
+
+		private static final String FORMAT_SUFFIX = "_FMT";
+		private static final String ALTERNATE_SUFFIX = "_ALT";
+
+		/** Name des Formularfeldes in der Vorlage */
+		final String name;
+		/** Key fuer {@link ch.dvbern.lib.doctemplate.common.MergeSource#getData} */
+		final String dataKey;
+		/** Format ohne "_FMT" oder <code>null</code> */
+		final String formatSuffix;
+		/** Seite und Rechteck (lx, ly, ux, uy) des ersten Widgets oder <code>null</code> */
+		final float[] position;
+
+		Field(String name, String translated, float[] positions) {
+
+			this.name = name;
+			// Alternative-Suffix vom key entfernen
+			String ohneAltSuffix = translated;
+			int i = ohneAltSuffix.indexOf(ALTERNATE_SUFFIX);
+			if (i > 0) {
+				ohneAltSuffix = ohneAltSuffix.substring(0, i);
+			}
+			// Format-Suffix aus key extrahieren
+			String ohneFormatSuffix = ohneAltSuffix, format = null;
+			i = ohneFormatSuffix.indexOf(FORMAT_SUFFIX);
+			if (i > 0) {
+				format = ohneFormatSuffix.substring(i + FORMAT_SUFFIX.length());
+				ohneFormatSuffix = ohneFormatSuffix.substring(0, i);
+			}
+			this.dataKey = ohneFormatSuffix;
+			this.formatSuffix = format;
+			this.position = positions != null && positions.length >= 5 ? new float[] { positions[0], positions[1], positions[2],
+					positions[3], positions[4] } : null;
+		}
+
+		int getPage() {
+
+			return (int) this.position[0];
+		}
+	}
+}
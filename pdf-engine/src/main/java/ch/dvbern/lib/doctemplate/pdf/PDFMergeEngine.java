@@ -15,21 +15,31 @@
 package ch.dvbern.lib.doctemplate.pdf;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.lowagie.text.BadElementException;
 import com.lowagie.text.Rectangle;
 import com.lowagie.text.pdf.AcroFields;
 import com.lowagie.text.pdf.PdfContentByte;
 import com.lowagie.text.pdf.PdfReader;
 import com.lowagie.text.pdf.PdfStamper;
 
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
 import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.DocumentSink;
 import ch.dvbern.lib.doctemplate.common.Image;
 import ch.dvbern.lib.doctemplate.common.MergeContext;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
@@ -41,14 +51,10 @@ import ch.dvbern.lib.doctemplate.util.FormatHelper;
  */
 public class PDFMergeEngine {
 
-	private static final String FORMAT_SUFFIX = "_FMT";
-	private static final String ALTERNATE_SUFFIX = "_ALT";
-
 	/** Logger */
 	private static final Log log = LogFactory.getLog(PDFMergeEngine.class);
 
 	private final String name;
-	private Map<String, String> keyTranslationTable = null;
 
 	/**
 	 * Initialisierung der Engine mit einem kennzeichnenden Namen.
@@ -60,6 +66,63 @@ public class PDFMergeEngine {
 		this.name = name;
 	}
 
+	/**
+	 * Liest die Vorlage und ermittelt pro Formularfeld Key, Format und Position. Die gelesene Vorlage kann fuer
+	 * beliebig viele Merges, auch gleichzeitig, wiederverwendet werden.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @return gelesene Vorlage
+	 * @throws DocTemplateException Fehler beim Lesen der Vorlage
+	 */
+	public CompiledPdfTemplate compile(InputStream input) throws DocTemplateException {
+
+		return compile(input, null);
+	}
+
+	/**
+	 * Liest die Vorlage und ermittelt pro Formularfeld Key, Format und Position.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @return gelesene Vorlage
+	 * @throws DocTemplateException Fehler beim Lesen der Vorlage
+	 */
+	public CompiledPdfTemplate compile(InputStream input, Map<String, String> keyTranslationTable) throws DocTemplateException {
+
+		try {
+			return new CompiledPdfTemplate(new PdfReader(readTemplate(input)), keyTranslationTable);
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	/**
+	 * Merged aus der bereits gelesenen Vorlage <code>template</code> ein Dokument und gibt dieses als byte[] zurueck.
+	 *
+	 * @param template mit {@link #compile(InputStream)} gelesene Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @return Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public byte[] getDocument(CompiledPdfTemplate template, MergeSource mergeSource) throws DocTemplateException {
+
+		return merge(template, mergeSource);
+	}
+
+	/**
+	 * Merged aus der bereits gelesenen Vorlage <code>template</code> ein Dokument und schreibt dieses direkt nach
+	 * <code>output</code>. <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param template mit {@link #compile(InputStream)} gelesene Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(CompiledPdfTemplate template, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		merge(template, mergeSource, output);
+	}
+
 	/**
 	 * Merged aus der Vorlage <code>reader</code> ein Dokument und gibt dieses als byte[] zurueck. Die Platzhalter
 	 * innerhalb der Vorlage werden mit Hilfe der <code>mergeSource</code> ermittelt und abgefuellt.
@@ -72,8 +135,7 @@ public class PDFMergeEngine {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource, Map<String, String> keyTranslationTable) throws DocTemplateException {
 
-		this.keyTranslationTable = keyTranslationTable;
-		return getDocument(input, mergeSource);
+		return merge(compile(input, keyTranslationTable), mergeSource);
 	}
 
 	/**
@@ -87,66 +149,208 @@ public class PDFMergeEngine {
 	 */
 	public byte[] getDocument(InputStream input, MergeSource mergeSource) throws DocTemplateException {
 
+		return merge(compile(input), mergeSource);
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>, ohne
+	 * es vollstaendig im Speicher aufzubauen. <code>output</code> wird nicht geschlossen; im Fehlerfall kann bereits ein
+	 * Teil des Dokuments geschrieben sein.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, Map<String, String> keyTranslationTable, OutputStream output)
+			throws DocTemplateException {
+
+		merge(compile(input, keyTranslationTable), mergeSource, output);
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>output</code>.
+	 * <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param output Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, OutputStream output) throws DocTemplateException {
+
+		merge(compile(input), mergeSource, output);
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> ein Dokument und schreibt dieses direkt nach <code>channel</code>.
+	 * <code>channel</code> muss blockierend sein und wird nicht geschlossen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param channel Ziel fuer das Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocument(InputStream input, MergeSource mergeSource, WritableByteChannel channel) throws DocTemplateException {
+
+		merge(compile(input), mergeSource, Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> fuer jede <code>mergeSource</code> ein Dokument und liefert dieses an
+	 * <code>sink</code>. Die Vorlage wird nur einmal gelesen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param keyTranslationTable Uebersetzung von Keys, damit Einschraenkungen von Word umgangen werden koennen
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(InputStream input, Iterable<? extends MergeSource> mergeSources, Map<String, String> keyTranslationTable,
+			BatchMerge batch, DocumentSink sink) throws DocTemplateException {
+
+		getDocuments(compile(input, keyTranslationTable), mergeSources, batch, sink);
+	}
+
+	/**
+	 * Merged aus der bereits gelesenen Vorlage <code>template</code> fuer jede <code>mergeSource</code> ein Dokument
+	 * und liefert dieses an <code>sink</code>.
+	 *
+	 * @param template mit {@link #compile(InputStream)} gelesene Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(CompiledPdfTemplate template, Iterable<? extends MergeSource> mergeSources, BatchMerge batch,
+			DocumentSink sink) throws DocTemplateException {
+
+		batch.run(mergeSources.iterator(), mergeSource -> merge(template, mergeSource), sink);
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>template</code> fuer jede <code>mergeSource</code> ein Dokument und haengt dessen
+	 * Seiten an ein gemeinsames PDF an, z.B. fuer einen Massenversand. Gleiche Ressourcen (Schriften, Bilder, XObjects)
+	 * werden nur einmal geschrieben. Die Seiten werden laufend nach <code>output</code> geschrieben, der
+	 * Speicherbedarf haengt nicht von der Anzahl Dokumente ab. <code>output</code> wird nicht geschlossen. Bricht ein
+	 * Dokument ab, wird das Ergebnis-PDF mit den bis dahin angehaengten Seiten trotzdem abgeschlossen, damit es lesbar
+	 * bleibt. Ein PDF ohne Seiten ist nicht gueltig, ohne <code>mergeSources</code> wird deshalb nichts geschrieben und
+	 * eine DocTemplateException geworfen.
+	 *
+	 * @param template mit {@link #compile(InputStream)} gelesene Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param output Ziel fuer das gemeinsame Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void writeDocuments(CompiledPdfTemplate template, Iterable<? extends MergeSource> mergeSources, OutputStream output)
+			throws DocTemplateException {
+
+		writeDocuments(template, mergeSources, new BatchMerge(Runnable::run, 1, true), output);
+	}
+
+	/**
+	 * Wie {@link #writeDocuments(CompiledPdfTemplate, Iterable, OutputStream)}, die einzelnen Dokumente werden aber
+	 * gemaess <code>batch</code> parallel abgefuellt. Die Seiten folgen der Reihenfolge, in der <code>batch</code> die
+	 * Dokumente ausliefert.
+	 *
+	 * @param template mit {@link #compile(InputStream)} gelesene Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param output Ziel fuer das gemeinsame Ergebnisdokument
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen, oder
+	 *             "error.pdf.no.documents" ohne <code>mergeSources</code>
+	 */
+	public void writeDocuments(CompiledPdfTemplate template, Iterable<? extends MergeSource> mergeSources, BatchMerge batch,
+			OutputStream output) throws DocTemplateException {
+
+		PdfConcatenation concatenation = new PdfConcatenation(output);
+		try {
+			getDocuments(template, mergeSources, batch, concatenation);
+		} finally {
+			concatenation.finish();
+		}
+		if (concatenation.isEmpty()) {
+			throw new DocTemplateException("error.pdf.no.documents");
+		}
+	}
+
+	/**
+	 * Merged aus der Vorlage <code>input</code> fuer jede <code>mergeSource</code> ein Dokument und liefert dieses an
+	 * <code>sink</code>. Die Vorlage wird nur einmal gelesen.
+	 *
+	 * @param input Bezugsquelle fuer die Vorlage
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro Dokument
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der Ergebnisdokumente
+	 * @throws DocTemplateException Gatherer Fehler der eine Benutzerfehlermeldung erzeugen sollen
+	 */
+	public void getDocuments(InputStream input, Iterable<? extends MergeSource> mergeSources, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		getDocuments(input, mergeSources, null, batch, sink);
+	}
+
+	private static byte[] readTemplate(InputStream input) throws DocTemplateException {
+
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			int read;
+			byte[] buf = new byte[8192];
+			while ((read = input.read(buf, 0, buf.length)) != -1) {
+				baos.write(buf, 0, read);
+			}
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	private byte[] merge(CompiledPdfTemplate template, MergeSource mergeSource) throws DocTemplateException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		merge(template, mergeSource, out);
+		return out.toByteArray();
+	}
+
+	private void merge(CompiledPdfTemplate template, MergeSource mergeSource, OutputStream out) throws DocTemplateException {
+
 		FlattenMergeSource flattenMergeSource = new FlattenMergeSource(mergeSource);
 		MergeContext ctx = new MergeContext(flattenMergeSource);
 
-		PdfReader pdfTemplate;
-		ByteArrayOutputStream out;
+		ImageCache images = new ImageCache();
+		PdfReader pdfTemplate = template.newReader();
 		try {
-			pdfTemplate = new PdfReader(input);
-
-			out = new ByteArrayOutputStream();
 			PdfStamper stamper = new PdfStamper(pdfTemplate, out);
+			// der Stream gehoert dem Aufrufer
+			stamper.getWriter().setCloseStream(false);
 
 			stamper.setFormFlattening(true);
 			AcroFields fields = stamper.getAcroFields();
-			for (Object o : fields.getFields().entrySet()) {
-				@SuppressWarnings("rawtypes")
-				String key = ((Map.Entry) o).getKey().toString();
-
-				// PdfForm-Zeichenuebersetzung (* -> .)
-				String translated = translate(key);
-
-				// Alternative-Suffix vom key entfernen
-				String ohneAltSuffix = translated;
-				int i = ohneAltSuffix.indexOf(ALTERNATE_SUFFIX);
-				if (i > 0) {
-					ohneAltSuffix = ohneAltSuffix.substring(0, i);
-				}
-
-				// Format-Suffix aus key extrahieren
-				String ohneFormatSuffix = ohneAltSuffix, formatSuffix = null;
-				i = ohneFormatSuffix.indexOf(FORMAT_SUFFIX);
-				if (i > 0) {
-					formatSuffix = ohneFormatSuffix.substring(i + FORMAT_SUFFIX.length());
-					ohneFormatSuffix = ohneFormatSuffix.substring(0, i);
-				}
-
-				Object data = flattenMergeSource.getData(ctx, ohneFormatSuffix);
+			for (CompiledPdfTemplate.Field field : template.getFields()) {
+				Object data = flattenMergeSource.getData(ctx, field.dataKey);
 				if (data instanceof Image) {
-					Image img = (Image) data;
-					float[] imgPosition = stamper.getAcroFields().getFieldPositions(key);
-					int page = Float.valueOf(imgPosition[0]).intValue();
-					PdfContentByte canvas = stamper.getOverContent(page);
-					insertImage(img, canvas, imgPosition);
+					if (field.position == null) {
+						throw new DocTemplateException("error.pdf.field.position", field.name);
+					}
+					PdfContentByte canvas = stamper.getOverContent(field.getPage());
+					insertImage(images.get((Image) data), canvas, field.position);
 				} else {
-					String s = FormatHelper.getDataAsString(data, formatSuffix);
-					stamper.getAcroFields().setField(key, s);
+					fields.setField(field.name, FormatHelper.getDataAsString(data, field.formatSuffix));
 				}
 			}
 			stamper.close();
-			pdfTemplate.close();
 		} catch (DocTemplateException e) {
 			throw e;
 		} catch (Exception e) {
 			throw new DocTemplateException(e);
+		} finally {
+			pdfTemplate.close();
 		}
-		return out.toByteArray();
 	}
 
-	private void insertImage(Image img, PdfContentByte canvas, float[] imgPosition) throws Exception {
-
-		com.lowagie.text.Image image = com.lowagie.text.Image.getInstance(img.getBytes());
+	private void insertImage(com.lowagie.text.Image image, PdfContentByte canvas, float[] imgPosition) throws Exception {
 
 		float fieldLx = imgPosition[1];
 		float fieldLy = imgPosition[2];
@@ -155,12 +359,14 @@ public class PDFMergeEngine {
 		Rectangle rect = new Rectangle(fieldLx, fieldLy, fieldUx, fieldUy);
 		float absPosWidth = fieldLx;
 		float absPosHeight = fieldLy;
-		image.scaleToFit(rect.getWidth(), rect.getHeight());
-		image.setAbsolutePosition(absPosWidth, absPosHeight);
+		// Groesse und Position nur ueber die Matrix, das Bild kann an mehreren Stellen verwendet werden
 		canvas.addImage(image, rect.getWidth(), 0, 0, rect.getHeight(), absPosWidth, absPosHeight);
 	}
 
-	private String translate(String key) {
+	/**
+	 * @return Key des Formularfeldes <code>key</code> fuer die MergeSource (PdfForm-Zeichenuebersetzung * -> .)
+	 */
+	static String translate(String key, Map<String, String> keyTranslationTable) {
 
 		String result = key.replace('*', '.');
 		if (keyTranslationTable != null) {
@@ -171,15 +377,46 @@ public class PDFMergeEngine {
 		return result;
 	}
 
+	/**
+	 * Pro Merge bereits dekodierte Bilder. Dasselbe Bild (gleiche Instanz oder gleicher Inhalt) wird nur einmal
+	 * dekodiert und nur einmal als XObject eingebettet, alle Platzierungen referenzieren dieses.
+	 */
+	private static final class ImageCache {
+
+		private final Map<Image, com.lowagie.text.Image> byInstance = new IdentityHashMap<>();
+		private final Map<ByteBuffer, com.lowagie.text.Image> byContent = new HashMap<>();
+
+		com.lowagie.text.Image get(Image img) throws BadElementException, IOException {
+
+			com.lowagie.text.Image result = this.byInstance.get(img);
+			if (result == null) {
+				ByteBuffer content = ByteBuffer.wrap(img.getBytes());
+				result = this.byContent.get(content);
+				if (result == null) {
+					result = com.lowagie.text.Image.getInstance(img.getBytes());
+					this.byContent.put(content, result);
+				}
+				this.byInstance.put(img, result);
+			}
+			return result;
+		}
+	}
+
 	/**
 	 * MergeSource Implementierung fuer einen direkten Zugriff in hierarchische MergeSource-Strukturen mit
-	 * Mehrfachvorkommen.
+	 * Mehrfachvorkommen, z.B. "positionen_[3].betrag". Die Listen und die Elemente werden pro Pfad (z.B.
+	 * "positionen_[3]") gemerkt, weitere Felder desselben Elements fragen die Liste nicht erneut ab. Eine Instanz ist
+	 * fuer einen einzelnen Merge gedacht und nicht threadsafe.
 	 *
 	 * @author METH
 	 */
 	public class FlattenMergeSource implements MergeSource {
 
 		private final MergeSource nestedMergeSource;
+		/** Listen pro vollstaendigem Pfad, z.B. "positionen" oder "positionen_[3].details" */
+		private final Map<String, List<MergeSource>> iterations = new HashMap<>();
+		/** Elemente pro vollstaendigem Pfad inkl. Index, z.B. "positionen_[3]", <code>null</code> wenn ungueltig */
+		private final Map<String, MergeSource> elements = new HashMap<>();
 
 		/**
 		 * @param nestedMergeSource initiale MergeSource
@@ -200,26 +437,55 @@ public class PDFMergeEngine {
 		public Object getData(MergeContext ctx, String key) throws DocTemplateException {
 
 			MergeSource currentSource = nestedMergeSource;
-			String s = key;
-			int indexPos = s.indexOf("_[");
-			while (indexPos > 0) {
-				List<MergeSource> l = currentSource.whileStatement(ctx, s.substring(0, indexPos));
-				int endPos = s.indexOf("].", indexPos);
-				Integer i = null;
-				try {
-					if (endPos > 0) {
-						i = Integer.valueOf(s.substring(indexPos + 2, endPos));
+			// Beginn des noch nicht aufgeloesten Teils von key
+			int start = 0;
+			int indexPos = key.indexOf("_[");
+			while (indexPos > start) {
+				int endPos = key.indexOf("].", indexPos);
+				MergeSource element = null;
+				if (endPos > 0) {
+					String elementPath = key.substring(0, endPos + 1);
+					element = this.elements.get(elementPath);
+					if (element == null && !this.elements.containsKey(elementPath)) {
+						element = getElement(ctx, currentSource, key, start, indexPos, endPos);
+						this.elements.put(elementPath, element);
 					}
-				} catch (Exception e) {
-					log.warn(name + ": invalid iteration index (" + s.substring(indexPos + 2, endPos) + ")");
 				}
-				if (l != null && i != null && l.size() > i.intValue()) {
-					s = s.substring(endPos + 2);
-					currentSource = beanMergeSourceWithEmptyPrefix(l.get(i));
+				if (element != null) {
+					currentSource = element;
+					start = endPos + 2;
+					indexPos = key.indexOf("_[", start);
+				} else {
+					indexPos = key.indexOf("_[", indexPos + 1);
 				}
-				indexPos = s.indexOf("_[", indexPos + 1);
 			}
-			return currentSource.getData(ctx, s);
+			return currentSource.getData(ctx, key.substring(start));
+		}
+
+		/**
+		 * @return Element <code>key[indexPos + 2, endPos]</code> der Liste <code>key[start, indexPos]</code> von
+		 *         <code>currentSource</code> oder <code>null</code>, wenn es nicht existiert
+		 */
+		private MergeSource getElement(MergeContext ctx, MergeSource currentSource, String key, int start, int indexPos, int endPos)
+				throws DocTemplateException {
+
+			String listPath = key.substring(0, indexPos);
+			List<MergeSource> l = this.iterations.get(listPath);
+			if (l == null && !this.iterations.containsKey(listPath)) {
+				l = currentSource.whileStatement(ctx, key.substring(start, indexPos));
+				this.iterations.put(listPath, l);
+			}
+			int i;
+			try {
+				i = Integer.parseInt(key.substring(indexPos + 2, endPos));
+			} catch (NumberFormatException e) {
+				log.warn(name + ": invalid iteration index (" + key.substring(indexPos + 2, endPos) + ")");
+				return null;
+			}
+			if (l != null && i >= 0 && l.size() > i) {
+				return beanMergeSourceWithEmptyPrefix(l.get(i));
+			}
+			return null;
 		}
 
 		private MergeSource beanMergeSourceWithEmptyPrefix(MergeSource ms) {
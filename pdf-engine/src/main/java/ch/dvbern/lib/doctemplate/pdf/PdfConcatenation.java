@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.pdf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.PdfSmartCopy;
+
+import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.DocumentSink;
+import ch.dvbern.lib.doctemplate.common.MergeSource;
+
+/**
+ * Haengt die Seiten einzelner PDF-Dokumente an ein gemeinsames Ergebnis-PDF an. Gleiche Ressourcen (Schriften, Bilder,
+ * XObjects) werden ueber {@link PdfSmartCopy} nur einmal geschrieben. Die Seiten jedes Dokuments werden sofort nach
+ * <code>output</code> geschrieben, der Speicherbedarf waechst nicht mit der Anzahl Dokumente. Nicht threadsafe,
+ * vgl. {@link DocumentSink}.
+ */
+final class PdfConcatenation implements DocumentSink {
+
+	private final OutputStream output;
+	private Document document;
+	private PdfSmartCopy copy;
+
+	/**
+	 * @param output Ziel fuer das Ergebnis-PDF, wird nicht geschlossen
+	 */
+	PdfConcatenation(OutputStream output) {
+
+		this.output = output;
+	}
+
+	@Override
+	public void accept(long index, MergeSource mergeSource, byte[] pdf) throws DocTemplateException {
+
+		try {
+			PdfReader reader = new PdfReader(pdf);
+			try {
+				if (this.document == null) {
+					this.document = new Document(reader.getPageSizeWithRotation(1));
+					this.copy = new PdfSmartCopy(this.document, this.output);
+					// der Stream gehoert dem Aufrufer
+					this.copy.setCloseStream(false);
+					this.document.open();
+				}
+				for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+					this.copy.addPage(this.copy.getImportedPage(reader, page));
+				}
+				// die uebernommenen Objekte schreiben und freigeben
+				this.copy.freeReader(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | DocumentException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> solange kein Dokument angehaengt wurde
+	 */
+	boolean isEmpty() {
+
+		return this.document == null;
+	}
+
+	/**
+	 * Schliesst das Ergebnis-PDF ab, auch nach einem Fehler. Wurde kein Dokument angehaengt, wird nichts geschrieben.
+	 */
+	void finish() {
+
+		if (this.document != null && this.document.isOpen()) {
+			this.document.close();
+		}
+	}
+}
@@ -32,6 +32,13 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.lowagie.text.pdf.PdfDictionary;
+import com.lowagie.text.pdf.PdfName;
+import com.lowagie.text.pdf.PdfObject;
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.parser.PdfTextExtractor;
+
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
 import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
 import ch.dvbern.lib.doctemplate.common.Image;
@@ -148,6 +155,207 @@ public class PDFMergeEngineTest {
 		Assert.assertTrue(isEqualPdf(s, "test3.result.pdf"));
 	}
 
+	/**
+	 * Test 4: Felder mit Index fragen die Liste pro Merge nur einmal ab, auch verschachtelt
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test4() throws Exception {
+
+		final int[] calls = new int[1];
+		MergeSource mergeSource = new RootMergeSource(true, true) {
+
+			@Override
+			public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+				calls[0]++;
+				return super.whileStatement(ctx, key);
+			}
+		};
+		PDFMergeEngine.FlattenMergeSource flatten = new PDFMergeEngine("Test4").new FlattenMergeSource(mergeSource);
+		MergeContext ctx = new MergeContext(flatten);
+		Assert.assertEquals("One.1", flatten.getData(ctx, "testloop_[0].Col1"));
+		Assert.assertEquals("One.2", flatten.getData(ctx, "testloop_[0].Col2"));
+		Assert.assertEquals("Two.1", flatten.getData(ctx, "testloop_[1].Col1"));
+		Assert.assertNull(flatten.getData(ctx, "testloop_[7].Col1"));
+		Assert.assertEquals(1, calls[0]);
+
+		flatten = new PDFMergeEngine("Test4").new FlattenMergeSource(new BeanMergeSource(new SomeJavaBean(), "bean."));
+		Assert.assertEquals("Value of Attrib1", flatten.getData(ctx, "bean.attrib6_[1].attrib6_[2].attrib1"));
+	}
+
+	/**
+	 * Test 5: eine gelesene Vorlage wird durch Merges nicht veraendert
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test5() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test5");
+		CompiledPdfTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.pdf")) {
+			template = pdfME.compile(is);
+		}
+		String expected = getText(pdfME.getDocument(template, new RootMergeSource(true, true)));
+		Assert.assertTrue(expected, expected.contains("Meister"));
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(expected, getText(pdfME.getDocument(template, new RootMergeSource(true, true))));
+		}
+	}
+
+	/**
+	 * Test 6: mehrere Dokumente in ein gemeinsames PDF, gemeinsame Ressourcen nur einmal
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test6() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test6");
+		CompiledPdfTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.pdf")) {
+			template = pdfME.compile(is);
+		}
+		byte[] single = pdfME.getDocument(template, new RootMergeSource(true, true));
+		List<MergeSource> mergeSources = new ArrayList<MergeSource>();
+		for (int i = 0; i < 5; i++) {
+			mergeSources.add(new RootMergeSource(true, true));
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			pdfME.writeDocuments(template, mergeSources, new BatchMerge(executor), output);
+		} finally {
+			executor.shutdown();
+		}
+
+		PdfReader reader = new PdfReader(single);
+		int pages = reader.getNumberOfPages();
+		reader.close();
+		String text = getText(output.toByteArray());
+		Assert.assertEquals(getText(single).length() * 5, text.length());
+		Assert.assertTrue(output.size() < 5 * single.length);
+		reader = new PdfReader(output.toByteArray());
+		Assert.assertEquals(5 * pages, reader.getNumberOfPages());
+		reader.close();
+	}
+
+	/**
+	 * Test 7: dasselbe Bild in mehreren Feldern wird nur einmal eingebettet
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test7() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test7");
+		CompiledPdfTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.pdf")) {
+			template = pdfME.compile(is);
+		}
+		Assert.assertEquals(2, countImages(pdfME.getDocument(template, new RootMergeSource(true, true))));
+		MergeSource samePng = new RootMergeSource(true, true) {
+
+			@Override
+			public Object getData(MergeContext ctx, String key) throws DocTemplateException {
+
+				return super.getData(ctx, "TestImage.JPG".equals(key) ? "TestImage.PNG" : key);
+			}
+		};
+		Assert.assertEquals(1, countImages(pdfME.getDocument(template, samePng)));
+	}
+
+	/**
+	 * Test 8: das gemeinsame PDF wird auch nach einem Fehler abgeschlossen, ohne Dokumente wird nichts geschrieben
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void test8() throws Exception {
+
+		PDFMergeEngine pdfME = new PDFMergeEngine("Test8");
+		CompiledPdfTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("test1.pdf")) {
+			template = pdfME.compile(is);
+		}
+		byte[] single = pdfME.getDocument(template, new RootMergeSource(true, true));
+		PdfReader reader = new PdfReader(single);
+		int pages = reader.getNumberOfPages();
+		reader.close();
+
+		MergeSource failing = new RootMergeSource(true, true) {
+
+			@Override
+			public Object getData(MergeContext ctx, String key) throws DocTemplateException {
+
+				throw new DocTemplateException("test.failure");
+			}
+		};
+		List<MergeSource> mergeSources = new ArrayList<MergeSource>();
+		mergeSources.add(new RootMergeSource(true, true));
+		mergeSources.add(new RootMergeSource(true, true));
+		mergeSources.add(failing);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			pdfME.writeDocuments(template, mergeSources, output);
+			Assert.fail("failure not propagated");
+		} catch (DocTemplateException e) {
+			Assert.assertEquals("test.failure", e.getErrorCode());
+		}
+		reader = new PdfReader(output.toByteArray());
+		Assert.assertEquals(2 * pages, reader.getNumberOfPages());
+		reader.close();
+
+		output.reset();
+		try {
+			pdfME.writeDocuments(template, new ArrayList<MergeSource>(), output);
+			Assert.fail("empty result not rejected");
+		} catch (DocTemplateException e) {
+			Assert.assertEquals("error.pdf.no.documents", e.getErrorCode());
+		}
+		Assert.assertEquals(0, output.size());
+	}
+
+	private static int countImages(byte[] pdf) throws IOException {
+
+		PdfReader reader = new PdfReader(pdf);
+		try {
+			int result = 0;
+			for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+				PdfDictionary resources = reader.getPageN(page).getAsDict(PdfName.RESOURCES);
+				PdfDictionary xObjects = resources != null ? resources.getAsDict(PdfName.XOBJECT) : null;
+				if (xObjects != null) {
+					for (Object name : xObjects.getKeys()) {
+						PdfObject xObject = PdfReader.getPdfObject(xObjects.get((PdfName) name));
+						if (xObject instanceof PdfDictionary && PdfName.IMAGE.equals(((PdfDictionary) xObject).get(PdfName.SUBTYPE))) {
+							result++;
+						}
+					}
+				}
+			}
+			return result;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String getText(byte[] pdf) throws IOException {
+
+		PdfReader reader = new PdfReader(pdf);
+		try {
+			PdfTextExtractor extractor = new PdfTextExtractor(reader);
+			StringBuilder sb = new StringBuilder();
+			for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+				sb.append(extractor.getTextFromPage(page)).append('\n');
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
 	private boolean isEqualPdf(String s, String resultFile) throws IOException {
 
 		return testSafePdf(s).equals(testSafePdf(new String(getBytes(resultFile))));
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Rueckt wohlgeformtes XML (UTF-8) beim Schreiben ein, ohne es zu parsen oder vollstaendig im Speicher zu halten.
+ * Gepuffert werden nur das aktuelle Tag und der Leerraum seit dem letzten Tag.
+ * <p>
+ * Jedes Element, jeder Kommentar und jede Processing Instruction beginnt auf einer neuen Zeile. Leerraum zwischen
+ * Elementen wird verworfen. Enthaelt ein Element Text (oder CDATA), wird sein Inhalt unveraendert geschrieben, damit
+ * sich der Text nicht aendert. Das Ende-Tag eines Elementes ohne Kind-Elemente steht auf derselben Zeile, ein Inhalt
+ * aus reinem Leerraum (z.B. ein Feld mit Leerzeichen) bleibt erhalten.
+ * <p>
+ * <code>close()</code> schliesst das Ziel nicht. Nicht threadsafe.
+ */
+final class IndentingXmlOutputStream extends OutputStream {
+
+	private enum State {
+		/** Text zwischen Tags */
+		TEXT,
+		/** Tag, Kommentar, Processing Instruction oder Deklaration, wird bis zum Ende gepuffert */
+		MARKUP,
+		/** Inhalt eines CDATA-Abschnittes, wird direkt geschrieben */
+		CDATA
+	}
+
+	private enum Markup {
+		UNKNOWN, TAG, COMMENT, PROCESSING_INSTRUCTION, DECLARATION
+	}
+
+	private final OutputStream out;
+	private final byte[] indent;
+
+	private State state = State.TEXT;
+	private Markup markup;
+	private byte[] buffer = new byte[256];
+	private int length;
+	/** offenes Anfuehrungszeichen im aktuellen Tag, 0 wenn keines */
+	private byte quote;
+	/** Tiefe der eckigen Klammern in einer Deklaration bzw. Anzahl aufeinanderfolgender ']' in CDATA */
+	private int brackets;
+	/** Leerraum seit dem letzten Tag, wird verworfen wenn weder Text noch das Ende-Tag eines leeren Elementes folgt */
+	private byte[] whitespace = new byte[64];
+	private int whitespaceLength;
+
+	/** Anzahl offener Elemente */
+	private int depth;
+	/** Stufen, deren Element Text enthaelt und deshalb nicht eingerueckt wird */
+	private final BitSet mixed = new BitSet();
+	/** <code>true</code> solange das zuletzt geoeffnete Element keinen Inhalt ausser Text hat */
+	private boolean childless;
+	private boolean started;
+
+	/**
+	 * @param out Ziel fuer das eingerueckte XML
+	 * @param indentAmount Anzahl Leerzeichen pro Stufe
+	 */
+	IndentingXmlOutputStream(OutputStream out, int indentAmount) {
+
+		this.out = out;
+		this.indent = new byte[indentAmount];
+		Arrays.fill(this.indent, (byte) ' ');
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		process((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		int end = off + len;
+		int i = off;
+		while (i < end) {
+			if (this.state == State.TEXT && this.mixed.get(this.depth)) {
+				// Text unveraendert bis zum naechsten Tag durchreichen
+				int start = i;
+				while (i < end && b[i] != '<') {
+					i++;
+				}
+				this.out.write(b, start, i - start);
+				if (i == end) {
+					return;
+				}
+			}
+			process(b[i++]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		flush();
+	}
+
+	private void process(byte b) throws IOException {
+
+		switch (this.state) {
+		case TEXT:
+			processText(b);
+			break;
+		case CDATA:
+			this.out.write(b);
+			if (b == ']') {
+				this.brackets++;
+			} else {
+				if (b == '>' && this.brackets >= 2) {
+					this.state = State.TEXT;
+				}
+				this.brackets = 0;
+			}
+			break;
+		default:
+			processMarkup(b);
+		}
+	}
+
+	private void processText(byte b) throws IOException {
+
+		if (b == '<') {
+			// ob der Leerraum Inhalt ist, entscheidet sich erst mit dem Tag
+			this.state = State.MARKUP;
+			this.markup = Markup.UNKNOWN;
+			this.length = 0;
+			this.quote = 0;
+			this.brackets = 0;
+			append(b);
+		} else if (this.mixed.get(this.depth)) {
+			this.out.write(b);
+		} else if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+			if (this.whitespaceLength == this.whitespace.length) {
+				this.whitespace = Arrays.copyOf(this.whitespace, this.whitespaceLength * 2);
+			}
+			this.whitespace[this.whitespaceLength++] = b;
+		} else {
+			startText();
+			this.out.write(b);
+		}
+	}
+
+	/**
+	 * Das aktuelle Element enthaelt Text, sein Inhalt wird ab jetzt unveraendert geschrieben.
+	 */
+	private void startText() throws IOException {
+
+		this.mixed.set(this.depth);
+		this.out.write(this.whitespace, 0, this.whitespaceLength);
+		this.whitespaceLength = 0;
+		this.started = true;
+	}
+
+	private void processMarkup(byte b) throws IOException {
+
+		append(b);
+		if (this.markup == Markup.UNKNOWN) {
+			if (this.length == 2 && b == '?') {
+				this.markup = Markup.PROCESSING_INSTRUCTION;
+			} else if (this.length == 2 && b != '!') {
+				this.markup = Markup.TAG;
+			} else if (this.length == 3) {
+				if (b == '-') {
+					this.markup = Markup.COMMENT;
+				} else if (b == '[') {
+					// CDATA ist Text
+					startText();
+					this.out.write(this.buffer, 0, this.length);
+					this.state = State.CDATA;
+					return;
+				} else {
+					this.markup = Markup.DECLARATION;
+				}
+			}
+		}
+		switch (this.markup) {
+		case TAG:
+			if (updateQuote(b) && b == '>') {
+				writeTag();
+			}
+			break;
+		case COMMENT:
+			if (b == '>' && this.length >= 7 && this.buffer[this.length - 2] == '-' && this.buffer[this.length - 3] == '-') {
+				writeMarkup(false);
+			}
+			break;
+		case PROCESSING_INSTRUCTION:
+			if (b == '>' && this.length >= 4 && this.buffer[this.length - 2] == '?') {
+				writeMarkup(false);
+			}
+			break;
+		case DECLARATION:
+			if (updateQuote(b)) {
+				if (b == '[') {
+					this.brackets++;
+				} else if (b == ']') {
+					this.brackets--;
+				} else if (b == '>' && this.brackets == 0) {
+					writeMarkup(false);
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> wenn <code>b</code> ausserhalb eines Attributwertes steht
+	 */
+	private boolean updateQuote(byte b) {
+
+		if (this.quote != 0) {
+			if (b == this.quote) {
+				this.quote = 0;
+			}
+			return false;
+		}
+		if (b == '"' || b == '\'') {
+			this.quote = b;
+			return false;
+		}
+		return true;
+	}
+
+	private void writeTag() throws IOException {
+
+		if (this.buffer[1] != '/') {
+			writeMarkup(this.buffer[this.length - 2] != '/');
+			return;
+		}
+		if (this.childless) {
+			// einziger Inhalt des Elementes
+			this.out.write(this.whitespace, 0, this.whitespaceLength);
+		} else if (!this.mixed.get(this.depth)) {
+			newLine(this.depth - 1);
+		}
+		this.whitespaceLength = 0;
+		this.mixed.clear(this.depth);
+		if (this.depth > 0) {
+			this.depth--;
+		}
+		this.childless = false;
+		this.out.write(this.buffer, 0, this.length);
+		this.state = State.TEXT;
+	}
+
+	/**
+	 * Schreibt das aktuelle Tag, den Kommentar oder die Processing Instruction auf eine neue Zeile.
+	 *
+	 * @param open <code>true</code> fuer ein Start-Tag mit Inhalt
+	 */
+	private void writeMarkup(boolean open) throws IOException {
+
+		// Leerraum zwischen Elementen wird durch die Einrueckung ersetzt
+		this.whitespaceLength = 0;
+		if (this.started && !this.mixed.get(this.depth)) {
+			newLine(this.depth);
+		}
+		this.out.write(this.buffer, 0, this.length);
+		this.started = true;
+		this.childless = open;
+		if (open) {
+			this.depth++;
+			this.mixed.clear(this.depth);
+		}
+		this.state = State.TEXT;
+	}
+
+	private void newLine(int level) throws IOException {
+
+		this.out.write('\n');
+		for (int i = 0; i < level; i++) {
+			this.out.write(this.indent);
+		}
+	}
+
+	private void append(byte b) {
+
+		if (this.length == this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer, this.length * 2);
+		}
+		this.buffer[this.length++] = b;
+	}
+}
@@ -15,16 +15,29 @@
 
 package ch.dvbern.lib.doctemplate.xml;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -39,27 +52,38 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import ch.dvbern.lib.doctemplate.common.AbstractMergeEngine;
+import ch.dvbern.lib.doctemplate.common.BasicMergeElement;
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
+import ch.dvbern.lib.doctemplate.common.CompiledTemplate;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.DocumentSink;
 import ch.dvbern.lib.doctemplate.common.Image;
+import ch.dvbern.lib.doctemplate.common.MergeSession;
 import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.common.TemplateWriter;
+import ch.dvbern.lib.doctemplate.common.TemplateWriter.StartTag;
 import ch.dvbern.lib.doctemplate.common.XmlBasedFieldMergeElement;
-import ch.dvbern.lib.doctemplate.util.ImageHandler;
 import ch.dvbern.lib.doctemplate.util.LdtConstants;
 
 /**
  * Merged eine XML-Vorlage mit Informationen aus einer {@link MergeSource}, die mit darin enthaltener
- * {@code <field>}-Elemente gezielt referenziert werden.
+ * {@code <field>}-Elemente gezielt referenziert werden. Beim
+ * {@link ch.dvbern.lib.doctemplate.common.PreprocessingMode#STREAMING} muss ein {@code <field attribute="...">} vor
+ * allen anderen Merge-Elementen innerhalb des Elementes stehen, dessen Attribut es ersetzt.
  */
 public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 
 	private static final Log log = LogFactory.getLog(XmlMergeEngine.class);
 
 	private static final String XALAN_INDENTAMOUNT_PROPERTY = "{http://xml.apache.org/xslt}indent-amount";
+	private static final int INDENT_AMOUNT = 2;
+	private static final int OUTPUT_BUFFER_SIZE = 8192;
 
 	private static final String XML_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
 	private static final String INTEGER_NUMBER_FORMAT = "###0";
 	private static final String DECIMAL_NUMBER_FORMAT = "###0.0#_de_CH";
 	private static final String NAMESPACE_URI = "http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema";
+	private static final String XML_PART_NAME = "xml";
 	private static final String XML_FIELD = "FIELD";
 	private static final String XML_FIELD_PATH = "PATH";
 	private static final String XML_FIELD_FORMATTER = "formatter";
@@ -74,6 +98,16 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 	protected static final String INTERNAL_BOOKMARK_XML_ATTR_END = INTERNAL_BOOKMARK_XML_END.replace('<', '[').replace('>', ']');
 
 	private static final List<String> BLOCK_MARKERS = Arrays.<String> asList(new String[] { CONDITION, ITERATION });
+	private static final String XML_FIELD_ATTRIBUTE = "attribute";
+
+	/**
+	 * Was beim Streaming am Ende eines Elementes der Vorlage geschrieben wird.
+	 */
+	private enum ElementEnd {
+		ELEMENT, BOOKMARK, BLOCK
+	}
+
+	private XmlOutputMode outputMode = XmlOutputMode.TRANSFORMER;
 
 	public XmlMergeEngine(String name, Map<String, String> keyTranslationTable) {
 		this(name);
@@ -84,27 +118,172 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 		super(name);
 	}
 
+	/**
+	 * @return Art der Ausgabe des Ergebnis-XML
+	 */
+	public XmlOutputMode getOutputMode() {
+
+		return this.outputMode;
+	}
+
+	/**
+	 * Standardmaessig wird {@link XmlOutputMode#TRANSFORMER} verwendet. Fuer grosse Ergebnisse wird mit
+	 * {@link XmlOutputMode#STREAMING_INDENT} oder {@link XmlOutputMode#STREAMING} direkt in das Ziel von
+	 * {@link #writeXml(MergeSource, CompiledTemplate, OutputStream)} geschrieben, ohne das Ergebnis im Speicher zu
+	 * halten. Die Einrueckung kann dabei vom {@link XmlOutputMode#TRANSFORMER} abweichen.
+	 *
+	 * @param outputMode Art der Ausgabe des Ergebnis-XML
+	 */
+	public void setOutputMode(XmlOutputMode outputMode) {
+
+		this.outputMode = outputMode;
+	}
+
 	public byte[] getXml(MergeSource mergeSource, InputStream template) throws DocTemplateException {
 
+		return getXml(mergeSource, compile(template));
+	}
+
+	/**
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @return formatiertes Ergebnis-XML
+	 * @throws DocTemplateException
+	 */
+	public byte[] getXml(MergeSource mergeSource, CompiledTemplate template) throws DocTemplateException {
+
+		if (this.outputMode == XmlOutputMode.TRANSFORMER) {
+			return formatXml(merge(mergeSource, template)).getBytes(StandardCharsets.UTF_8);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writeXml(mergeSource, template, baos);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Schreibt das formatierte Ergebnis-XML direkt nach <code>output</code>, ohne es nochmals als byte[] zu kopieren.
+	 * <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param template Bezugsquelle fuer die Vorlage
+	 * @param output Ziel fuer das formatierte Ergebnis-XML (UTF-8)
+	 * @throws DocTemplateException
+	 */
+	public void writeXml(MergeSource mergeSource, InputStream template, OutputStream output) throws DocTemplateException {
+
+		writeXml(mergeSource, compile(template), output);
+	}
+
+	/**
+	 * Schreibt das formatierte Ergebnis-XML direkt nach <code>output</code>, ohne es nochmals als byte[] zu kopieren.
+	 * <code>output</code> wird nicht geschlossen.
+	 *
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param output Ziel fuer das formatierte Ergebnis-XML (UTF-8)
+	 * @throws DocTemplateException
+	 */
+	public void writeXml(MergeSource mergeSource, CompiledTemplate template, OutputStream output) throws DocTemplateException {
+
+		if (this.outputMode == XmlOutputMode.TRANSFORMER) {
+			formatXml(merge(mergeSource, template), new StreamResult(output));
+			return;
+		}
+		try {
+			OutputStream buffered = new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE);
+			OutputStream target = this.outputMode == XmlOutputMode.STREAMING_INDENT ? new IndentingXmlOutputStream(buffered,
+					INDENT_AMOUNT) : buffered;
+			merge(mergeSource, template, target);
+			target.flush();
+		} catch (IOException e) {
+			throw new DocTemplateException(e);
+		}
+	}
+
+	/**
+	 * Schreibt das formatierte Ergebnis-XML direkt nach <code>channel</code>. <code>channel</code> muss blockierend
+	 * sein und wird nicht geschlossen.
+	 *
+	 * @param mergeSource Quelle fuer die Informationen zum abfuellen des Templates
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param channel Ziel fuer das formatierte Ergebnis-XML (UTF-8)
+	 * @throws DocTemplateException
+	 */
+	public void writeXml(MergeSource mergeSource, CompiledTemplate template, WritableByteChannel channel) throws DocTemplateException {
+
+		writeXml(mergeSource, template, Channels.newOutputStream(channel));
+	}
+
+	private String merge(MergeSource mergeSource, CompiledTemplate template) throws DocTemplateException {
+
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		mergeContent(mergeSource, template, baos);
-		String s = new String(baos.toByteArray(), StandardCharsets.UTF_8);
-		return formatXml(s).getBytes(StandardCharsets.UTF_8);
+		merge(mergeSource, template, baos);
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private void merge(MergeSource mergeSource, CompiledTemplate template, OutputStream output) throws DocTemplateException {
+
+		MergeSession<Image> session = createSession(null);
+		prefetch(session, mergeSource, template);
+		mergeContent(session, mergeSource, template.getPart(XML_PART_NAME), output);
+	}
+
+	/**
+	 * Erzeugt aus der Vorlage <code>template</code> fuer jede <code>mergeSource</code> ein XML und liefert dieses an
+	 * <code>sink</code>. Die Vorlage wird nur einmal gelesen und geparst.
+	 *
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro XML
+	 * @param template Bezugsquelle fuer die Vorlage
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der formatierten Ergebnis-XMLs
+	 * @throws DocTemplateException
+	 */
+	public void getXmls(Iterable<? extends MergeSource> mergeSources, InputStream template, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		getXmls(mergeSources, compile(template), batch, sink);
+	}
+
+	/**
+	 * Erzeugt aus der bereits geparsten Vorlage <code>template</code> fuer jede <code>mergeSource</code> ein XML und
+	 * liefert dieses an <code>sink</code>.
+	 *
+	 * @param mergeSources Quellen fuer die Informationen zum abfuellen des Templates, eine pro XML
+	 * @param template mit {@link #compile(InputStream)} geparste Vorlage
+	 * @param batch Parallelitaet und Reihenfolge der Verarbeitung
+	 * @param sink Empfaenger der formatierten Ergebnis-XMLs
+	 * @throws DocTemplateException
+	 */
+	public void getXmls(Iterable<? extends MergeSource> mergeSources, CompiledTemplate template, BatchMerge batch, DocumentSink sink)
+			throws DocTemplateException {
+
+		batch.run(mergeSources.iterator(), mergeSource -> getXml(mergeSource, template), sink);
+	}
+
+	@Override
+	protected Map<String, BasicMergeElement> compileParts(MergeSession<Image> session, byte[] template) throws DocTemplateException {
+
+		return Collections.singletonMap(XML_PART_NAME, compileContent(session, new ByteArrayInputStream(template)));
 	}
 
 	public String formatXml(String xml) throws DocTemplateException {
 
+		StringWriter stringWriter = new StringWriter();
+		formatXml(xml, new StreamResult(stringWriter));
+		return stringWriter.toString();
+	}
+
+	private void formatXml(String xml, Result xmlOutput) throws DocTemplateException {
+
 		try {
 			Source xmlInput = new StreamSource(new StringReader(xml));
-			StringWriter stringWriter = new StringWriter();
-			StreamResult xmlOutput = new StreamResult(stringWriter);
 			TransformerFactory transformerFactory = TransformerFactory.newInstance();
 			Transformer transformer = transformerFactory.newTransformer();
-			transformer.setOutputProperty(XALAN_INDENTAMOUNT_PROPERTY, "2");
+			transformer.setOutputProperty(XALAN_INDENTAMOUNT_PROPERTY, String.valueOf(INDENT_AMOUNT));
 			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
 			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "true");
+			transformer.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_8.name());
 			transformer.transform(xmlInput, xmlOutput);
-			return xmlOutput.getWriter().toString();
 		} catch (Exception e) {
 			throw new DocTemplateException(e); // simple exception handling,
 			// please review it
@@ -117,7 +296,8 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 		return value.trim();
 	}
 
-	protected void preProcess(Document doc, Node src, Node dest) throws DocTemplateException {
+	@Override
+	protected void preProcess(MergeSession<Image> session, Document doc, Node src, Node dest) throws DocTemplateException {
 
 		NodeList childElements = src.getChildNodes();
 		for (int i = 0; i < childElements.getLength(); i++) {
@@ -129,39 +309,24 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 				String key = null;
 				// In Fall des Fields key gleich mit dem "text:name" Eigenschaft
 				if (field) {
-					key = getValueOfAttribute(XML_FIELD_PATH, childElement);
-					String formatter = getValueOfAttribute(XML_FIELD_FORMATTER, childElement);
-					if (!StringUtils.isEmpty(formatter)) {
-						String postFix = LdtConstants.FORMAT_SUFFIX + formatter;
-						key = key + postFix;
-						keyTranslationTable.put(postFix, postFix);
-					}
+					key = getFieldKey(session, getValueOfAttribute(XML_FIELD_PATH, childElement),
+							getValueOfAttribute(XML_FIELD_FORMATTER, childElement));
 				} else {
-					for (String blockElement : BLOCK_MARKERS) {
-						if (nodeName.toUpperCase().endsWith(blockElement)) {
-							key = blockElement + "_" + childElement.getAttributes().item(0).getTextContent();
-							break;
-						}
+					String blockElement = getBlockMarker(nodeName);
+					if (blockElement != null) {
+						key = blockElement + "_" + childElement.getAttributes().item(0).getTextContent();
 					}
 				}
 				if (key != null) {
 					result = doc.createElement(INTERNAL_BOOKMARK_TAG);
 					result.setTextContent(field ? (getFieldPrefix() + key) : key);
-					String sort = null;
-					if ((sort = getValueOfAttribute(SORT, childElement)) != null) {
-						if (!sort.equalsIgnoreCase(ASC) && !sort.equalsIgnoreCase(DESC)) {
-							log.warn("Die Sortierung ist falsch: asc oder desc!");
-						} else {
-							dest.appendChild(result);
-							result = doc.createElement(INTERNAL_BOOKMARK_TAG);
-							String body = SORT.toUpperCase().concat("_").concat(getPfadOnly(key));
-							if (sort.equalsIgnoreCase(DESC)) {
-								body = body.concat("_").concat(sort.toUpperCase());
-							}
-							result.setTextContent(body);
-						}
+					String sortBody = getSortBookmark(session, getValueOfAttribute(SORT, childElement), key);
+					if (sortBody != null) {
+						dest.appendChild(result);
+						result = doc.createElement(INTERNAL_BOOKMARK_TAG);
+						result.setTextContent(sortBody);
 					}
-					Node attr = childElement.getAttributes().getNamedItem("attribute");
+					Node attr = childElement.getAttributes().getNamedItem(XML_FIELD_ATTRIBUTE);
 					if (attr != null) {
 						String s = attr.getNodeValue();
 						Node srcAttr = src.getAttributes().getNamedItem(s);
@@ -173,7 +338,7 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 					}
 					if (!field) {
 						dest.appendChild(result);
-						preProcess(doc, childElement, dest);
+						preProcess(session, doc, childElement, dest);
 						result = doc.createElement(INTERNAL_BOOKMARK_TAG);
 						result.setTextContent("END".concat(key));
 						dest.appendChild(result);
@@ -185,24 +350,167 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 				result = doc.adoptNode(childElement.cloneNode(false));
 			}
 			dest.appendChild(result);
-			preProcess(doc, childElement, result);
+			preProcess(session, doc, childElement, result);
+		}
+	}
+
+	@Override
+	protected void preProcess(MergeSession<Image> session, XMLStreamReader reader, TemplateWriter<Image> writer)
+			throws XMLStreamException, DocTemplateException {
+
+		// offene Elemente der Vorlage und was jeweils am Ende geschrieben wird
+		Deque<StartTag> parents = new ArrayDeque<>();
+		Deque<ElementEnd> ends = new ArrayDeque<>();
+		Deque<String> blockKeys = new ArrayDeque<>();
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				StartTag tag = StartTag.of(reader);
+				boolean field = tag.getQName().toUpperCase().endsWith(XML_FIELD);
+				String key = null;
+				if (NAMESPACE_URI.equals(tag.getNamespaceURI())) {
+					if (field) {
+						key = getFieldKey(session, tag.getAttributeIgnoreCase(XML_FIELD_PATH),
+								tag.getAttributeIgnoreCase(XML_FIELD_FORMATTER));
+					} else {
+						String blockElement = getBlockMarker(tag.getQName());
+						if (blockElement != null) {
+							key = blockElement + "_" + tag.getFirstAttribute();
+						}
+					}
+				}
+				if (key == null) {
+					writer.writeStartElement(tag);
+					ends.push(ElementEnd.ELEMENT);
+					parents.push(tag);
+					continue;
+				}
+				String text = field ? (getFieldPrefix() + key) : key;
+				String sortBody = getSortBookmark(session, tag.getAttributeIgnoreCase(SORT), key);
+				String bookmark = sortBody != null ? sortBody : text;
+				String attribute = tag.getAttribute(XML_FIELD_ATTRIBUTE);
+				StartTag src = parents.peek();
+				if (attribute != null && src != null && src.getAttribute(attribute) != null) {
+					if (!writer.replaceAttributeValue(attribute, INTERNAL_BOOKMARK_XML_ATTR_START + bookmark
+							+ INTERNAL_BOOKMARK_XML_ATTR_END)) {
+						throw new DocTemplateException("error.template.invalid.structure", "attribute '" + attribute
+								+ "' not found on the enclosing element of " + tag.getQName());
+					}
+					if (sortBody != null) {
+						writer.writeBookmark(text);
+					}
+					skipElement(reader);
+					continue;
+				}
+				if (sortBody != null) {
+					writer.writeBookmark(text);
+				}
+				if (field) {
+					writer.writeStartBookmark(bookmark);
+					ends.push(ElementEnd.BOOKMARK);
+				} else {
+					writer.writeBookmark(bookmark);
+					blockKeys.push("END".concat(key));
+					ends.push(ElementEnd.BLOCK);
+				}
+				parents.push(tag);
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				parents.pop();
+				switch (ends.pop()) {
+				case BOOKMARK:
+					writer.writeEndBookmark();
+					break;
+				case BLOCK:
+					writer.writeBookmark(blockKeys.pop());
+					break;
+				default:
+					writer.writeEndElement();
+				}
+			} else {
+				writer.copyEvent(reader);
+			}
+		}
+	}
+
+	/**
+	 * Ueberspringt das aktuelle Element inkl. Inhalt.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param path Pfad des Feldes
+	 * @param formatter Format des Feldes, kann <code>null</code> sein
+	 * @return Key des Feldes inkl. Format
+	 */
+	private static String getFieldKey(MergeSession<Image> session, String path, String formatter) {
+
+		String key = path;
+		if (!StringUtils.isEmpty(formatter)) {
+			String postFix = LdtConstants.FORMAT_SUFFIX + formatter;
+			key = key + postFix;
+			session.getKeyTranslationTable().put(postFix, postFix);
+		}
+		return key;
+	}
+
+	/**
+	 * @param nodeName Name des Elementes
+	 * @return Bedingung oder Iteration oder <code>null</code>, wenn das Element keinen Block beginnt
+	 */
+	private static String getBlockMarker(String nodeName) {
+
+		for (String blockElement : BLOCK_MARKERS) {
+			if (nodeName.toUpperCase().endsWith(blockElement)) {
+				return blockElement;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param session Zustand des laufenden Merge-Vorgangs
+	 * @param sort Wert des Sortier-Attributes, kann <code>null</code> sein
+	 * @param key Key des Feldes
+	 * @return Inhalt des Sortier-Bookmarks oder <code>null</code>, wenn nicht (gueltig) sortiert wird
+	 */
+	private static String getSortBookmark(MergeSession<Image> session, String sort, String key) {
+
+		if (sort == null) {
+			return null;
 		}
+		if (!sort.equalsIgnoreCase(ASC) && !sort.equalsIgnoreCase(DESC)) {
+			log.warn("Die Sortierung ist falsch: asc oder desc!");
+			return null;
+		}
+		String body = SORT.toUpperCase().concat("_").concat(getPfadOnly(session, key));
+		if (sort.equalsIgnoreCase(DESC)) {
+			body = body.concat("_").concat(sort.toUpperCase());
+		}
+		return body;
 	}
 
 	@Override
-	protected int getInternalBookmarkStart(StringBuffer sb) {
+	protected String[] getInternalBookmarkStartMarkers() {
 
-		int attr = sb.indexOf(INTERNAL_BOOKMARK_XML_ATTR_START);
-		int tag = super.getInternalBookmarkStart(sb);
-		return attr >= 0 && attr < tag ? attr : tag;
+		return new String[] { INTERNAL_BOOKMARK_XML_START, INTERNAL_BOOKMARK_XML_ATTR_START };
 	}
 
 	@Override
-	protected int getInternalBookmarkEnd(StringBuffer sb) {
+	protected String[] getInternalBookmarkEndMarkers() {
 
-		int attr = sb.indexOf(INTERNAL_BOOKMARK_XML_ATTR_END);
-		int tag = super.getInternalBookmarkEnd(sb);
-		return attr >= 0 && attr < tag ? attr : tag;
+		return new String[] { INTERNAL_BOOKMARK_XML_END, INTERNAL_BOOKMARK_XML_ATTR_END };
 	}
 
 	private String getValueOfAttribute(String attr, Node nodeElement) {
@@ -215,29 +523,21 @@ public class XmlMergeEngine extends AbstractMergeEngine<Image> {
 		return null;
 	}
 
-	private String getPfadOnly(final String key) {
+	private static String getPfadOnly(MergeSession<Image> session, final String key) {
 
 		String result = key;
-		if (keyTranslationTable != null) {
-			for (Map.Entry<String, String> entry : keyTranslationTable.entrySet()) {
-				if (result.endsWith(entry.getKey())) {
-					return result.substring(0, result.length() - entry.getKey().length());
-				}
+		for (Map.Entry<String, String> entry : session.getKeyTranslationTable().entrySet()) {
+			if (result.endsWith(entry.getKey())) {
+				return result.substring(0, result.length() - entry.getKey().length());
 			}
 		}
 		return result;
 	}
 
 	@Override
-	public ImageHandler<Image> getImageHandler() {
-
-		return null;
-	}
-
-	@Override
-	protected XmlBasedFieldMergeElement getFieldMergeElement(String key, ImageHandler imageHandler) {
+	protected XmlBasedFieldMergeElement getFieldMergeElement(MergeSession<Image> session, String key) {
 
-		return new XmlBasedFieldMergeElement(key, key, images, imageHandler) {
+		return new XmlBasedFieldMergeElement(key, key) {
 
 			@Override
 			protected String getDefaultDateFormat() {
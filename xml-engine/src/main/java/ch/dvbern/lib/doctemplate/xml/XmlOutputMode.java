@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 DV Bern AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * limitations under the License.
+ */
+package ch.dvbern.lib.doctemplate.xml;
+
+/**
+ * Art, wie {@link XmlMergeEngine} das Ergebnis-XML ausgibt.
+ */
+public enum XmlOutputMode {
+
+	/**
+	 * Das Ergebnis wird vollstaendig im Speicher aufgebaut, nochmals geparst und mit einem
+	 * {@link javax.xml.transform.Transformer} eingerueckt. Benoetigt ein Mehrfaches der Groesse des Ergebnisses an
+	 * Speicher.
+	 */
+	TRANSFORMER,
+
+	/**
+	 * Das Ergebnis wird waehrend des Merges direkt ins Ziel geschrieben und dabei eingerueckt. Leerraum zwischen
+	 * Elementen wird durch die Einrueckung ersetzt, Elemente mit Text bleiben unveraendert.
+	 */
+	STREAMING_INDENT,
+
+	/**
+	 * Das Ergebnis wird waehrend des Merges unveraendert direkt ins Ziel geschrieben.
+	 */
+	STREAMING
+
+}
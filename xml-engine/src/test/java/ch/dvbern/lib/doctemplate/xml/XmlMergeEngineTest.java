@@ -15,24 +15,62 @@
 
 package ch.dvbern.lib.doctemplate.xml;
 
+import java.beans.IntrospectionException;
+import java.beans.PropertyDescriptor;
+import java.beans.SimpleBeanInfo;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import ch.dvbern.lib.doctemplate.common.BatchMerge;
 import ch.dvbern.lib.doctemplate.common.BeanMergeSource;
+import ch.dvbern.lib.doctemplate.common.CompiledTemplate;
 import ch.dvbern.lib.doctemplate.common.DocTemplateException;
+import ch.dvbern.lib.doctemplate.common.ExtendedBeanMergeSource;
+import ch.dvbern.lib.doctemplate.common.IterationMergeSource;
+import ch.dvbern.lib.doctemplate.common.MergeContext;
+import ch.dvbern.lib.doctemplate.common.MergeSource;
+import ch.dvbern.lib.doctemplate.common.PreprocessingMode;
+import ch.dvbern.lib.doctemplate.util.FieldFormat;
+import ch.dvbern.lib.doctemplate.util.IterationMergeHelper;
+import ch.dvbern.lib.doctemplate.util.PropertyUtils;
 import ch.dvbern.lib.doctemplate.xml.bean.AbsenderInkassostelle;
 import ch.dvbern.lib.doctemplate.xml.bean.Adresse;
 import ch.dvbern.lib.doctemplate.xml.bean.Bean;
@@ -224,6 +262,917 @@ public class XmlMergeEngineTest {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Die Vorlage wird mit StAX statt ueber ein DOM aufbereitet, das Resultat muss identisch sein.
+	 */
+	@Test
+	public void streamingTest() throws Exception {
+
+		for (String fileName : new String[] { "sort_test.xml", "attr_test.xml", "sort_attr_test.xml" }) {
+			XmlMergeEngine domME = new XmlMergeEngine("bean dom", new HashMap<String, String>());
+			XmlMergeEngine streamingME = new XmlMergeEngine("bean streaming", new HashMap<String, String>());
+			streamingME.setPreprocessingMode(PreprocessingMode.STREAMING);
+			byte[] expected;
+			try (InputStream is = this.getClass().getResourceAsStream(fileName)) {
+				expected = domME.getXml(new BeanMergeSource(bean, ""), is);
+			}
+			byte[] xml;
+			try (InputStream is = this.getClass().getResourceAsStream(fileName)) {
+				xml = streamingME.getXml(new BeanMergeSource(bean, ""), is);
+			}
+			Assert.assertEquals("streaming result differs for " + fileName, new String(expected, CHARSET), new String(xml, CHARSET));
+		}
+	}
+
+	/**
+	 * Massenverarbeitung ohne Reihenfolge: jedes XML muss genau einmal und identisch zum Einzel-Merge geliefert werden.
+	 */
+	@Test
+	public void batchTest() throws Exception {
+
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean batch", new HashMap<String, String>());
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("sort_test.xml")) {
+			template = xmlME.compile(is);
+		}
+		String expected = new String(xmlME.getXml(new BeanMergeSource(bean, ""), template), CHARSET);
+		List<MergeSource> mergeSources = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			mergeSources.add(new BeanMergeSource(bean, ""));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Map<Long, byte[]> results = new HashMap<>();
+			xmlME.getXmls(mergeSources, template, new BatchMerge(executor, 4, false), (index, mergeSource, xml) -> {
+				Assert.assertNull("xml delivered twice", results.put(index, xml));
+			});
+			Assert.assertEquals(10, results.size());
+			for (byte[] xml : results.values()) {
+				Assert.assertEquals("merged xml does not match the expected result", expected, new String(xml, CHARSET));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Das direkt in einen Stream geschriebene XML muss mit dem als byte[] gelieferten identisch sein.
+	 */
+	@Test
+	public void writeXmlTest() throws Exception {
+
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean write", new HashMap<String, String>());
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("attr_test.xml")) {
+			template = xmlME.compile(is);
+		}
+		byte[] expected = xmlME.getXml(new BeanMergeSource(bean, ""), template);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		xmlME.writeXml(new BeanMergeSource(bean, ""), template, output);
+		Assert.assertArrayEquals("written xml differs", expected, output.toByteArray());
+	}
+
+	/**
+	 * Die Default-Zeitzone wird bei jedem Merge beruecksichtigt, auch wenn die Vorlage bereits kompiliert ist.
+	 */
+	@Test
+	public void timeZoneTest() throws Exception {
+
+		String template = "<zeiten xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<zeit><ldt:field path=\"datum\" formatter=\"HH:mm\"/></zeit><zeit><ldt:field path=\"datum\"/></zeit></zeiten>";
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean time zone", new HashMap<String, String>());
+		CompiledTemplate compiled = xmlME.compile(new ByteArrayInputStream(template.getBytes(CHARSET)));
+		TimeZone timeZone = TimeZone.getDefault();
+		try {
+			TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+			String xml = new String(xmlME.getXml(new BeanMergeSource(new DatumBean(), ""), compiled), CHARSET);
+			Assert.assertTrue(xml, xml.contains("<zeit>00:00</zeit>") && xml.contains("<zeit>1970-01-01T00:00:00</zeit>"));
+			TimeZone.setDefault(TimeZone.getTimeZone("GMT+02:00"));
+			xml = new String(xmlME.getXml(new BeanMergeSource(new DatumBean(), ""), compiled), CHARSET);
+			Assert.assertTrue(xml, xml.contains("<zeit>02:00</zeit>") && xml.contains("<zeit>1970-01-01T02:00:00</zeit>"));
+			// innerhalb eines Merges gilt die beim Start ermittelte Zeitzone
+			TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+			xml = new String(xmlME.getXml(new BeanMergeSource(new ZeitzonenWechselBean(), ""), compiled), CHARSET);
+			Assert.assertTrue(xml, xml.contains("<zeit>00:00</zeit>") && xml.contains("<zeit>1970-01-01T00:00:00</zeit>"));
+		} finally {
+			TimeZone.setDefault(timeZone);
+		}
+	}
+
+	public static class DatumBean {
+
+		public Date getDatum() {
+
+			return new Date(0);
+		}
+	}
+
+	public static class ZeitzonenWechselBean {
+
+		public Date getDatum() {
+
+			TimeZone.setDefault(TimeZone.getTimeZone("GMT+02:00"));
+			return new Date(0);
+		}
+	}
+
+	/**
+	 * {@link FieldFormat} muss dieselbe Ausgabe wie {@link SimpleDateFormat} bzw. {@link DecimalFormat} liefern, auch
+	 * wenn Datums-Pattern ueber {@link java.time.format.DateTimeFormatter} ausgegeben werden.
+	 */
+	@Test
+	public void fieldFormatTest() {
+
+		Date[] dates = new Date[] { date(2017, Calendar.MARCH, 5, 7, 8, 9), date(2000, Calendar.DECEMBER, 31, 23, 59, 59),
+				date(1500, Calendar.JUNE, 15, 12, 0, 0), date(1582, Calendar.OCTOBER, 4, 0, 0, 0),
+				date(1583, Calendar.JANUARY, 1, 0, 0, 0), date(9999, Calendar.DECEMBER, 31, 23, 59, 59),
+				date(10000, Calendar.JANUARY, 1, 0, 0, 0), date(12345, Calendar.JULY, 1, 13, 14, 15) };
+		// Pattern, Referenz-Pattern, Referenz-Sprache
+		Object[][] datePatterns = new Object[][] {
+				{ "dd.MM.yyyy", "dd.MM.yyyy", null },
+				{ "HH:mm:ss", "HH:mm:ss", null },
+				{ "d.M.yy H:m:s", "d.M.yy H:m:s", null },
+				{ "yyyyMMdd", "yyyyMMdd", null },
+				{ "dd.MM.yyyy_de_CH", "dd.MM.yyyy", new Locale("de", "CH") },
+				{ "dd. MMMM yyyy_de_CH", "dd. MMMM yyyy", new Locale("de", "CH") },
+				{ "EEEE d MMMM yyyy_fr", "EEEE d MMMM yyyy", new Locale("fr") },
+				{ "HH:mm_fr", "HH:mm", new Locale("fr") },
+				{ "'Datum:' dd.MM.yyyy 'um' HH 'Uhr'", "'Datum:' dd.MM.yyyy 'um' HH 'Uhr'", null },
+				{ "'''s' dd''MM", "'''s' dd''MM", null } };
+		for (Object[] row : datePatterns) {
+			Locale locale = (Locale) row[2];
+			SimpleDateFormat reference = locale != null ? new SimpleDateFormat((String) row[1], locale) : new SimpleDateFormat((String) row[1]);
+			FieldFormat format = FieldFormat.compile((String) row[0]);
+			for (Date date : dates) {
+				Assert.assertEquals(row[0] + " " + date.getTime(), reference.format(date), format.format(date));
+			}
+		}
+
+		Number[] numbers = new Number[] { 0, 7, -42, 1234567L, 0.5d, -1234.5678d, 1234567.891f, new BigDecimal("98765.4321") };
+		Object[][] numberPatterns = new Object[][] {
+				{ "#,##0.00", "#,##0.00", null },
+				{ "0", "0", null },
+				{ "#,##0.00_de_CH", "#,##0.00", new Locale("de", "CH") },
+				{ "#,##0.000_fr", "#,##0.000", new Locale("fr") },
+				{ "'CHF' #,##0.-", "'CHF' #,##0.-", null } };
+		for (Object[] row : numberPatterns) {
+			Locale locale = (Locale) row[2];
+			DecimalFormat reference = locale != null ? new DecimalFormat((String) row[1], new DecimalFormatSymbols(locale))
+					: new DecimalFormat((String) row[1]);
+			FieldFormat format = FieldFormat.compile((String) row[0]);
+			for (Number number : numbers) {
+				String expected = number instanceof Float || number instanceof Double || number instanceof BigDecimal
+						? reference.format(number.doubleValue()) : reference.format(number.longValue());
+				Assert.assertEquals(row[0] + " " + number, expected, format.format(number));
+			}
+		}
+
+		FieldFormat booleanFormat = FieldFormat.compile("Ja_Nein");
+		Assert.assertEquals("Ja", booleanFormat.format(Boolean.TRUE));
+		Assert.assertEquals("Nein", booleanFormat.format(Boolean.FALSE));
+		Assert.assertEquals("", FieldFormat.compile("X").format(Boolean.FALSE));
+		for (String pattern : new String[] { "10", "-10", ".2", "-8.3" }) {
+			Assert.assertEquals(pattern, String.format("%" + pattern + "s", "Bern"), FieldFormat.compile(pattern).format("Bern"));
+		}
+	}
+
+	private static Date date(int year, int month, int day, int hour, int minute, int second) {
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute, second);
+		return calendar.getTime();
+	}
+
+	/**
+	 * Beim Streaming wird direkt in das Ziel geschrieben und dabei eingerueckt bzw. nicht formatiert. Bis auf den
+	 * Leerraum zwischen den Elementen muss das Ergebnis dem mit dem Transformer formatierten entsprechen.
+	 */
+	@Test
+	public void streamingOutputTest() throws Exception {
+
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean output", new HashMap<String, String>());
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("attr_test.xml")) {
+			template = xmlME.compile(is);
+		}
+		String expected = removeIndentation(new String(xmlME.getXml(new BeanMergeSource(bean, ""), template), CHARSET));
+		for (XmlOutputMode outputMode : new XmlOutputMode[] { XmlOutputMode.STREAMING_INDENT, XmlOutputMode.STREAMING }) {
+			xmlME.setOutputMode(outputMode);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			xmlME.writeXml(new BeanMergeSource(bean, ""), template, output);
+			Assert.assertEquals("streamed xml differs for " + outputMode, expected, removeIndentation(new String(output.toByteArray(), CHARSET)));
+		}
+
+		String ortTemplate = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">\n"
+				+ "<ldt:while path=\"orte\"><ort>  <name><ldt:field path=\"orte.name\"/></name><!-- ort --><leer/></ort></ldt:while>"
+				+ "<text>Orte: <b>2</b> </text></orte>";
+		xmlME.setOutputMode(XmlOutputMode.STREAMING_INDENT);
+		String xml = new String(xmlME.getXml(new BeanMergeSource(new OrtBean("Bern", "Thun"), ""), new ByteArrayInputStream(ortTemplate
+				.getBytes(CHARSET))), CHARSET);
+		Assert.assertEquals("<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">\n"
+				+ "  <ort>\n    <name>Bern</name>\n    <!-- ort -->\n    <leer/>\n  </ort>\n"
+				+ "  <ort>\n    <name>Thun</name>\n    <!-- ort -->\n    <leer/>\n  </ort>\n"
+				+ "  <text>Orte: <b>2</b> </text>\n</orte>", xml.substring(xml.indexOf("<orte")));
+	}
+
+	/**
+	 * Ein Feld, das nur Leerzeichen enthaelt, muss beim Streaming wie beim Transformer erhalten bleiben.
+	 */
+	@Test
+	public void streamingWhitespaceTest() throws Exception {
+
+		String template = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"orte\"><ort>\n  <name><ldt:field path=\"orte.name\"/></name>\n</ort></ldt:while></orte>";
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean whitespace", new HashMap<String, String>());
+		CompiledTemplate compiled = xmlME.compile(new ByteArrayInputStream(template.getBytes(CHARSET)));
+		OrtBean ortBean = new OrtBean(" ", "   ", "Bern");
+		List<String> expected = getNamen(new String(xmlME.getXml(new BeanMergeSource(ortBean, ""), compiled), CHARSET));
+		Assert.assertEquals(Arrays.asList(" ", "   ", "Bern"), expected);
+		for (XmlOutputMode outputMode : new XmlOutputMode[] { XmlOutputMode.STREAMING_INDENT, XmlOutputMode.STREAMING }) {
+			xmlME.setOutputMode(outputMode);
+			String xml = new String(xmlME.getXml(new BeanMergeSource(ortBean, ""), compiled), CHARSET);
+			Assert.assertEquals("whitespace lost for " + outputMode, expected, getNamen(xml));
+		}
+	}
+
+	private static List<String> getNamen(String xml) {
+
+		List<String> result = new ArrayList<>();
+		for (int start = xml.indexOf("<name>"); start >= 0; start = xml.indexOf("<name>", start + 1)) {
+			result.add(xml.substring(start + 6, xml.indexOf("</name>", start)));
+		}
+		return result;
+	}
+
+	private static String removeIndentation(String xml) {
+
+		return xml.replaceAll(">\\s+<", "><").trim();
+	}
+
+	/**
+	 * Die Felder ausserhalb von Iterationen werden gleichzeitig abgefragt: jede Abfrage wartet, bis alle gestellt sind.
+	 * Das Resultat muss dem sequentiellen Merge entsprechen.
+	 */
+	@Test
+	public void asyncDataResolutionTest() throws Exception {
+
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean async", new HashMap<String, String>());
+		CompiledTemplate template;
+		try (InputStream is = this.getClass().getResourceAsStream("attr_test.xml")) {
+			template = xmlME.compile(is);
+		}
+		byte[] expected = xmlME.getXml(new BeanMergeSource(bean, ""), template);
+
+		int fieldCount = template.getKeyManifest().getFieldKeys().size();
+		ExecutorService executor = Executors.newFixedThreadPool(fieldCount);
+		try {
+			AsyncMergeSource mergeSource = new AsyncMergeSource(new BeanMergeSource(bean, ""), executor, fieldCount);
+			xmlME.setAsyncDataResolution(true);
+			Assert.assertArrayEquals("async xml differs", expected, xmlME.getXml(mergeSource, template));
+			Assert.assertEquals("fields resolved sequentially: " + mergeSource.syncKeys, 0, mergeSource.syncKeys.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Mit einem Executor werden auch die Felder einer {@link BeanMergeSource} gleichzeitig abgefragt: jeder Getter
+	 * wartet, bis alle Getter aufgerufen sind.
+	 */
+	@Test
+	public void dataResolutionExecutorTest() throws Exception {
+
+		String template = "<felder xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<feld><ldt:field path=\"a\"/></feld><feld><ldt:field path=\"b\"/></feld><feld><ldt:field path=\"c\"/></feld>"
+				+ "<feld><ldt:field path=\"d\"/></feld></felder>";
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean executor", new HashMap<String, String>());
+		CompiledTemplate compiled = xmlME.compile(new ByteArrayInputStream(template.getBytes(CHARSET)));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			xmlME.setAsyncDataResolution(true);
+			xmlME.setDataResolutionExecutor(executor);
+			WartendeBean wartendeBean = new WartendeBean(4);
+			String xml = new String(xmlME.getXml(new BeanMergeSource(wartendeBean, ""), compiled), CHARSET);
+			Assert.assertEquals(xml, Arrays.asList("a", "b", "c", "d"), getFelder(xml));
+			Assert.assertFalse("field resolved on the merge thread", wartendeBean.threads.contains(Thread.currentThread()));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static List<String> getFelder(String xml) {
+
+		List<String> result = new ArrayList<>();
+		for (int start = xml.indexOf("<feld>"); start >= 0; start = xml.indexOf("<feld>", start + 1)) {
+			result.add(xml.substring(start + 6, xml.indexOf("</feld>", start)));
+		}
+		return result;
+	}
+
+	/**
+	 * Jeder Getter liefert seinen Namen erst, wenn alle <code>count</code> Getter gleichzeitig aufgerufen sind.
+	 */
+	public static class WartendeBean {
+
+		private final CountDownLatch aufrufe;
+		private final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+		WartendeBean(int count) {
+
+			this.aufrufe = new CountDownLatch(count);
+		}
+
+		private String warten(String name) {
+
+			this.threads.add(Thread.currentThread());
+			this.aufrufe.countDown();
+			try {
+				return this.aufrufe.await(10, TimeUnit.SECONDS) ? name : "sequentiell";
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return "unterbrochen";
+			}
+		}
+
+		public String getA() {
+
+			return warten("a");
+		}
+
+		public String getB() {
+
+			return warten("b");
+		}
+
+		public String getC() {
+
+			return warten("c");
+		}
+
+		public String getD() {
+
+			return warten("d");
+		}
+	}
+
+	/**
+	 * Liefert die Felder asynchron, erst nachdem <code>fieldCount</code> Felder angefragt sind.
+	 */
+	private static class AsyncMergeSource implements MergeSource {
+
+		private final MergeSource delegate;
+		private final ExecutorService executor;
+		private final CountDownLatch requested;
+		private final List<String> syncKeys = new ArrayList<>();
+
+		AsyncMergeSource(MergeSource delegate, ExecutorService executor, int fieldCount) {
+
+			this.delegate = delegate;
+			this.executor = executor;
+			this.requested = new CountDownLatch(fieldCount);
+		}
+
+		@Override
+		public Object getData(MergeContext ctx, String key) throws DocTemplateException {
+
+			if (!(ctx.getCurrentMergeSource() instanceof IterationMergeSource)) {
+				this.syncKeys.add(key);
+			}
+			return this.delegate.getData(ctx, key);
+		}
+
+		@Override
+		public CompletableFuture<Object> getDataAsync(MergeContext ctx, String key) {
+
+			MergeContext asyncCtx = new MergeContext(this.delegate);
+			this.requested.countDown();
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					if (!this.requested.await(10, TimeUnit.SECONDS)) {
+						throw new IllegalStateException("not all fields requested");
+					}
+					return this.delegate.getData(asyncCtx, key);
+				} catch (InterruptedException | DocTemplateException e) {
+					throw new CompletionException(e);
+				}
+			}, this.executor);
+		}
+
+		@Override
+		public Boolean ifStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+			return this.delegate.ifStatement(ctx, key);
+		}
+
+		@Override
+		public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+			return this.delegate.whileStatement(ctx, key);
+		}
+	}
+
+	/**
+	 * Ohne Sortierung werden die Elemente einer Iteration erst beim Durchlaufen abgeholt: beim Abholen eines Elements
+	 * muss das vorherige bereits ausgegeben sein.
+	 */
+	@Test
+	public void lazyWhileTest() throws Exception {
+
+		String template = "<zeilen xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"zeilen\"><zeile><ldt:field path=\"zeilen.text\"/></zeile></ldt:while></zeilen>";
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean lazy", new HashMap<String, String>());
+		LazyBean lazyBean = new LazyBean(1000);
+		String xml = new String(xmlME.getXml(new BeanMergeSource(lazyBean, ""), new ByteArrayInputStream(template.getBytes(CHARSET))),
+				CHARSET);
+		Assert.assertEquals(1000, lazyBean.rendered);
+		Assert.assertTrue("last row missing", xml.contains("<zeile>999</zeile>"));
+	}
+
+	/**
+	 * Zugriff ueber die vorkompilierten Property-Pfade der {@link BeanMergeSource}: derselbe Pfad auf Beans
+	 * verschiedener Klassen, <code>null</code> als Zwischenwert, Exceptions der Getter und nicht oeffentliche Klassen
+	 * muessen sich wie bisher mit {@link java.lang.reflect.Method#invoke(Object, Object...)} verhalten.
+	 */
+	@Test
+	public void beanPathTest() throws Exception {
+
+		// derselbe Pfad abwechselnd auf verschiedenen Klassen, auch fuer Zwischenwerte
+		Object[] beans = new Object[] { new PfadBeanA("a1"), new PfadBeanB("b1"), new PfadBeanA("a2"), new PfadBeanA("a3"), new PfadBeanB("b2") };
+		for (int i = 0; i < 3; i++) {
+			for (Object pfadBean : beans) {
+				BeanMergeSource source = new BeanMergeSource(pfadBean, "PFAD_");
+				MergeContext ctx = new MergeContext(source);
+				String name = pfadBean instanceof PfadBeanA ? ((PfadBeanA) pfadBean).name : ((PfadBeanB) pfadBean).name;
+				Assert.assertEquals(name, source.getData(ctx, "PFAD_name"));
+				Assert.assertEquals(name, source.getData(ctx, "PFAD_self.self.name"));
+				Assert.assertEquals(pfadBean instanceof PfadBeanA ? "A" : null, source.getData(ctx, "PFAD_nurA"));
+			}
+		}
+
+		BeanMergeSource source = new BeanMergeSource(new PfadBeanA(null), "PFAD_");
+		MergeContext ctx = new MergeContext(source);
+		// null als Wert und als Zwischenwert
+		Assert.assertEquals("", source.getData(ctx, "PFAD_name"));
+		Assert.assertEquals("", source.getData(ctx, "PFAD_leer.name"));
+		Assert.assertEquals("", source.getData(ctx, "PFAD_leer.gibtsNicht"));
+		Assert.assertNull(source.getData(ctx, "PFAD_gibtsNicht.name"));
+
+		// Exceptions der Getter werden wie von Method.invoke in eine InvocationTargetException verpackt, deren
+		// Meldung leer ist
+		Assert.assertNull(source.getData(ctx, "PFAD_fehler"));
+		Assert.assertNull(source.getData(ctx, "PFAD_self.fehler"));
+		Assert.assertNull(source.getData(ctx, "PFAD_checkedFehler"));
+
+		// Getter einer nicht oeffentlichen Klasse koennen nicht als MethodHandle aufgerufen werden, Method.invoke
+		// meldet wie bisher den fehlenden Zugriff
+		BeanMergeSource privateSource = new BeanMergeSource(new PrivateBean(), "PFAD_");
+		for (int i = 0; i < 2; i++) {
+			Object result = privateSource.getData(new MergeContext(privateSource), "PFAD_name");
+			Assert.assertTrue(String.valueOf(result), result instanceof String && ((String) result).contains(PrivateBean.class.getName()));
+		}
+	}
+
+	public static class PfadBeanA {
+
+		private final String name;
+
+		PfadBeanA(String name) {
+
+			this.name = name;
+		}
+
+		public String getName() {
+
+			return this.name;
+		}
+
+		public PfadBeanA getSelf() {
+
+			return this;
+		}
+
+		public String getNurA() {
+
+			return "A";
+		}
+
+		public PfadBeanB getLeer() {
+
+			return null;
+		}
+
+		public String getFehler() {
+
+			throw new IllegalStateException("Fehler im Getter");
+		}
+
+		public String getCheckedFehler() throws IOException {
+
+			throw new IOException("Fehler im Getter");
+		}
+	}
+
+	public static class PfadBeanB {
+
+		private final String name;
+
+		PfadBeanB(String name) {
+
+			this.name = name;
+		}
+
+		public String getName() {
+
+			return this.name;
+		}
+
+		public PfadBeanB getSelf() {
+
+			return this;
+		}
+	}
+
+	private static class PrivateBean {
+
+		public String getName() {
+
+			return "privat";
+		}
+	}
+
+	/**
+	 * Schlaegt die Introspektion einer Klasse fehl, darf das nicht gemerkt werden.
+	 */
+	@Test
+	public void introspectionFailureTest() throws Exception {
+
+		IntrospectionFehlerBeanBeanInfo.fehler = true;
+		try {
+			PropertyUtils.getPropertyDescriptors(IntrospectionFehlerBean.class);
+			Assert.fail("IntrospectionException expected");
+		} catch (IntrospectionException e) {
+			Assert.assertEquals("Introspektion fehlgeschlagen", e.getMessage());
+		}
+		IntrospectionFehlerBeanBeanInfo.fehler = false;
+		Map<String, PropertyDescriptor> descriptors = PropertyUtils.getPropertyDescriptors(IntrospectionFehlerBean.class);
+		Assert.assertNotNull(descriptors.get("wert"));
+		Assert.assertSame(descriptors, PropertyUtils.getPropertyDescriptors(IntrospectionFehlerBean.class));
+	}
+
+	public static class IntrospectionFehlerBean {
+
+		public String getWert() {
+
+			return "Wert";
+		}
+	}
+
+	/**
+	 * Wird vom {@link java.beans.Introspector} fuer {@link IntrospectionFehlerBean} verwendet.
+	 */
+	public static class IntrospectionFehlerBeanBeanInfo extends SimpleBeanInfo {
+
+		static volatile boolean fehler;
+
+		@Override
+		public PropertyDescriptor[] getPropertyDescriptors() {
+
+			if (fehler) {
+				XmlMergeEngineTest.<RuntimeException> sneakyThrow(new IntrospectionException("Introspektion fehlgeschlagen"));
+			}
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E extends Throwable> void sneakyThrow(Throwable t) throws E {
+
+		throw (E) t;
+	}
+
+	/**
+	 * Eine Subklasse, die whileStatement ueberschreibt, liefert die Elemente auch ohne Sortierung selbst.
+	 */
+	@Test
+	public void overriddenWhileStatementTest() throws Exception {
+
+		String template = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"orte\"><ort><ldt:field path=\"orte.name\"/></ort></ldt:while></orte>";
+		BeanMergeSource reversed = new BeanMergeSource(new OrtBean("Aarau", "Bern", "Thun"), "") {
+
+			@Override
+			public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+				List<MergeSource> result = super.whileStatement(ctx, key);
+				Collections.reverse(result);
+				return result;
+			}
+		};
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean while", new HashMap<String, String>());
+		String xml = new String(xmlME.getXml(reversed, new ByteArrayInputStream(template.getBytes(CHARSET))), CHARSET);
+		Assert.assertTrue(xml, xml.indexOf("<ort>Thun</ort>") < xml.indexOf("<ort>Bern</ort>")
+				&& xml.indexOf("<ort>Bern</ort>") < xml.indexOf("<ort>Aarau</ort>"));
+	}
+
+	/**
+	 * Bedingungen auf den Zeilen einer Iteration ueber ExtendedBeanMergeSources lesen die Werte der umgebenden
+	 * MergeSource, wenn die Zeile sie nicht kennt.
+	 */
+	@Test
+	public void conditionInWhileTest() throws Exception {
+
+		String template = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"orte\"><ort><ldt:field path=\"orte.name\"/>"
+				+ "<ldt:if field=\"NOT_aktiv\">N</ldt:if>"
+				+ "<ldt:if field=\"aktiv_AND_orte.index_GT_0\">G</ldt:if>"
+				+ "<ldt:if field=\"orte.name_EQ_Bern_OR_kanton_EQ_ZH\">B</ldt:if>"
+				+ "<ldt:if field=\"orte.index_LT_1_OR_inaktiv\">L</ldt:if>"
+				+ "</ort></ldt:while></orte>";
+		final KantonBean kanton = new KantonBean("Bern", "Thun");
+		ExtendedBeanMergeSource source = new ExtendedBeanMergeSource(kanton, "") {
+
+			@Override
+			public List<MergeSource> whileStatement(MergeContext ctx, String key) throws DocTemplateException {
+
+				if (!"orte".equals(key)) {
+					return super.whileStatement(ctx, key);
+				}
+				List<MergeSource> result = new ArrayList<>();
+				for (Ort ort : kanton.getOrte()) {
+					result.add(new ExtendedBeanMergeSource(ort, "orte."));
+				}
+				return result;
+			}
+		};
+		XmlMergeEngine xmlME = new XmlMergeEngine("condition in while", new HashMap<String, String>());
+		String xml = new String(xmlME.getXml(source, new ByteArrayInputStream(template.getBytes(CHARSET))), CHARSET);
+		Assert.assertTrue(xml, xml.contains("<ort>BernBL</ort>"));
+		Assert.assertTrue(xml, xml.contains("<ort>ThunG</ort>"));
+
+		// eine Zeile beantwortet keine Bedingungen ueber fremde Pfade
+		ExtendedBeanMergeSource zeile = new ExtendedBeanMergeSource(new Ort("Bern", 0), "orte.");
+		MergeContext ctx = new MergeContext(zeile);
+		Assert.assertNull(zeile.ifStatement(ctx, "NOT_aktiv"));
+		Assert.assertNull(zeile.ifStatement(ctx, "aktiv_OR_kanton_EQ_ZH"));
+		Assert.assertEquals(Boolean.FALSE, zeile.ifStatement(ctx, "aktiv_AND_orte.index_GT_0"));
+		Assert.assertEquals(Boolean.TRUE, zeile.ifStatement(ctx, "aktiv_OR_orte.name_EQ_Bern"));
+	}
+
+	public static class LazyBean {
+
+		private final int size;
+		private int created;
+		private int rendered;
+
+		LazyBean(int size) {
+
+			this.size = size;
+		}
+
+		public Iterable<Zeile> getZeilen() {
+
+			return () -> new Iterator<Zeile>() {
+
+				@Override
+				public boolean hasNext() {
+
+					return LazyBean.this.created < LazyBean.this.size;
+				}
+
+				@Override
+				public Zeile next() {
+
+					Assert.assertEquals("rows fetched before being merged", LazyBean.this.created, LazyBean.this.rendered);
+					return new Zeile(LazyBean.this, LazyBean.this.created++);
+				}
+			};
+		}
+	}
+
+	public static class Zeile {
+
+		private final LazyBean lazyBean;
+		private final int number;
+
+		Zeile(LazyBean lazyBean, int number) {
+
+			this.lazyBean = lazyBean;
+			this.number = number;
+		}
+
+		public String getText() {
+
+			this.lazyBean.rendered++;
+			return String.valueOf(this.number);
+		}
+	}
+
+	/**
+	 * Texte werden ohne Sprache zeichenweise, mit Sprache gemaess deren Regeln sortiert.
+	 */
+	@Test
+	public void sortLocaleTest() throws Exception {
+
+		String template = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"orte\"><ort><ldt:field path=\"orte.name\" SORT=\"ASC\"/></ort></ldt:while></orte>";
+		OrtBean ortBean = new OrtBean("zug", "Z\u00fcrich", "Aarau", "\u00c4gerten", "Bern");
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean sort", new HashMap<String, String>());
+		Assert.assertEquals(Arrays.asList("Aarau", "Bern", "Z\u00fcrich", "zug", "\u00c4gerten"), getOrte(xmlME, ortBean, template));
+		xmlME.setSortLocale(new Locale("de", "CH"));
+		Assert.assertEquals(Arrays.asList("Aarau", "\u00c4gerten", "Bern", "zug", "Z\u00fcrich"), getOrte(xmlME, ortBean, template));
+	}
+
+	/**
+	 * Grosse Iterationen werden parallel sortiert, die Reihenfolge muss stabil bleiben.
+	 */
+	@Test
+	public void sortParallelTest() throws Exception {
+
+		String template = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"orte\"><ort><ldt:field path=\"orte.name\" SORT=\"DESC\"/></ort></ldt:while></orte>";
+		Random random = new Random(4711);
+		String[] namen = new String[20000];
+		for (int i = 0; i < namen.length; i++) {
+			namen[i] = "Ort " + random.nextInt(1000);
+		}
+		List<String> expected = new ArrayList<>(Arrays.asList(namen));
+		expected.sort((a, b) -> b.compareTo(a));
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean sort", new HashMap<String, String>());
+		Assert.assertEquals(expected, getOrte(xmlME, new OrtBean(namen), template));
+	}
+
+	/**
+	 * Die Sortierung mit Zwischenablage auf der Festplatte muss dieselbe Reihenfolge wie im Speicher liefern und alle
+	 * temporaeren Dateien wieder loeschen.
+	 */
+	@Test
+	public void externalSortTest() throws Exception {
+
+		String template = "<orte xmlns:ldt=\"http://www.dvbern.ch/lib/doctemplate/XmlMergeSchema\">"
+				+ "<ldt:while path=\"orte\"><ort><ldt:field path=\"orte.name\" SORT=\"ASC\"/>/<ldt:field path=\"orte.index\"/>"
+				+ "</ort></ldt:while></orte>";
+		Random random = new Random(7);
+		String[] namen = new String[20000];
+		for (int i = 0; i < namen.length; i++) {
+			namen[i] = (random.nextBoolean() ? "\u00d6rt " : "ort ") + random.nextInt(500);
+		}
+		OrtBean ortBean = new OrtBean(namen);
+		XmlMergeEngine xmlME = new XmlMergeEngine("bean external sort", new HashMap<String, String>());
+		xmlME.setSortLocale(new Locale("de", "CH"));
+		List<String> expected = getOrte(xmlME, ortBean, template);
+		Assert.assertEquals(namen.length, expected.size());
+
+		Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+		int runFiles = countRunFiles(tmp);
+		// 200 Laeufe, werden in mehreren Durchgaengen gemischt
+		xmlME.setExternalSortThreshold(100);
+		ortBean.abfragen = 0;
+		Assert.assertEquals(expected, getOrte(xmlME, ortBean, template));
+		Assert.assertEquals("temporary files not deleted", runFiles, countRunFiles(tmp));
+		// die Elemente werden nicht gehalten, sondern blockweise erneut abgeholt
+		Assert.assertEquals(1 + namen.length / 100, ortBean.abfragen);
+
+		// aendert die Iteration waehrend des Merges, wird abgebrochen und aufgeraeumt
+		OrtBean schrumpfend = new OrtBean(namen) {
+
+			@Override
+			public List<Ort> getOrte() {
+
+				List<Ort> orte = super.getOrte();
+				return this.abfragen > 1 ? orte.subList(0, orte.size() / 2) : orte;
+			}
+		};
+		try {
+			getOrte(xmlME, schrumpfend, template);
+			Assert.fail("changed iteration not detected");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof DocTemplateException && e.getCause().getMessage().contains("changed"));
+		}
+		Assert.assertEquals("temporary files not deleted", runFiles, countRunFiles(tmp));
+	}
+
+	private int countRunFiles(Path dir) throws IOException {
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "doctemplate-sort*.run")) {
+			int result = 0;
+			for (Path file : files) {
+				result++;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Ein nach oben begrenzter Bereich einer sortierten Iteration muss dieselben Elemente wie die vollstaendige
+	 * Sortierung liefern, auch bei gleichen Sortierwerten.
+	 */
+	@Test
+	public void sortTopTest() throws Exception {
+
+		Random random = new Random(42);
+		String[] namen = new String[5000];
+		for (int i = 0; i < namen.length; i++) {
+			namen[i] = "Ort " + random.nextInt(100);
+		}
+		BeanMergeSource mergeSource = new BeanMergeSource(new OrtBean(namen), "");
+		List<String> all = getOrte(mergeSource, "orte", "orte.name_DESC");
+		Assert.assertEquals(namen.length, all.size());
+		Assert.assertEquals(all.subList(3, 13), getOrte(mergeSource, "orte_SUB3_12", "orte.name_DESC"));
+		Assert.assertEquals(all.subList(0, 1), getOrte(mergeSource, "orte_SUB0_0", "orte.name_DESC"));
+		Assert.assertEquals(all.subList(4990, 5000), getOrte(mergeSource, "orte_SUB4990_6000", "orte.name_DESC"));
+		Assert.assertEquals(Collections.emptyList(), getOrte(mergeSource, "orte_SUB7000_7010", "orte.name_DESC"));
+	}
+
+	private List<String> getOrte(MergeSource mergeSource, String key, String sortKey) throws DocTemplateException {
+
+		MergeContext ctx = new MergeContext(mergeSource);
+		IterationMergeSource ims = IterationMergeHelper.getIterationMergeSource(ctx, mergeSource, key, Arrays.asList(sortKey));
+		List<String> result = new ArrayList<>();
+		while (ims.hasNext()) {
+			ims.next();
+			// Name und Position, damit auch die Reihenfolge gleicher Namen geprueft wird
+			result.add(ims.getData(ctx, "orte.name") + "/" + ims.getData(ctx, "orte.index"));
+		}
+		return result;
+	}
+
+	private List<String> getOrte(XmlMergeEngine xmlME, OrtBean ortBean, String template) throws Exception {
+
+		String xml = new String(xmlME.getXml(new BeanMergeSource(ortBean, ""), new ByteArrayInputStream(template.getBytes(CHARSET))),
+				CHARSET);
+		List<String> result = new ArrayList<>();
+		for (int start = xml.indexOf("<ort>"); start >= 0; start = xml.indexOf("<ort>", start + 1)) {
+			result.add(xml.substring(start + 5, xml.indexOf("</ort>", start)));
+		}
+		return result;
+	}
+
+	public static class OrtBean {
+
+		private final List<Ort> orte = new ArrayList<>();
+		int abfragen;
+
+		OrtBean(String... namen) {
+
+			for (String name : namen) {
+				this.orte.add(new Ort(name, this.orte.size()));
+			}
+		}
+
+		public List<Ort> getOrte() {
+
+			this.abfragen++;
+			return this.orte;
+		}
+	}
+
+	public static class KantonBean extends OrtBean {
+
+		KantonBean(String... namen) {
+
+			super(namen);
+		}
+
+		public boolean isAktiv() {
+
+			return true;
+		}
+
+		public boolean isInaktiv() {
+
+			return false;
+		}
+
+		public String getKanton() {
+
+			return "BE";
+		}
+	}
+
+	public static class Ort {
+
+		private final String name;
+		private final int index;
+
+		Ort(String name, int index) {
+
+			this.name = name;
+			this.index = index;
+		}
+
+		public String getName() {
+
+			return this.name;
+		}
+
+		public int getIndex() {
+
+			return this.index;
+		}
+	}
+
 	@Test
 	public void test2() throws Exception {
 